@@ -70,6 +70,21 @@ CREATE TABLE submissions (
 
 ALTER TABLE submissions OWNER TO pottery;
 
+--
+-- Name: submissioncache; Type: TABLE; Schema: public; Owner: pottery
+--
+
+CREATE TABLE submissioncache (
+    treeid character varying(255) NOT NULL,
+    copyid character varying(255) NOT NULL,
+    image character varying(255) NOT NULL,
+    repoid character varying(255) NOT NULL,
+    tag character varying(255) NOT NULL
+);
+
+
+ALTER TABLE submissioncache OWNER TO pottery;
+
 --
 -- Name: tasks; Type: TABLE; Schema: public; Owner: pottery
 --
@@ -102,6 +117,14 @@ ALTER TABLE ONLY submissions
     ADD CONSTRAINT submissions_pkey PRIMARY KEY (repoid, tag);
 
 
+--
+-- Name: submissioncache_pkey; Type: CONSTRAINT; Schema: public; Owner: pottery
+--
+
+ALTER TABLE ONLY submissioncache
+    ADD CONSTRAINT submissioncache_pkey PRIMARY KEY (treeid, copyid, image);
+
+
 --
 -- Name: tasks_pkey; Type: CONSTRAINT; Schema: public; Owner: pottery
 --
@@ -50,30 +50,60 @@ public class FourLevelLock {
   private final ReentrantReadWriteLock topLevelLock = new ReentrantReadWriteLock();
   private final ReentrantReadWriteLock secondLevelLock = new ReentrantReadWriteLock();
 
+  /** Returns true if any level of the lock is held or is being waited for. */
+  public boolean isInUse() {
+    // Every level takes the top level lock
+    return topLevelLock.isWriteLocked()
+        || topLevelLock.getReadLockCount() > 0
+        || topLevelLock.hasQueuedThreads();
+  }
+
   public AutoCloseableLock takeFullExclusionLock() throws InterruptedException {
-    return new AutoCloseableLock(topLevelLock.writeLock(), secondLevelLock.writeLock());
+    return AutoCloseableLock.take(topLevelLock.writeLock(), secondLevelLock.writeLock());
+  }
+
+  /**
+   * Take the full exclusion lock without waiting.
+   *
+   * @return the lock or null if any level of it is currently held by someone else
+   */
+  public AutoCloseableLock tryTakeFullExclusionLock() {
+    Lock l1 = topLevelLock.writeLock();
+    if (!l1.tryLock()) {
+      return null;
+    }
+    Lock l2 = secondLevelLock.writeLock();
+    if (!l2.tryLock()) {
+      l1.unlock();
+      return null;
+    }
+    return AutoCloseableLock.alreadyHeld(l1, l2);
   }
 
   public AutoCloseableLock takeGitDbOpLock() throws InterruptedException {
-    return new AutoCloseableLock(topLevelLock.readLock(), null);
+    return AutoCloseableLock.take(topLevelLock.readLock(), null);
   }
 
   public AutoCloseableLock takeFileReadingLock() throws InterruptedException {
-    return new AutoCloseableLock(topLevelLock.readLock(), secondLevelLock.readLock());
+    return AutoCloseableLock.take(topLevelLock.readLock(), secondLevelLock.readLock());
   }
 
   public AutoCloseableLock takeFileWritingLock() throws InterruptedException {
-    return new AutoCloseableLock(topLevelLock.readLock(), secondLevelLock.writeLock());
+    return AutoCloseableLock.take(topLevelLock.readLock(), secondLevelLock.writeLock());
   }
 
-  public class AutoCloseableLock implements AutoCloseable {
+  public static class AutoCloseableLock implements AutoCloseable {
 
-    private Lock l1;
-    private Lock l2;
+    private final Lock l1;
+    private final Lock l2;
 
-    private AutoCloseableLock(Lock l1, Lock l2) throws InterruptedException {
+    private AutoCloseableLock(Lock l1, Lock l2) {
       this.l1 = l1;
       this.l2 = l2;
+    }
+
+    /** Take l1 and then l2 (if it is not null), waiting for each of them. */
+    private static AutoCloseableLock take(Lock l1, Lock l2) throws InterruptedException {
       l1.lockInterruptibly();
       if (l2 != null) {
         try {
@@ -83,6 +113,12 @@ public class FourLevelLock {
           throw e;
         }
       }
+      return new AutoCloseableLock(l1, l2);
+    }
+
+    /** Wrap locks which are already held. */
+    private static AutoCloseableLock alreadyHeld(Lock l1, Lock l2) {
+      return new AutoCloseableLock(l1, l2);
     }
 
     @Override
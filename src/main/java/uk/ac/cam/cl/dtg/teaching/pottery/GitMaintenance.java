@@ -0,0 +1,409 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.internal.storage.pack.PackWriter;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.RepoConfig;
+
+/**
+ * Garbage collects git repositories in the background.
+ *
+ * <p>Every commit we make leaves loose objects behind and pushes to task definition repositories
+ * add more packs. Both slow down tree walks and clones. Writers record that they have changed a
+ * repository here. Once a repository has been idle for a while we estimate how many loose objects
+ * it has and, if there are enough, run git gc on it. This packs everything into a single pack with
+ * a bitmap index. Repositories can also ask for a gc regardless of the loose object count (e.g.
+ * after a push).
+ *
+ * <p>Repositories which borrow objects through objects/info/alternates (e.g. the skeleton commit of
+ * a task) don't get a full gc since that would copy the borrowed objects into their own pack.
+ * Instead we just move their loose objects into a new pack.
+ *
+ * <p>At most a fixed number of gcs run at once. A gc only runs if the repository's lock can be
+ * taken without waiting so it never runs alongside (or holds up) a writer. Busy repositories are
+ * tried again on the next check.
+ */
+@Singleton
+public class GitMaintenance implements Stoppable {
+
+  protected static final Logger LOG = LoggerFactory.getLogger(GitMaintenance.class);
+
+  private static final long CHECK_INTERVAL_MS = 60 * 1000;
+
+  private static final String ALTERNATES = Constants.OBJECTS + "/info/alternates";
+
+  /**
+   * A repository which can be garbage collected. We keep the first target recorded for a git
+   * directory until the directory is forgotten so the target must stay valid for that long.
+   */
+  public interface Target {
+
+    /** The git directory of the repository. */
+    File getGitDirectory();
+
+    /**
+     * Take a lock which excludes writers to the repository without waiting.
+     *
+     * @return the lock or null if the repository is busy
+     */
+    Exclusion tryExclude();
+  }
+
+  /** A lock returned by Target.tryExclude. */
+  public interface Exclusion extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  private final int looseObjectThreshold;
+
+  private final long idleMs;
+
+  private final Semaphore running;
+
+  /** Repositories which have been written to, indexed by git directory. */
+  private final ConcurrentHashMap<File, Tracked> tracked = new ConcurrentHashMap<>();
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  private final AtomicLong gcRuns = new AtomicLong(0);
+
+  private final AtomicLong skippedBusy = new AtomicLong(0);
+
+  @Inject
+  public GitMaintenance(RepoConfig config) {
+    this(config.getGcLooseObjectThreshold(), config.getGcIdleMs(), config.getMaxConcurrentGcs());
+  }
+
+  /** Create an instance and start checking for repositories to garbage collect. */
+  public GitMaintenance(int looseObjectThreshold, long idleMs, int maxConcurrent) {
+    this.looseObjectThreshold = looseObjectThreshold;
+    this.idleMs = idleMs;
+    this.running = new Semaphore(maxConcurrent);
+    scheduler.scheduleWithFixedDelay(
+        this::check, CHECK_INTERVAL_MS, CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * A target for a repository which has no lock of its own, such as the bare task definition
+   * repositories that we serve over http. JGit's gc is safe to run alongside pushes and clones.
+   */
+  public static Target unlockedTarget(File gitDirectory) {
+    return new Target() {
+      @Override
+      public File getGitDirectory() {
+        return gitDirectory;
+      }
+
+      @Override
+      public Exclusion tryExclude() {
+        return () -> {};
+      }
+    };
+  }
+
+  /** Record that this repository has been written to. */
+  public void recordWrite(Target target) {
+    Tracked t = track(target);
+    synchronized (t) {
+      t.lastWrite = System.currentTimeMillis();
+      t.dirty = true;
+    }
+  }
+
+  /** Garbage collect this repository once it is idle however many loose objects it has. */
+  public void requestGc(Target target) {
+    Tracked t = track(target);
+    synchronized (t) {
+      t.lastWrite = System.currentTimeMillis();
+      t.requested = true;
+    }
+  }
+
+  /**
+   * Garbage collect this repository now (waiting if the maximum number of gcs are already running).
+   *
+   * @return false if the repository is not being tracked or was busy
+   */
+  public boolean gc(File gitDirectory) throws IOException, InterruptedException {
+    Tracked t = tracked.get(gitDirectory);
+    if (t == null) {
+      return false;
+    }
+    running.acquire();
+    try {
+      synchronized (t) {
+        if (t.running) {
+          return false;
+        }
+        t.running = true;
+      }
+      return run(t);
+    } finally {
+      running.release();
+    }
+  }
+
+  /** Stop tracking this repository. Call this when its target is no longer valid. */
+  public void forget(File gitDirectory) {
+    tracked.remove(gitDirectory);
+  }
+
+  /** The number of repositories being tracked. */
+  public int getTracked() {
+    return tracked.size();
+  }
+
+  /** The number of times that gc has been run. */
+  public long getGcRuns() {
+    return gcRuns.get();
+  }
+
+  /** The number of times that gc was skipped because the repository was busy. */
+  public long getSkippedBusy() {
+    return skippedBusy.get();
+  }
+
+  @Override
+  public void stop() {
+    scheduler.shutdownNow();
+    executor.shutdownNow();
+  }
+
+  private Tracked track(Target target) {
+    return tracked.computeIfAbsent(target.getGitDirectory(), k -> new Tracked(target));
+  }
+
+  private void check() {
+    long idleBefore = System.currentTimeMillis() - idleMs;
+    for (Tracked t : tracked.values()) {
+      if (!t.target.getGitDirectory().exists()) {
+        // The repository has been deleted or archived
+        tracked.remove(t.target.getGitDirectory(), t);
+        continue;
+      }
+      synchronized (t) {
+        if (t.running || t.lastWrite > idleBefore || !(t.requested || t.dirty)) {
+          continue;
+        }
+        if (!t.requested) {
+          t.dirty = false;
+          if (estimateLooseObjects(t.target.getGitDirectory()) < looseObjectThreshold) {
+            continue;
+          }
+        }
+        if (!running.tryAcquire()) {
+          // Try again next time
+          t.dirty = true;
+          return;
+        }
+        t.running = true;
+      }
+      try {
+        executor.execute(
+            () -> {
+              try {
+                run(t);
+              } catch (IOException e) {
+                LOG.warn("Failed to garbage collect {}", t.target.getGitDirectory(), e);
+              } finally {
+                running.release();
+              }
+            });
+      } catch (RejectedExecutionException e) {
+        // We've been stopped
+        running.release();
+        return;
+      }
+    }
+  }
+
+  /** Run gc on the repository unless it is busy. The caller must have set t.running. */
+  private boolean run(Tracked t) throws IOException {
+    try (Exclusion exclusion = t.target.tryExclude()) {
+      if (exclusion == null) {
+        skippedBusy.incrementAndGet();
+        synchronized (t) {
+          t.dirty = true;
+        }
+        return false;
+      }
+      synchronized (t) {
+        t.requested = false;
+        t.dirty = false;
+      }
+      runGc(t.target.getGitDirectory());
+      gcRuns.incrementAndGet();
+      return true;
+    } finally {
+      synchronized (t) {
+        t.running = false;
+      }
+    }
+  }
+
+  private static void runGc(File gitDirectory) throws IOException {
+    try (Repository repository =
+            new FileRepositoryBuilder().setGitDir(gitDirectory).setMustExist(true).build();
+        Git git = Git.wrap(repository)) {
+      if (new File(gitDirectory, ALTERNATES).exists()) {
+        // gc would copy every object that we borrow through the alternates into our own pack
+        packLooseObjects(repository);
+        return;
+      }
+      // The default pack config builds a bitmap index
+      git.gc().call();
+    } catch (GitAPIException e) {
+      throw new IOException("Failed to garbage collect " + gitDirectory, e);
+    }
+  }
+
+  /**
+   * Move the loose objects of the repository into a new pack and delete them. Unlike gc this only
+   * packs objects which are stored in the repository itself and leaves objects from its alternates
+   * where they are.
+   */
+  private static void packLooseObjects(Repository repository) throws IOException {
+    File objectsDirectory = new File(repository.getDirectory(), Constants.OBJECTS);
+    List<ObjectId> looseObjects = listLooseObjects(objectsDirectory);
+    if (looseObjects.isEmpty()) {
+      return;
+    }
+    File packDirectory = new File(objectsDirectory, "pack");
+    FileUtil.mkdirIfNotExists(packDirectory);
+    File tmpPack = File.createTempFile("gc_", ".pack_tmp", packDirectory);
+    File tmpIndex = File.createTempFile("gc_", ".idx_tmp", packDirectory);
+    try {
+      ObjectId packName;
+      try (RevWalk revWalk = new RevWalk(repository);
+          PackWriter packWriter = new PackWriter(repository)) {
+        List<RevObject> objects = new ArrayList<>();
+        for (ObjectId id : looseObjects) {
+          objects.add(revWalk.parseAny(id));
+        }
+        packWriter.preparePack(objects.iterator());
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpPack))) {
+          packWriter.writePack(NullProgressMonitor.INSTANCE, NullProgressMonitor.INSTANCE, out);
+        }
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpIndex))) {
+          packWriter.writeIndex(out);
+        }
+        packName = packWriter.computeName();
+      }
+      // Readers only look for a pack once its index exists so move the index last
+      String prefix = "pack-" + packName.getName();
+      Files.move(
+          tmpPack.toPath(),
+          new File(packDirectory, prefix + ".pack").toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+      Files.move(
+          tmpIndex.toPath(),
+          new File(packDirectory, prefix + ".idx").toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmpPack.toPath());
+      Files.deleteIfExists(tmpIndex.toPath());
+    }
+    for (ObjectId id : looseObjects) {
+      String name = id.getName();
+      File fanOut = new File(objectsDirectory, name.substring(0, 2));
+      Files.deleteIfExists(new File(fanOut, name.substring(2)).toPath());
+      String[] remaining = fanOut.list();
+      if (remaining != null && remaining.length == 0) {
+        Files.deleteIfExists(fanOut.toPath());
+      }
+    }
+  }
+
+  private static List<ObjectId> listLooseObjects(File objectsDirectory) {
+    List<ObjectId> result = new ArrayList<>();
+    File[] fanOuts = objectsDirectory.listFiles((dir, name) -> name.length() == 2);
+    if (fanOuts == null) {
+      return result;
+    }
+    for (File fanOut : fanOuts) {
+      String[] names = fanOut.list();
+      if (names == null) {
+        continue;
+      }
+      for (String name : names) {
+        if (ObjectId.isId(fanOut.getName() + name)) {
+          result.add(ObjectId.fromString(fanOut.getName() + name));
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Estimate the number of loose objects in the repository. Like git gc --auto we assume objects
+   * are evenly spread across the 256 fan-out directories and so count the files in just one.
+   */
+  private static int estimateLooseObjects(File gitDirectory) {
+    String[] files = new File(new File(gitDirectory, Constants.OBJECTS), "17").list();
+    return files == null ? 0 : files.length * 256;
+  }
+
+  private static class Tracked {
+
+    private final Target target;
+
+    // Guarded by this
+    private long lastWrite;
+    private boolean dirty;
+    private boolean requested;
+    private boolean running;
+
+    private Tracked(Target target) {
+      this.target = target;
+    }
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryCache;
+import org.eclipse.jgit.util.FS;
+
+/**
+ * Finds the SHA1 of the master branch of a git repository.
+ *
+ * <p>Local repositories (a directory or a file: URI) are read straight from their ref database.
+ * Remote repositories need a round trip to the server so the answer is cached for a short while.
+ * Cached entries are dropped when we receive a push which might have changed them.
+ */
+@Singleton
+public class HeadResolver {
+
+  /** How long to remember the head of a remote repository for. */
+  public static final long DEFAULT_REMOTE_TTL_MS = 30_000;
+
+  private static final String MASTER = Constants.R_HEADS + Constants.MASTER;
+
+  /** The SHA1 of master for each remote location. */
+  private final Cache<String, String> remoteHeads;
+
+  @Inject
+  public HeadResolver() {
+    this(DEFAULT_REMOTE_TTL_MS);
+  }
+
+  public HeadResolver(long remoteTtlMs) {
+    this.remoteHeads =
+        CacheBuilder.newBuilder()
+            .expireAfterWrite(remoteTtlMs, TimeUnit.MILLISECONDS)
+            .recordStats()
+            .build();
+  }
+
+  /**
+   * Find the SHA1 of refs/heads/master.
+   *
+   * @param location a local directory, a file: URI or the URL of a remote repository
+   * @return a string containing the SHA1
+   * @throws IOException if the repository can't be read or doesn't have a master branch
+   */
+  public String resolveMaster(String location) throws IOException {
+    File localDirectory = toLocalDirectory(location);
+    if (localDirectory != null) {
+      return resolveLocal(localDirectory);
+    }
+    try {
+      return remoteHeads.get(location, () -> resolveRemote(location));
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Failed to resolve master for " + location, e.getCause());
+    }
+  }
+
+  /** Find the SHA1 of refs/heads/master in an open repository. */
+  public static String resolveMaster(Repository repository) throws IOException {
+    Ref ref = repository.exactRef(MASTER);
+    if (ref == null || ref.getObjectId() == null) {
+      throw new IOException("Failed to find reference named " + MASTER);
+    }
+    return ref.getObjectId().getName();
+  }
+
+  /**
+   * Forget the cached head of any remote repository whose URL ends with this name. Called when a
+   * repository of this name is pushed to since other repositories might be using it as a remote.
+   */
+  public void invalidate(String repoName) {
+    remoteHeads
+        .asMap()
+        .keySet()
+        .removeIf(
+            location ->
+                location.endsWith("/" + repoName)
+                    || location.endsWith("/" + repoName + Constants.DOT_GIT_EXT));
+  }
+
+  /** The number of lookups of remote repositories answered from the cache. */
+  public long getHits() {
+    return remoteHeads.stats().hitCount();
+  }
+
+  /** The number of lookups of remote repositories which had to contact the server. */
+  public long getMisses() {
+    return remoteHeads.stats().missCount();
+  }
+
+  private static String resolveLocal(File directory) throws IOException {
+    // RepositoryCache shares open repositories with anything else that uses it (e.g. GitServlet)
+    try (Repository repository =
+        RepositoryCache.open(RepositoryCache.FileKey.lenient(directory, FS.DETECTED), true)) {
+      return resolveMaster(repository);
+    }
+  }
+
+  private static String resolveRemote(String location) throws IOException {
+    try {
+      for (Ref r :
+          Git.lsRemoteRepository().setRemote(location).setHeads(true).setTags(false).call()) {
+        if (r.getName().equals(MASTER)) {
+          return r.getObjectId().getName();
+        }
+      }
+    } catch (GitAPIException e) {
+      throw new IOException("Failed to read remote repository " + location, e);
+    }
+    throw new IOException("Failed to find reference named " + MASTER + " in " + location);
+  }
+
+  /** Return the directory for this location or null if it is not on the local filesystem. */
+  private static File toLocalDirectory(String location) {
+    if (location.startsWith("file:")) {
+      try {
+        return new File(new URI(location));
+      } catch (URISyntaxException | IllegalArgumentException e) {
+        return null;
+      }
+    }
+    return location.contains(":") ? null : new File(location);
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery;
+
+import com.google.common.cache.CacheStats;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * A cache which is bounded in size and in the time since an entry was last used but which never
+ * evicts an entry that is pinned.
+ *
+ * <p>We use this to make sure there is only ever one object for each repo or task: if an object is
+ * still being used (e.g. a job is running against it) then evicting it would allow a second object
+ * for the same id to be created. Whether an entry is pinned is decided by a predicate on the value.
+ * Pinned entries are skipped by eviction and so the cache may grow past its maximum size if many
+ * entries are pinned at once.
+ *
+ * <p>Values are loaded outside the lock. Concurrent requests for the same key wait for a single
+ * load.
+ */
+public class PinningCache<K, V> {
+
+  private final int maximumSize;
+
+  private final long expireAfterAccessMs;
+
+  private final Predicate<? super V> isPinned;
+
+  private final BiConsumer<? super K, ? super V> removalListener;
+
+  /** Entries in access order (least recently used first). Guarded by this. */
+  private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  // Statistics. Guarded by this.
+  private long hits = 0;
+  private long misses = 0;
+  private long loadSuccesses = 0;
+  private long loadExceptions = 0;
+  private long totalLoadTimeNanos = 0;
+  private long evictions = 0;
+
+  /**
+   * Create a new cache.
+   *
+   * @param maximumSize the number of unpinned entries to keep
+   * @param expireAfterAccessMs unpinned entries which have not been used for this long are evicted
+   * @param isPinned returns true for values which must not be evicted
+   * @param removalListener called (without holding any lock) for each evicted entry
+   */
+  public PinningCache(
+      int maximumSize,
+      long expireAfterAccessMs,
+      Predicate<? super V> isPinned,
+      BiConsumer<? super K, ? super V> removalListener) {
+    this.maximumSize = maximumSize;
+    this.expireAfterAccessMs = expireAfterAccessMs;
+    this.isPinned = isPinned;
+    this.removalListener = removalListener;
+  }
+
+  /**
+   * Return the value for this key, calling loader to create it if it is not in the cache.
+   *
+   * @throws ExecutionException if the loader throws an exception. The exception is the cause.
+   */
+  public V get(K key, Callable<? extends V> loader) throws ExecutionException {
+    FutureTask<V> load;
+    boolean loadHere = false;
+    synchronized (this) {
+      Entry<V> entry = entries.get(key);
+      if (entry != null) {
+        hits++;
+        entry.lastAccess = System.currentTimeMillis();
+        load = entry.load;
+      } else {
+        misses++;
+        load = new FutureTask<>(loader::call);
+        entries.put(key, new Entry<>(load));
+        loadHere = true;
+      }
+    }
+    if (!loadHere) {
+      try {
+        return load.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ExecutionException(e);
+      }
+    }
+    long start = System.nanoTime();
+    load.run();
+    long loadTime = System.nanoTime() - start;
+    V value;
+    try {
+      value = load.get();
+    } catch (InterruptedException | ExecutionException e) {
+      synchronized (this) {
+        totalLoadTimeNanos += loadTime;
+        loadExceptions++;
+        entries.remove(key);
+      }
+      if (e instanceof InterruptedException) {
+        Thread.currentThread().interrupt();
+        throw new ExecutionException(e);
+      }
+      throw (ExecutionException) e;
+    }
+    synchronized (this) {
+      totalLoadTimeNanos += loadTime;
+      loadSuccesses++;
+      Entry<V> entry = entries.get(key);
+      if (entry != null && entry.load == load) {
+        entry.value = value;
+      }
+    }
+    evict();
+    return value;
+  }
+
+  /**
+   * Return the value for this key or null if it is not in the cache (or is still loading). This
+   * doesn't load the value but does count as a use of the entry.
+   */
+  public synchronized V getIfPresent(K key) {
+    Entry<V> entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    entry.lastAccess = System.currentTimeMillis();
+    return entry.value;
+  }
+
+  /** Evict entries which are over the size limit or have expired, unless they are pinned. */
+  public void evict() {
+    List<Map.Entry<K, V>> evicted = new ArrayList<>();
+    synchronized (this) {
+      long expiredBefore = System.currentTimeMillis() - expireAfterAccessMs;
+      int excess = entries.size() - maximumSize;
+      Iterator<Map.Entry<K, Entry<V>>> it = entries.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<K, Entry<V>> e = it.next();
+        Entry<V> entry = e.getValue();
+        boolean expired = entry.lastAccess < expiredBefore;
+        if (excess <= 0 && !expired) {
+          // Everything after this has been used more recently
+          break;
+        }
+        if (entry.value == null || isPinned.test(entry.value)) {
+          // Still loading or pinned
+          continue;
+        }
+        it.remove();
+        excess--;
+        evictions++;
+        evicted.add(new SimpleImmutableEntry<>(e.getKey(), entry.value));
+      }
+    }
+    for (Map.Entry<K, V> e : evicted) {
+      removalListener.accept(e.getKey(), e.getValue());
+    }
+  }
+
+  /** The number of entries in the cache (including those which are still loading). */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /** Statistics about the use of this cache. */
+  public synchronized CacheStats stats() {
+    return new CacheStats(
+        hits, misses, loadSuccesses, loadExceptions, totalLoadTimeNanos, evictions);
+  }
+
+  private static class Entry<V> {
+
+    private final FutureTask<V> load;
+
+    /** The loaded value or null if it is still loading. Guarded by the cache. */
+    private V value;
+
+    /** Guarded by the cache. */
+    private long lastAccess = System.currentTimeMillis();
+
+    private Entry(FutureTask<V> load) {
+      this.load = load;
+    }
+  }
+}
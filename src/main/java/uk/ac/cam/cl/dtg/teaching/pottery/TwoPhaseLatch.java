@@ -49,6 +49,11 @@ public class TwoPhaseLatch {
     notifyAll();
   }
 
+  /** Returns true if anyone has acquired the latch and not released it yet. */
+  public synchronized boolean isHeld() {
+    return counter > 0;
+  }
+
   /** Prevent new threads acquiring the resource and wait for current ones to release. */
   public synchronized void await() throws InterruptedException {
     running = false;
@@ -42,9 +42,12 @@ import org.eclipse.jgit.util.FS;
 import uk.ac.cam.cl.dtg.teaching.cors.CorsRequestFilter;
 import uk.ac.cam.cl.dtg.teaching.cors.CorsResponseFilter;
 import uk.ac.cam.cl.dtg.teaching.exceptions.ExceptionHandler;
+import uk.ac.cam.cl.dtg.teaching.pottery.GitMaintenance;
+import uk.ac.cam.cl.dtg.teaching.pottery.HeadResolver;
 import uk.ac.cam.cl.dtg.teaching.pottery.config.ContainerEnvConfig;
 import uk.ac.cam.cl.dtg.teaching.pottery.config.RepoConfig;
 import uk.ac.cam.cl.dtg.teaching.pottery.config.TaskConfig;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.WorkerConfig;
 import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerBackend;
 import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerManager;
 import uk.ac.cam.cl.dtg.teaching.pottery.containers.DockerContainerImpl;
@@ -59,6 +62,7 @@ import uk.ac.cam.cl.dtg.teaching.pottery.database.PostgresDatabase;
 import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoFactory;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskFactory;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskIndex;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.AdaptiveConcurrency;
 import uk.ac.cam.cl.dtg.teaching.pottery.worker.ThreadPoolWorker;
 import uk.ac.cam.cl.dtg.teaching.pottery.worker.Worker;
 
@@ -93,14 +97,18 @@ public class ApplicationModule implements Module {
     binder.bind(RepoFactory.class).in(Singleton.class);
     binder.bind(TaskFactory.class).in(Singleton.class);
     binder.bind(TaskIndex.class).in(Singleton.class);
+    binder.bind(HeadResolver.class).in(Singleton.class);
+    binder.bind(GitMaintenance.class).in(Singleton.class);
     binder.bind(ContainerManager.class).in(Singleton.class);
 
     binder.bind(TaskConfig.class).in(Singleton.class);
     binder.bind(RepoConfig.class).in(Singleton.class);
     binder.bind(ContainerEnvConfig.class).in(Singleton.class);
+    binder.bind(WorkerConfig.class).in(Singleton.class);
 
     binder.bind(Database.class).to(PostgresDatabase.class).in(Singleton.class);
     binder.bind(Worker.class).to(ThreadPoolWorker.class).in(Singleton.class);
+    binder.bind(AdaptiveConcurrency.class).in(Singleton.class);
     binder.bind(ContainerBackend.class).to(DockerContainerImpl.class).in(Singleton.class);
 
     binder.bind(GuiceDependencyController.class);
@@ -135,8 +143,10 @@ public class ApplicationModule implements Module {
   @PreDestroy
   public void preDestroy() {
     Injector injector = GuiceResteasyBootstrapServletContextListenerV3.getInjector();
+    injector.getInstance(AdaptiveConcurrency.class).stop();
     injector.getInstance(Worker.class).stop();
     injector.getInstance(ContainerManager.class).stop();
+    injector.getInstance(RepoFactory.class).stop();
     injector.getInstance(Database.class).stop();
 
     // TODO: this is plausible but needs one of two possible fixes:
@@ -36,6 +36,8 @@ import org.eclipse.jgit.transport.resolver.ServiceNotAuthorizedException;
 import org.eclipse.jgit.transport.resolver.ServiceNotEnabledException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.GitMaintenance;
+import uk.ac.cam.cl.dtg.teaching.pottery.HeadResolver;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RetiredTaskException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.BuilderInfo;
@@ -68,6 +70,14 @@ public class GitServletV3 extends GitServlet {
                 (rp, commands) -> {
                   String repoName = req.getPathInfo().substring(1);
                   LOG.info("Received push to {}", repoName);
+                  // Anything using this repository as a remote needs to see the new head
+                  GuiceResteasyBootstrapServletContextListenerV3.getInjector()
+                      .getInstance(HeadResolver.class)
+                      .invalidate(repoName);
+                  // Pushes add a new pack each time so repack once things have calmed down
+                  GuiceResteasyBootstrapServletContextListenerV3.getInjector()
+                      .getInstance(GitMaintenance.class)
+                      .requestGc(GitMaintenance.unlockedTarget(rp.getRepository().getDirectory()));
                   TaskIndex t =
                       GuiceResteasyBootstrapServletContextListenerV3.getInjector()
                           .getInstance(TaskIndex.class);
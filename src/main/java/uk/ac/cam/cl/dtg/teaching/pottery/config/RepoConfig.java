@@ -39,6 +39,34 @@ public class RepoConfig {
     return new File(repoPrefix, "repo-testing");
   }
 
+  /** Expired repos which have been packed into bundles by the StorageReclaimer. */
+  public File getRepoArchiveRoot() {
+    return new File(repoPrefix, "repo-archive");
+  }
+
+  /**
+   * Ready-made repos in the warm pool which haven't been claimed yet. These are not in the database
+   * so this directory is wiped at startup.
+   */
+  public File getWarmRepoRoot() {
+    return new File(repoPrefix, "repo-warm");
+  }
+
+  /** Where this repo is kept whilst it is waiting in the warm pool. */
+  public File getWarmRepoDir(String repoId) {
+    return new File(getWarmRepoRoot(), repoId);
+  }
+
+  /** The bundle holding this repo if it has been archived. */
+  public File getRepoArchiveFile(String repoId) {
+    return new File(getRepoArchiveRoot(), repoId + ".bundle");
+  }
+
+  /** A node-local bare mirror of this remote repo. */
+  public File getRemoteMirrorDir(String repoId) {
+    return new File(new File(repoPrefix, "remote-mirrors"), repoId);
+  }
+
   public String getWebtagPrefix() {
     return "online-";
   }
@@ -47,7 +75,114 @@ public class RepoConfig {
     return new File(getRepoRoot(), repoId);
   }
 
-  public File getRepoTestingDir(String repoId) {
-    return new File(getRepoTestingRoot(), repoId);
+  /** A directory for testing a single submission from this repo. */
+  public File getTestingWorkspaceDir(String repoId, long workspaceId) {
+    return new File(getRepoTestingRoot(), repoId + "-" + workspaceId);
+  }
+
+  /** The maximum number of submissions which can have a testing directory at the same time. */
+  public int getMaxTestingWorkspaces() {
+    return 64;
+  }
+
+  /**
+   * How long to keep a testing directory after its submission has finished. A new submission from
+   * the same repo during this time reuses the directory.
+   */
+  public long getTestingWorkspaceRetentionMs() {
+    return 60 * 1000;
+  }
+
+  /**
+   * How long to buffer file updates for before committing them. Updates made within this window
+   * are merged into a single commit. 0 disables buffering so that every update is committed
+   * straight away.
+   */
+  public long getWriteBehindWindowMs() {
+    return 0;
+  }
+
+  /** Buffered file updates are committed straight away once they reach this many bytes. */
+  public long getWriteBehindMaxBytes() {
+    return 1024 * 1024;
+  }
+
+  /** The maximum number of git repository handles to keep open at once. */
+  public int getRepositoryPoolSize() {
+    return 256;
+  }
+
+  /** Repository handles which have not been used for this long are closed. */
+  public long getRepositoryPoolIdleTimeoutMs() {
+    return 10 * 60 * 1000;
+  }
+
+  /**
+   * The number of ready-made repos to keep for each task copy that candidates are starting repos
+   * from. 0 disables the pool so that every repo is created on demand.
+   */
+  public int getWarmRepoPoolSize() {
+    return 10;
+  }
+
+  /** The number of repos to create at the same time when creating repos in bulk. */
+  public int getBulkCreationParallelism() {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  /** The number of repo objects to keep in memory (not counting those which are in use). */
+  public int getRepoCacheSize() {
+    return 10000;
+  }
+
+  /** Repo objects which have not been used for this long are dropped unless they are in use. */
+  public long getRepoCacheExpiryMs() {
+    return 30 * 60 * 1000;
+  }
+
+  /** Repositories with at least this many loose objects are garbage collected. */
+  public int getGcLooseObjectThreshold() {
+    return 256;
+  }
+
+  /** Repositories are only garbage collected once they have not been written to for this long. */
+  public long getGcIdleMs() {
+    return 5 * 60 * 1000;
+  }
+
+  /** The maximum number of git garbage collections to run at the same time. */
+  public int getMaxConcurrentGcs() {
+    return 1;
+  }
+
+  /** The approximate number of bytes of completed submissions to keep in memory. */
+  public long getCompletedSubmissionCacheMaxBytes() {
+    return 64L * 1024 * 1024;
+  }
+
+  /** How often the StorageReclaimer looks for space to free up. */
+  public long getStorageReclaimerIntervalMs() {
+    return 60 * 60 * 1000;
+  }
+
+  /** Repos which expired more than this long ago are packed into bundles and deleted. */
+  public long getExpiredRepoGracePeriodMs() {
+    return 7L * 24 * 60 * 60 * 1000;
+  }
+
+  /**
+   * Directories in the testing root which don't belong to a testing workspace and haven't been
+   * modified for this long are deleted. These are left behind if deletion of a workspace fails.
+   */
+  public long getStaleTestingDirectoryMs() {
+    return 60 * 60 * 1000;
+  }
+
+  /**
+   * The rate at which the StorageReclaimer reads, writes and deletes files. This is kept low so
+   * that it doesn't compete with testing submissions for the disk.
+   */
+  public int getStorageReclaimerBytesPerSecond() {
+    return 16 * 1024 * 1024;
   }
 }
@@ -63,7 +63,30 @@ public class TaskConfig {
     return new File(getTaskCopyDir(copyId), "skeleton");
   }
 
+  /**
+   * If this file exists in a task then running the same submission twice might give different
+   * results so we must not reuse earlier results.
+   */
+  public File getNondeterministicMarker(String copyId) {
+    return new File(getTaskCopyDir(copyId), "nondeterministic");
+  }
+
+  /** A bare repository holding the skeleton files of all task copies. */
+  public File getSkeletonStore() {
+    return new File(taskPrefix, "skeletons");
+  }
+
   public File getLocalTaskDefinitionDir(String taskId) {
     return new File(getTaskDefinitionRoot(), taskId);
   }
+
+  /** The number of task objects to keep in memory (not counting those which are in use). */
+  public int getTaskCacheSize() {
+    return 1000;
+  }
+
+  /** Task objects which have not been used for this long are dropped unless they are in use. */
+  public long getTaskCacheExpiryMs() {
+    return 60 * 60 * 1000;
+  }
 }
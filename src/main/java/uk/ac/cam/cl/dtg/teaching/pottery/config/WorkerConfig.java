@@ -0,0 +1,116 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.config;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+public class WorkerConfig {
+
+  /**
+   * The memory that containers may use between them. Jobs are only started when the sum of the
+   * memory limits of the running containers leaves room for them.
+   */
+  public long getRamBudgetMegabytes() {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    if (os instanceof com.sun.management.OperatingSystemMXBean) {
+      long totalMegabytes =
+          ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize()
+              / (1024 * 1024);
+      return totalMegabytes * 3 / 4;
+    }
+    return 4096;
+  }
+
+  /** The number of containers which may run at once (each takes one slot). */
+  public int getCpuSlots() {
+    return Math.max(1, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * The number of threads which check out submissions. Checking out mostly waits for a testing
+   * workspace or for a fetch from a remote repo so this is not limited by the number of CPUs.
+   */
+  public int getCheckoutThreads() {
+    return 4;
+  }
+
+  /** The delay before the first retry of a job. This doubles with each subsequent attempt. */
+  public long getRetryBaseDelayMs() {
+    return 2000;
+  }
+
+  /** The longest that a job waits between retries. */
+  public long getRetryMaxDelayMs() {
+    return 5 * 60 * 1000;
+  }
+
+  /** The number of times that we'll run a job which keeps asking to be retried. */
+  public int getMaxAttempts() {
+    return 10;
+  }
+
+  /**
+   * Whether the AdaptiveConcurrency controller should start out adjusting the number of CPU slots.
+   * It can be switched on and off through the worker API.
+   */
+  public boolean isAdaptiveConcurrencyEnabled() {
+    return false;
+  }
+
+  /** How often the AdaptiveConcurrency controller reviews the number of CPU slots. */
+  public long getAdaptiveConcurrencyIntervalMs() {
+    return 10 * 1000;
+  }
+
+  /** The fewest CPU slots that the AdaptiveConcurrency controller will leave in the budget. */
+  public int getMinCpuSlots() {
+    return 1;
+  }
+
+  /** The most CPU slots that the AdaptiveConcurrency controller will put in the budget. */
+  public int getMaxCpuSlots() {
+    return Math.max(1, Runtime.getRuntime().availableProcessors());
+  }
+
+  /** Back off if the smoothed call time of the container API goes above this. */
+  public long getTargetContainerCallTimeMs() {
+    return 1000;
+  }
+
+  /** Back off if the system load average per processor goes above this. */
+  public double getMaxLoadPerCpu() {
+    return 1.5;
+  }
+
+  /** Back off if the fraction of physical memory which is available goes below this. */
+  public double getMinFreeMemoryFraction() {
+    return 0.1;
+  }
+
+  /** Add a CPU slot if jobs are queued and the smoothed queue wait time is above this. */
+  public long getTargetQueueWaitTimeMs() {
+    return 5 * 1000;
+  }
+
+  /** The number of CPU slots is multiplied by this when backing off. */
+  public double getConcurrencyDecreaseFactor() {
+    return 0.75;
+  }
+}
@@ -18,14 +18,41 @@
 
 package uk.ac.cam.cl.dtg.teaching.pottery.controllers;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.google.inject.Inject;
+import com.wordnik.swagger.annotations.ApiOperation;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.FormParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
+import org.apache.commons.io.IOUtils;
 import org.eclipse.jgit.lib.Constants;
+import org.jboss.resteasy.plugins.providers.multipart.InputPart;
+import org.jboss.resteasy.plugins.providers.multipart.MultipartFormDataInput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoExpiredException;
@@ -39,23 +66,50 @@ import uk.ac.cam.cl.dtg.teaching.pottery.model.FileData;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.RepoInfo;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.RepoTag;
 import uk.ac.cam.cl.dtg.teaching.pottery.repo.Repo;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.Repo.RepoFile;
 import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoFactory;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.Task;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskCopy;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskIndex;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.Worker;
 
 public class RepoController implements uk.ac.cam.cl.dtg.teaching.pottery.api.RepoController {
 
   protected static final Logger LOG = LoggerFactory.getLogger(RepoController.class);
+
+  /** Tags never change once created so anything read at a tag can be cached indefinitely. */
+  private static final String CACHE_CONTROL_IMMUTABLE = "private, max-age=31536000, immutable";
+
+  /** HEAD can change at any time so clients must revalidate (using the ETag) every time. */
+  private static final String CACHE_CONTROL_REVALIDATE = "private, no-cache";
+
   private RepoFactory repoFactory;
   private TaskIndex taskIndex;
+  private Worker worker;
+
+  @Context private Request request;
+
+  @Context private HttpServletResponse servletResponse;
 
   /** Create a new RepoController. */
   @Inject
-  public RepoController(RepoFactory repoFactory, TaskIndex taskIndex) {
+  public RepoController(RepoFactory repoFactory, TaskIndex taskIndex, Worker worker) {
     super();
     this.repoFactory = repoFactory;
     this.taskIndex = taskIndex;
+    this.worker = worker;
+  }
+
+  /** Create a RepoController with the request context that JAX-RS would otherwise inject. */
+  RepoController(
+      RepoFactory repoFactory,
+      TaskIndex taskIndex,
+      Worker worker,
+      Request request,
+      HttpServletResponse servletResponse) {
+    this(repoFactory, taskIndex, worker);
+    this.request = request;
+    this.servletResponse = servletResponse;
   }
 
   @Override
@@ -75,24 +129,20 @@ public class RepoController implements uk.ac.cam.cl.dtg.teaching.pottery.api.Rep
     if (remote == null) {
       throw new TaskNotFoundException("No remote specified");
     }
-    Calendar cal = Calendar.getInstance();
-    if (validityMinutes == -1) {
-      cal.add(Calendar.YEAR, 1000);
-    } else {
-      cal.add(Calendar.MINUTE, validityMinutes);
-    }
-    Date expiryDate = cal.getTime();
+    Date expiryDate = expiryDate(validityMinutes);
     Task t = taskIndex.getTask(taskId);
     if (t.isRetired()) {
       throw new RetiredTaskException("Cannot start a new repository for task " + taskId);
     }
     try (TaskCopy c = usingTestingVersion ? t.acquireTestingCopy() : t.acquireRegisteredCopy()) {
-      Repo r = repoFactory.createInstance(taskId, usingTestingVersion, expiryDate, remote);
-      RepoInfo info = r.toRepoInfo();
-      if (!info.isRemote()) {
-        r.copyFiles(c);
+      if (remote.equals(RepoInfo.REMOTE_UNSET)) {
+        return repoFactory
+            .claimInstance(taskId, usingTestingVersion, expiryDate, c, worker)
+            .toRepoInfo();
       }
-      return info;
+      return repoFactory
+          .createInstance(taskId, usingTestingVersion, expiryDate, remote)
+          .toRepoInfo();
     }
   }
 
@@ -103,6 +153,106 @@ public class RepoController implements uk.ac.cam.cl.dtg.teaching.pottery.api.Rep
     return makeRemoteRepo(taskId, usingTestingVersion, validityMinutes, RepoInfo.REMOTE_UNSET);
   }
 
+  /**
+   * Create many repos for a task at once. Either give a count or a list of external ids (e.g. the
+   * ids your LMS uses for the students). The response has one line of JSON per repo which is sent
+   * as soon as the repo is ready.
+   */
+  @POST
+  @Path("/bulk")
+  @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+  @Produces("application/x-ndjson")
+  @ApiOperation(
+    value = "Create many repos for a task",
+    notes =
+        "Give either count or one or more externalId parameters. Each line of the response is a "
+            + "JSON object with the index (and externalId) of the repo and either the repo or an "
+            + "error. Lines are in the order in which the repos were created."
+  )
+  public Response makeRepos(
+      @FormParam("taskId") String taskId,
+      @FormParam("usingTestingVersion") Boolean usingTestingVersion,
+      @FormParam("validityMinutes") Integer validityMinutes,
+      @FormParam("count") Integer count,
+      @FormParam("externalId") List<String> externalIds)
+      throws TaskNotFoundException, RetiredTaskException {
+    if (taskId == null) {
+      throw new TaskNotFoundException("No taskId specified");
+    }
+    boolean testing = usingTestingVersion != null && usingTestingVersion;
+    Date expiryDate = expiryDate(validityMinutes == null ? 60 : validityMinutes);
+    int total = externalIds != null && !externalIds.isEmpty() ? externalIds.size() : 0;
+    if (total == 0) {
+      if (count == null || count <= 0) {
+        throw new BadRequestException("Specify a positive count or at least one externalId");
+      }
+      total = count;
+    }
+    Task t = taskIndex.getTask(taskId);
+    if (t.isRetired()) {
+      throw new RetiredTaskException("Cannot start a new repository for task " + taskId);
+    }
+    // The stream releases the copy once it has been written
+    TaskCopy c = testing ? t.acquireTestingCopy() : t.acquireRegisteredCopy();
+    int repoCount = total;
+    StreamingOutput stream =
+        output -> {
+          ObjectWriter writer =
+              new ObjectMapper().configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false).writer();
+          try (TaskCopy ignored = c) {
+            repoFactory.createInstances(
+                taskId,
+                testing,
+                expiryDate,
+                c,
+                repoCount,
+                new RepoFactory.BulkCreationListener() {
+                  @Override
+                  public void created(int index, RepoInfo repoInfo) {
+                    writeLine(index, "repo", repoInfo);
+                  }
+
+                  @Override
+                  public void failed(int index, Exception e) {
+                    writeLine(index, "error", e.getMessage());
+                  }
+
+                  private void writeLine(int index, String key, Object value) {
+                    Map<String, Object> line = new LinkedHashMap<>();
+                    line.put("index", index);
+                    if (externalIds != null && !externalIds.isEmpty()) {
+                      line.put("externalId", externalIds.get(index));
+                    }
+                    line.put(key, value);
+                    try {
+                      writer.writeValue(output, line);
+                      output.write('\n');
+                      output.flush();
+                    } catch (IOException e) {
+                      throw new UncheckedIOException(e);
+                    }
+                  }
+                });
+          } catch (RepoStorageException e) {
+            throw new IOException("Failed to create repos", e);
+          } catch (UncheckedIOException e) {
+            throw e.getCause();
+          }
+        };
+    return Response.ok(stream).build();
+  }
+
+  /** Work out when a repo created now should expire. -1 means (practically) never. */
+  private static Date expiryDate(int validityMinutes) {
+    Calendar cal = Calendar.getInstance();
+    if (validityMinutes == -1) {
+      cal.add(Calendar.YEAR, 1000);
+    } else {
+      cal.add(Calendar.MINUTE, validityMinutes);
+    }
+    return cal.getTime();
+  }
+
   @Override
   public List<String> listTags(String repoId) throws RepoStorageException, RepoNotFoundException {
     return repoFactory.getInstance(repoId).listTags();
@@ -111,16 +261,30 @@ public class RepoController implements uk.ac.cam.cl.dtg.teaching.pottery.api.Rep
   @Override
   public List<String> listFiles(String repoId, String tag)
       throws RepoStorageException, RepoNotFoundException, RepoTagNotFoundException {
-    return repoFactory.getInstance(repoId).listFiles(tag);
+    List<String> files = repoFactory.getInstance(repoId).listFiles(tag);
+    servletResponse.setHeader(HttpHeaders.CACHE_CONTROL, cacheControlFor(tag));
+    return files;
   }
 
   @Override
   public Response readFile(String repoId, String tag, String fileName)
       throws RepoStorageException, RepoFileNotFoundException, RepoNotFoundException,
           RepoTagNotFoundException {
-    byte[] result = repoFactory.getInstance(repoId).readFile(tag, fileName);
-    StreamingOutput s = output -> output.write(result);
-    return Response.ok(s, MediaType.APPLICATION_OCTET_STREAM).build();
+    RepoFile file = repoFactory.getInstance(repoId).findFile(tag, fileName);
+    EntityTag entityTag = new EntityTag(file.getBlobId());
+    Response.ResponseBuilder notModified = request.evaluatePreconditions(entityTag);
+    if (notModified != null) {
+      return notModified.header(HttpHeaders.CACHE_CONTROL, cacheControlFor(tag)).build();
+    }
+    StreamingOutput s = file::writeTo;
+    return Response.ok(s, MediaType.APPLICATION_OCTET_STREAM)
+        .tag(entityTag)
+        .header(HttpHeaders.CACHE_CONTROL, cacheControlFor(tag))
+        .build();
+  }
+
+  private static String cacheControlFor(String tag) {
+    return Constants.HEAD.equals(tag) ? CACHE_CONTROL_REVALIDATE : CACHE_CONTROL_IMMUTABLE;
   }
 
   @Override
@@ -134,6 +298,71 @@ public class RepoController implements uk.ac.cam.cl.dtg.teaching.pottery.api.Rep
     return Response.ok().entity("{\"message\":\"OK\"}").build();
   }
 
+  /**
+   * Update and delete several files at HEAD in a single commit. Each part of the form is a file to
+   * update: the name of the part is the filename relative to the root of the repository.
+   */
+  @POST
+  @Path("/{repoId}/batch")
+  @Consumes(MediaType.MULTIPART_FORM_DATA)
+  @Produces("application/json")
+  @ApiOperation(
+    value = "Update and delete several files in a single commit",
+    notes = "Each part of the form is a file to update. The part name is the filename."
+  )
+  public Response updateFiles(
+      @PathParam("repoId") String repoId,
+      @QueryParam("delete") List<String> deletions,
+      MultipartFormDataInput input)
+      throws RepoStorageException, RepoExpiredException, RepoFileNotFoundException,
+          RepoNotFoundException {
+    Map<String, byte[]> updates = new LinkedHashMap<>();
+    for (Map.Entry<String, List<InputPart>> e : input.getFormDataMap().entrySet()) {
+      for (InputPart part : e.getValue()) {
+        try (InputStream in = part.getBody(InputStream.class, null)) {
+          updates.put(e.getKey(), IOUtils.toByteArray(in));
+        } catch (IOException ex) {
+          throw new RepoStorageException("Failed to read uploaded file " + e.getKey(), ex);
+        }
+      }
+    }
+    repoFactory.getInstance(repoId).updateFiles(updates, deletions);
+    return Response.ok().entity("{\"message\":\"OK\"}").build();
+  }
+
+  /**
+   * Update and delete several files at HEAD in a single commit. The request body is a zip archive
+   * of the files to update.
+   */
+  @POST
+  @Path("/{repoId}/batch")
+  @Consumes("application/zip")
+  @Produces("application/json")
+  @ApiOperation(
+    value = "Update and delete several files in a single commit",
+    notes = "The body is a zip archive of the files to update."
+  )
+  public Response updateFilesFromArchive(
+      @PathParam("repoId") String repoId,
+      @QueryParam("delete") List<String> deletions,
+      InputStream archive)
+      throws RepoStorageException, RepoExpiredException, RepoFileNotFoundException,
+          RepoNotFoundException {
+    Map<String, byte[]> updates = new LinkedHashMap<>();
+    try (ZipInputStream zip = new ZipInputStream(archive)) {
+      ZipEntry entry;
+      while ((entry = zip.getNextEntry()) != null) {
+        if (!entry.isDirectory()) {
+          updates.put(entry.getName(), IOUtils.toByteArray(zip));
+        }
+      }
+    } catch (IOException e) {
+      throw new RepoStorageException("Failed to read uploaded archive", e);
+    }
+    repoFactory.getInstance(repoId).updateFiles(updates, deletions);
+    return Response.ok().entity("{\"message\":\"OK\"}").build();
+  }
+
   @Override
   public Response deleteFile(String repoId, String tag, String fileName)
       throws RepoStorageException, RepoExpiredException, RepoFileNotFoundException,
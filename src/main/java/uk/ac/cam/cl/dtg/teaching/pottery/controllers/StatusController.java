@@ -18,13 +18,28 @@
 
 package uk.ac.cam.cl.dtg.teaching.pottery.controllers;
 
+import com.google.common.cache.CacheStats;
 import com.google.inject.Inject;
 import java.util.Map;
 import java.util.TreeMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.ac.cam.cl.dtg.teaching.docker.ApiUnavailableException;
+import uk.ac.cam.cl.dtg.teaching.pottery.GitMaintenance;
+import uk.ac.cam.cl.dtg.teaching.pottery.HeadResolver;
 import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerManager;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.CompletedSubmissionCache;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RemoteMirrors;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepositoryPool;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.StorageReclaimer;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.SubmissionResultCache;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.TestingWorkspaces;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.WarmRepoPool;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.WriteBehindFlusher;
+import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.AdaptiveConcurrency;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.Stage;
 import uk.ac.cam.cl.dtg.teaching.pottery.worker.Worker;
 
 public class StatusController implements uk.ac.cam.cl.dtg.teaching.pottery.api.StatusController {
@@ -35,27 +50,123 @@ public class StatusController implements uk.ac.cam.cl.dtg.teaching.pottery.api.S
 
   private ContainerManager containerManager;
 
+  private RepoFactory repoFactory;
+
+  private HeadResolver headResolver;
+
+  private GitMaintenance gitMaintenance;
+
+  private TaskFactory taskFactory;
+
+  private AdaptiveConcurrency adaptiveConcurrency;
+
   /** Create a new StatusController. */
   @Inject
-  public StatusController(Worker worker, ContainerManager containerManager) {
+  public StatusController(
+      Worker worker,
+      ContainerManager containerManager,
+      RepoFactory repoFactory,
+      TaskFactory taskFactory,
+      HeadResolver headResolver,
+      GitMaintenance gitMaintenance,
+      AdaptiveConcurrency adaptiveConcurrency) {
     super();
     this.worker = worker;
     this.containerManager = containerManager;
+    this.repoFactory = repoFactory;
+    this.taskFactory = taskFactory;
+    this.headResolver = headResolver;
+    this.gitMaintenance = gitMaintenance;
+    this.adaptiveConcurrency = adaptiveConcurrency;
   }
 
   @Override
   public Map<String, String> getStatus() {
     Map<String, String> response = new TreeMap<>();
     response.put("Worker.numThreads", String.valueOf(worker.getNumThreads()));
+    for (Stage stage : Stage.values()) {
+      response.put(
+          "Worker.numThreads." + stage.name().toLowerCase(),
+          String.valueOf(worker.getNumThreads(stage)));
+    }
+    response.put(
+        "AdaptiveConcurrency.enabled", String.valueOf(adaptiveConcurrency.isEnabled()));
+    response.put("AdaptiveConcurrency.limit", String.valueOf(adaptiveConcurrency.getLimit()));
+    response.put("AdaptiveConcurrency.lastDecision", adaptiveConcurrency.getLastDecision());
     response.put("Worker.queueSize", String.valueOf(worker.getQueue().size()));
     response.put("Worker.smoothedWaitTime", String.valueOf(worker.getSmoothedWaitTime()));
+    response.put("Worker.ramBudgetMb", String.valueOf(worker.getRamBudgetMegabytes()));
+    response.put("Worker.reservedRamMb", String.valueOf(worker.getReservedRamMegabytes()));
+    response.put("Worker.cpuSlots", String.valueOf(worker.getCpuSlots()));
+    response.put("Worker.reservedCpuSlots", String.valueOf(worker.getReservedCpuSlots()));
+    response.put(
+        "Worker.waitingForResources", String.valueOf(worker.getWaitingForResources()));
     response.put(
         "ContainerManager.smoothedCallTime",
         String.valueOf(containerManager.getSmoothedCallTime()));
     response.put("ContainerManager.apiStatus", String.valueOf(containerManager.getApiStatus()));
+    putCacheStats(response, "RepoCache", repoFactory.getCacheStats());
+    putCacheStats(response, "TaskCache", taskFactory.getCacheStats());
+    RepositoryPool repositoryPool = repoFactory.getRepositoryPool();
+    response.put("RepositoryPool.size", String.valueOf(repositoryPool.getSize()));
+    response.put("RepositoryPool.hits", String.valueOf(repositoryPool.getHits()));
+    response.put("RepositoryPool.misses", String.valueOf(repositoryPool.getMisses()));
+    response.put("RepositoryPool.evictions", String.valueOf(repositoryPool.getEvictions()));
+    TestingWorkspaces testingWorkspaces = repoFactory.getTestingWorkspaces();
+    response.put("TestingWorkspaces.active", String.valueOf(testingWorkspaces.getActive()));
+    response.put("TestingWorkspaces.idle", String.valueOf(testingWorkspaces.getIdle()));
+    WriteBehindFlusher writeBehindFlusher = repoFactory.getWriteBehindFlusher();
+    response.put("WriteBehind.pending", String.valueOf(writeBehindFlusher.getPending()));
+    response.put("WriteBehind.flushes", String.valueOf(writeBehindFlusher.getFlushes()));
+    WarmRepoPool warmRepoPool = repoFactory.getWarmRepoPool();
+    response.put("WarmRepoPool.depth", String.valueOf(warmRepoPool.getDepth()));
+    response.put("WarmRepoPool.hits", String.valueOf(warmRepoPool.getHits()));
+    response.put("WarmRepoPool.misses", String.valueOf(warmRepoPool.getMisses()));
+    response.put("WarmRepoPool.provisioned", String.valueOf(warmRepoPool.getProvisioned()));
+    SubmissionResultCache resultCache = repoFactory.getSubmissionResultCache();
+    response.put("SubmissionResultCache.hits", String.valueOf(resultCache.getHits()));
+    response.put("SubmissionResultCache.misses", String.valueOf(resultCache.getMisses()));
+    response.put("SubmissionResultCache.hitRate", String.valueOf(resultCache.getHitRate()));
+    CompletedSubmissionCache completedSubmissions = repoFactory.getCompletedSubmissions();
+    response.put(
+        "CompletedSubmissionCache.size", String.valueOf(completedSubmissions.getSize()));
+    response.put(
+        "CompletedSubmissionCache.bytes", String.valueOf(completedSubmissions.getWeight()));
+    putCacheStats(response, "CompletedSubmissionCache", completedSubmissions.getStats());
+    StorageReclaimer storageReclaimer = repoFactory.getStorageReclaimer();
+    response.put(
+        "StorageReclaimer.reclaimedBytes", String.valueOf(storageReclaimer.getReclaimedBytes()));
+    response.put(
+        "StorageReclaimer.archivedRepos", String.valueOf(storageReclaimer.getArchivedRepos()));
+    response.put(
+        "StorageReclaimer.deletedTestingDirectories",
+        String.valueOf(storageReclaimer.getDeletedTestingDirectories()));
+    response.put(
+        "StorageReclaimer.removedMirrors", String.valueOf(storageReclaimer.getRemovedMirrors()));
+    RemoteMirrors remoteMirrors = repoFactory.getRemoteMirrors();
+    response.put("RemoteMirrors.mirrors", String.valueOf(remoteMirrors.getMirrors()));
+    response.put("RemoteMirrors.upToDate", String.valueOf(remoteMirrors.getUpToDate()));
+    response.put("RemoteMirrors.fetches", String.valueOf(remoteMirrors.getFetches()));
+    response.put(
+        "RemoteMirrors.averageFetchMs", String.valueOf(remoteMirrors.getAverageFetchTimeMs()));
+    response.put(
+        "RemoteMirrors.maxStalenessMs", String.valueOf(remoteMirrors.getMaxStalenessMs()));
+    response.put("HeadResolver.hits", String.valueOf(headResolver.getHits()));
+    response.put("HeadResolver.misses", String.valueOf(headResolver.getMisses()));
+    response.put("GitMaintenance.tracked", String.valueOf(gitMaintenance.getTracked()));
+    response.put("GitMaintenance.gcRuns", String.valueOf(gitMaintenance.getGcRuns()));
+    response.put("GitMaintenance.skippedBusy", String.valueOf(gitMaintenance.getSkippedBusy()));
     return response;
   }
 
+  private static void putCacheStats(Map<String, String> response, String name, CacheStats stats) {
+    response.put(name + ".hits", String.valueOf(stats.hitCount()));
+    response.put(name + ".misses", String.valueOf(stats.missCount()));
+    response.put(name + ".loadFailures", String.valueOf(stats.loadExceptionCount()));
+    response.put(name + ".averageLoadMs", String.valueOf(stats.averageLoadPenalty() / 1e6));
+    response.put(name + ".evictions", String.valueOf(stats.evictionCount()));
+  }
+
   @Override
   public String checkDockerVersion() {
     try {
@@ -19,12 +19,23 @@
 package uk.ac.cam.cl.dtg.teaching.pottery.controllers;
 
 import com.google.inject.Inject;
+import com.wordnik.swagger.annotations.ApiOperation;
 import java.util.List;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.FormParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerManager;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.JobStatus;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.AdaptiveConcurrency;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.Stage;
 import uk.ac.cam.cl.dtg.teaching.pottery.worker.Worker;
 
 public class WorkerController implements uk.ac.cam.cl.dtg.teaching.pottery.api.WorkerController {
@@ -35,12 +46,16 @@ public class WorkerController implements uk.ac.cam.cl.dtg.teaching.pottery.api.W
 
   private ContainerManager containerManager;
 
+  private AdaptiveConcurrency adaptiveConcurrency;
+
   /** Create a new WorkerController. */
   @Inject
-  public WorkerController(Worker worker, ContainerManager containerManager) {
+  public WorkerController(
+      Worker worker, ContainerManager containerManager, AdaptiveConcurrency adaptiveConcurrency) {
     super();
     this.worker = worker;
     this.containerManager = containerManager;
+    this.adaptiveConcurrency = adaptiveConcurrency;
   }
 
   @Override
@@ -50,10 +65,54 @@ public class WorkerController implements uk.ac.cam.cl.dtg.teaching.pottery.api.W
 
   @Override
   public Response resize(int numThreads) {
+    if (numThreads <= 0) {
+      throw new BadRequestException("numThreads must be positive");
+    }
     worker.rebuildThreadPool(numThreads);
     return Response.ok().entity("{ \"message\":\"Thread pool resized\" }").build();
   }
 
+  /** Change the number of threads for one stage of the worker. */
+  @POST
+  @Path("/resize/{stage}")
+  @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+  @Produces(MediaType.APPLICATION_JSON)
+  @ApiOperation(
+    value = "Change the number of threads for one stage",
+    notes = "Stages are general, checkout, compilation, harness and validator."
+  )
+  public Response resizeStage(
+      @PathParam("stage") String stage, @FormParam("numThreads") int numThreads) {
+    Stage s;
+    try {
+      s = Stage.valueOf(stage.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException("Unknown stage " + stage);
+    }
+    if (numThreads <= 0) {
+      throw new BadRequestException("numThreads must be positive");
+    }
+    worker.rebuildThreadPool(s, numThreads);
+    return Response.ok().entity("{ \"message\":\"Thread pool resized\" }").build();
+  }
+
+  /** Switch the automatic adjustment of the number of containers which may run on or off. */
+  @POST
+  @Path("/adaptive")
+  @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+  @Produces(MediaType.APPLICATION_JSON)
+  @ApiOperation(
+    value = "Switch adaptive concurrency on or off",
+    notes =
+        "When enabled the number of containers which may run at once is adjusted automatically "
+            + "based on the container API call time, the host load and the queue wait time."
+  )
+  public Response setAdaptiveConcurrency(@FormParam("enabled") boolean enabled) {
+    adaptiveConcurrency.setEnabled(enabled);
+    String message = "Adaptive concurrency " + (enabled ? "enabled" : "disabled");
+    return Response.ok().entity("{ \"message\":\"" + message + "\" }").build();
+  }
+
   @Override
   public Response setTimeoutMultiplier(int multiplier) {
     containerManager.setTimeoutMultiplier(multiplier);
@@ -61,6 +61,15 @@ public class InMemoryDatabase implements Database {
                 + "    datescheduled timestamp without time zone, "
                 + "    interpretation character varying(255)"
                 + ");");
+        queryRunner.update(
+            "CREATE TABLE submissioncache ("
+                + "    treeid character varying(255) NOT NULL, "
+                + "    copyid character varying(255) NOT NULL, "
+                + "    image character varying(255) NOT NULL, "
+                + "    repoid character varying(255) NOT NULL, "
+                + "    tag character varying(255) NOT NULL, "
+                + "    PRIMARY KEY (treeid, copyid, image)"
+                + ");");
         queryRunner.update(
             "CREATE TABLE tasks ("
                 + "    taskid character varying(255) NOT NULL, "
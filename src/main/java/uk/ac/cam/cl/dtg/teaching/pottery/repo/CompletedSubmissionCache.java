@@ -0,0 +1,161 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.RepoConfig;
+import uk.ac.cam.cl.dtg.teaching.pottery.model.Submission;
+
+/**
+ * Submissions which have finished testing and have been stored in the database, indexed by repoId
+ * and tag.
+ *
+ * <p>Repo objects hand their submissions over to this cache once they are stored so that the
+ * results of old test runs are not held in memory for as long as the repo is. The cache is shared
+ * by all repos and is bounded by the approximate amount of memory used by the submissions in it.
+ * Anything not found here should be loaded from the database.
+ */
+public class CompletedSubmissionCache {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  /** Rough size in bytes of a submission with no output (the object, its key and its fields). */
+  private static final int BASE_WEIGHT = 256;
+
+  private final Cache<Key, Weighed> cache;
+
+  /** The total weight of the entries in the cache. */
+  private final AtomicLong weight = new AtomicLong(0);
+
+  /** Create a new cache with the size limit from the config. */
+  public CompletedSubmissionCache(RepoConfig config) {
+    this.cache =
+        CacheBuilder.newBuilder()
+            .maximumWeight(config.getCompletedSubmissionCacheMaxBytes())
+            .<Key, Weighed>weigher((key, value) -> value.weight)
+            .removalListener(
+                (RemovalListener<Key, Weighed>)
+                    notification -> weight.addAndGet(-notification.getValue().weight))
+            .recordStats()
+            .build();
+  }
+
+  /** Add this submission to the cache. It should already have been stored in the database. */
+  void put(Submission submission) {
+    Weighed value = new Weighed(submission);
+    // Add the weight first so that the removal of any replaced entry never takes it negative
+    weight.addAndGet(value.weight);
+    cache.put(new Key(submission.getRepoId(), submission.getTag()), value);
+  }
+
+  /** Return the submission for this tag or null if it's not in the cache. */
+  Submission get(String repoId, String tag) {
+    Weighed value = cache.getIfPresent(new Key(repoId, tag));
+    return value == null ? null : value.submission;
+  }
+
+  /** Remove the submission for this tag from the cache. */
+  void invalidate(String repoId, String tag) {
+    cache.invalidate(new Key(repoId, tag));
+  }
+
+  /** The number of submissions in the cache. */
+  public long getSize() {
+    return cache.size();
+  }
+
+  /** The approximate number of bytes used by the submissions in the cache. */
+  public long getWeight() {
+    return weight.get();
+  }
+
+  public CacheStats getStats() {
+    return cache.stats();
+  }
+
+  /**
+   * Estimate the memory used by a submission. This is dominated by the compilation output and the
+   * test steps so we count two bytes for each of their characters on top of a fixed overhead.
+   */
+  private static int estimateWeight(Submission submission) {
+    long chars = length(submission.getCompilationOutput()) + length(submission.getErrorMessage());
+    if (submission.getTestSteps() != null) {
+      try {
+        chars += MAPPER.writeValueAsString(submission.getTestSteps()).length();
+      } catch (JsonProcessingException e) {
+        // Shouldn't happen since we managed to store them in the database. Don't count them.
+      }
+    }
+    return (int) Math.min(Integer.MAX_VALUE, BASE_WEIGHT + 2 * chars);
+  }
+
+  private static int length(String s) {
+    return s == null ? 0 : s.length();
+  }
+
+  /** A submission along with its weight so that we only need to estimate it once. */
+  private static final class Weighed {
+
+    private final Submission submission;
+
+    private final int weight;
+
+    private Weighed(Submission submission) {
+      this.submission = submission;
+      this.weight = estimateWeight(submission);
+    }
+  }
+
+  /** Identifies a submission. */
+  private static final class Key {
+
+    private final String repoId;
+
+    private final String tag;
+
+    private Key(String repoId, String tag) {
+      this.repoId = repoId;
+      this.tag = tag;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key that = (Key) o;
+      return repoId.equals(that.repoId) && tag.equals(that.tag);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(repoId, tag);
+    }
+  }
+}
@@ -0,0 +1,292 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import com.google.common.util.concurrent.RateLimiter;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.RefSpec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.Stoppable;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.RepoConfig;
+
+/**
+ * Local bare mirrors of remote repos.
+ *
+ * <p>Rather than cloning a remote repo for every submission we keep a mirror of it on this node.
+ * When a submission asks for a tag or commit which isn't in the mirror we fetch just that tag (or
+ * the branches if we're looking for a commit). Fetches only transfer objects that we don't already
+ * have. The files to test are then written out of the mirror by the TreeMaterializer in the same
+ * way as for local repos.
+ *
+ * <p>Handles on the mirrors are borrowed from the RepositoryPool so the number of open mirrors is
+ * bounded along with everything else in the pool. The StorageReclaimer removes the mirrors of
+ * remote repos once they have expired.
+ */
+public class RemoteMirrors implements Stoppable {
+
+  protected static final Logger LOG = LoggerFactory.getLogger(RemoteMirrors.class);
+
+  private final RepoConfig config;
+
+  private final RepositoryPool repositoryPool;
+
+  /** Mirrors which have been used since we started, indexed by repoId. */
+  private final ConcurrentHashMap<String, Mirror> mirrors = new ConcurrentHashMap<>();
+
+  private final AtomicLong upToDate = new AtomicLong(0);
+
+  private final AtomicLong fetches = new AtomicLong(0);
+
+  private final AtomicLong totalFetchTimeMs = new AtomicLong(0);
+
+  RemoteMirrors(RepoConfig config, RepositoryPool repositoryPool) {
+    this.config = config;
+    this.repositoryPool = repositoryPool;
+  }
+
+  /**
+   * Find the tree to test for a tag (or commit SHA) of a remote repo. This is fetched into the
+   * mirror first if necessary.
+   *
+   * @param repoId the repo
+   * @param remote the location of the remote repository
+   * @param tag the tag or commit SHA to test
+   * @return the id of the tree in the mirror
+   * @throws IOException if the tag can't be found or the fetch fails
+   */
+  ObjectId fetchTree(String repoId, String remote, String tag) throws IOException {
+    Mirror mirror = lockMirror(repoId);
+    try {
+      synchronized (mirror) {
+        createIfMissing(mirror.directory);
+        try (RepositoryPool.Lease lease = open(repoId, mirror)) {
+          return fetchTree(mirror, lease.getRepository(), remote, tag);
+        }
+      }
+    } finally {
+      mirror.lock.readLock().unlock();
+    }
+  }
+
+  private ObjectId fetchTree(Mirror mirror, Repository repository, String remote, String tag)
+      throws IOException {
+    ObjectId treeId = resolveTree(repository, tag, false);
+    if (treeId != null) {
+      upToDate.incrementAndGet();
+      return treeId;
+    }
+    if (ObjectId.isId(tag)) {
+      // We can't ask for a commit by its SHA so fetch the branches and then the tags
+      fetch(mirror, repository, remote, new RefSpec("+refs/heads/*:refs/heads/*"));
+      treeId = resolveTree(repository, tag, false);
+      if (treeId == null) {
+        fetch(mirror, repository, remote, new RefSpec("+refs/tags/*:refs/tags/*"));
+      }
+    } else {
+      try {
+        fetch(mirror, repository, remote, new RefSpec("+refs/tags/" + tag + ":refs/tags/" + tag));
+      } catch (IOException e) {
+        fetch(mirror, repository, remote, new RefSpec("+refs/heads/" + tag + ":refs/heads/" + tag));
+      }
+    }
+    treeId = resolveTree(repository, tag, true);
+    if (treeId == null) {
+      throw new IOException("Failed to find " + tag + " in " + remote);
+    }
+    return treeId;
+  }
+
+  /**
+   * Write the tree out of the mirror into the target directory.
+   *
+   * @see TreeMaterializer#materialize
+   */
+  TreeMaterializer.Snapshot materialize(
+      String repoId, ObjectId treeId, File targetDirectory, TreeMaterializer.Snapshot previous)
+      throws IOException {
+    Mirror mirror = lockMirror(repoId);
+    try (RepositoryPool.Lease lease = open(repoId, mirror)) {
+      return TreeMaterializer.materialize(
+          lease.getRepository(), treeId, targetDirectory, previous);
+    } finally {
+      mirror.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Delete the mirror of this repo from the disk at the rate allowed by the limiter. The mirror is
+   * created again if the repo is used afterwards.
+   *
+   * @return the number of bytes freed or -1 if there was no mirror
+   */
+  long remove(String repoId, RateLimiter rateLimiter) throws IOException {
+    Mirror mirror = mirrors.computeIfAbsent(repoId, this::newMirror);
+    mirror.lock.writeLock().lock();
+    try {
+      if (mirror.removed) {
+        return -1;
+      }
+      mirror.removed = true;
+      mirrors.remove(repoId, mirror);
+      // No one holds a lease whilst we have the write lock so this closes the handle straight away
+      repositoryPool.invalidate(poolKey(repoId));
+      if (!mirror.directory.exists()) {
+        return -1;
+      }
+      return StorageReclaimer.deleteRecursive(mirror.directory, rateLimiter);
+    } finally {
+      mirror.lock.writeLock().unlock();
+    }
+  }
+
+  /** The number of mirrors which have been used on this node since it started. */
+  public int getMirrors() {
+    return mirrors.size();
+  }
+
+  /** The number of times that the mirror already had what we needed. */
+  public long getUpToDate() {
+    return upToDate.get();
+  }
+
+  /** The number of fetches from remote repositories. */
+  public long getFetches() {
+    return fetches.get();
+  }
+
+  /** The mean time taken to fetch from a remote repository. */
+  public double getAverageFetchTimeMs() {
+    long n = fetches.get();
+    return n == 0 ? 0.0 : (double) totalFetchTimeMs.get() / n;
+  }
+
+  /** The longest time since any mirror in use was last fetched into. */
+  public long getMaxStalenessMs() {
+    long now = System.currentTimeMillis();
+    return mirrors.values().stream().mapToLong(m -> now - m.lastFetch).max().orElse(0);
+  }
+
+  @Override
+  public void stop() {
+    // The handles are closed when the RepositoryPool is stopped
+    mirrors.clear();
+  }
+
+  /** Find the mirror for this repo and take its read lock. */
+  private Mirror lockMirror(String repoId) {
+    while (true) {
+      Mirror mirror = mirrors.computeIfAbsent(repoId, this::newMirror);
+      mirror.lock.readLock().lock();
+      if (!mirror.removed) {
+        return mirror;
+      }
+      // Removed whilst we were waiting for the lock so look again
+      mirror.lock.readLock().unlock();
+    }
+  }
+
+  private Mirror newMirror(String repoId) {
+    return new Mirror(config.getRemoteMirrorDir(repoId));
+  }
+
+  private RepositoryPool.Lease open(String repoId, Mirror mirror) throws IOException {
+    return repositoryPool.acquireBare(poolKey(repoId), mirror.directory);
+  }
+
+  /** The key for a mirror in the RepositoryPool. This can't clash with any repoId. */
+  private static String poolKey(String repoId) {
+    return "mirror/" + repoId;
+  }
+
+  private static void createIfMissing(File mirrorDirectory) throws IOException {
+    if (!mirrorDirectory.exists()) {
+      try {
+        Git.init().setBare(true).setDirectory(mirrorDirectory).call().close();
+      } catch (GitAPIException e) {
+        throw new IOException("Failed to create mirror in " + mirrorDirectory, e);
+      }
+    }
+  }
+
+  private void fetch(Mirror mirror, Repository repository, String remote, RefSpec refSpec)
+      throws IOException {
+    long start = System.currentTimeMillis();
+    try (Git git = Git.wrap(repository)) {
+      git.fetch().setRemote(remote).setRefSpecs(refSpec).setCheckFetchedObjects(true).call();
+    } catch (GitAPIException e) {
+      throw new IOException("Failed to fetch " + refSpec.getSource() + " from " + remote, e);
+    } finally {
+      long end = System.currentTimeMillis();
+      totalFetchTimeMs.addAndGet(end - start);
+      fetches.incrementAndGet();
+      mirror.lastFetch = end;
+    }
+  }
+
+  /**
+   * Find the tree for this tag or commit SHA in the mirror or return null if it isn't there. Tags
+   * don't move so we can use one we already have. Branches might have moved so we only look for
+   * them if includeBranches is set (i.e. we've just fetched them).
+   */
+  private static ObjectId resolveTree(Repository repository, String tag, boolean includeBranches)
+      throws IOException {
+    if (ObjectId.isId(tag)) {
+      if (!repository.getObjectDatabase().has(ObjectId.fromString(tag))) {
+        return null;
+      }
+      return repository.resolve(tag + "^{tree}");
+    }
+    Ref ref = repository.exactRef(Constants.R_TAGS + tag);
+    if (ref == null && includeBranches) {
+      ref = repository.exactRef(Constants.R_HEADS + tag);
+    }
+    return ref == null ? null : repository.resolve(ref.getName() + "^{tree}");
+  }
+
+  private static class Mirror {
+
+    private final File directory;
+
+    /** Fetching and materializing take the read lock. Removing the mirror takes the write lock. */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** True once the mirror has been removed from the disk. Guarded by lock. */
+    private boolean removed = false;
+
+    /** When we last fetched into this mirror. */
+    private volatile long lastFetch;
+
+    private Mirror(File directory) {
+      this.directory = directory;
+      long fetchHeadModified = new File(directory, "FETCH_HEAD").lastModified();
+      this.lastFetch = fetchHeadModified != 0 ? fetchHeadModified : System.currentTimeMillis();
+    }
+  }
+}
@@ -19,31 +19,59 @@
 package uk.ac.cam.cl.dtg.teaching.pottery.repo;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.util.concurrent.RateLimiter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
-import org.apache.commons.io.IOUtils;
-import org.eclipse.jgit.api.CommitCommand;
 import org.eclipse.jgit.api.Git;
-import org.eclipse.jgit.api.ResetCommand;
-import org.eclipse.jgit.api.ResetCommand.ResetType;
 import org.eclipse.jgit.api.errors.GitAPIException;
-import org.eclipse.jgit.api.errors.JGitInternalException;
-import org.eclipse.jgit.api.errors.RefNotFoundException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
 import org.eclipse.jgit.errors.RevisionSyntaxException;
+import org.eclipse.jgit.lib.CommitBuilder;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.ObjectId;
-import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TagBuilder;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.BundleWriter;
+import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.treewalk.TreeWalk;
 import org.eclipse.jgit.treewalk.filter.PathFilter;
 import org.slf4j.Logger;
@@ -52,6 +80,8 @@ import uk.ac.cam.cl.dtg.teaching.docker.ApiUnavailableException;
 import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
 import uk.ac.cam.cl.dtg.teaching.pottery.FourLevelLock;
 import uk.ac.cam.cl.dtg.teaching.pottery.FourLevelLock.AutoCloseableLock;
+import uk.ac.cam.cl.dtg.teaching.pottery.GitMaintenance;
+import uk.ac.cam.cl.dtg.teaching.pottery.HeadResolver;
 import uk.ac.cam.cl.dtg.teaching.pottery.TransactionQueryRunner;
 import uk.ac.cam.cl.dtg.teaching.pottery.config.RepoConfig;
 import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerExecResponse;
@@ -68,13 +98,17 @@ import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.SubmissionAlreadyScheduledEx
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.SubmissionNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.SubmissionStorageException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskNotFoundException;
+import uk.ac.cam.cl.dtg.teaching.pottery.model.ContainerRestrictions;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.RepoInfo;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.Submission;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.TaskInfo;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.TestingWorkspaces.TestingWorkspace;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.Task;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskCopy;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskIndex;
 import uk.ac.cam.cl.dtg.teaching.pottery.worker.Job;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.ResourceRequest;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.Stage;
 import uk.ac.cam.cl.dtg.teaching.pottery.worker.Worker;
 import uk.ac.cam.cl.dtg.teaching.programmingtest.containerinterface.HarnessResponse;
 import uk.ac.cam.cl.dtg.teaching.programmingtest.containerinterface.Interpretation;
@@ -83,26 +117,45 @@ import uk.ac.cam.cl.dtg.teaching.programmingtest.containerinterface.ValidatorRes
 /**
  * A repo represents the candidate's attempt at a task.
  *
- * <p>We store the local version of the repo in a directory in a non-bare git repo. File updates and
- * tags etc. are made to this repo directly.
+ * <p>We store the local version of the repo in a directory in a non-bare git repo. File updates are
+ * committed straight into the git object database without going through the working directory or
+ * the index. The working directory is only brought up to date when we need it (copying in files
+ * from the task).
  *
- * <p>When we run the tests we make a clone of the repo directory at the specified tag so as to test
- * in isolation of new changes
+ * <p>When we run the tests we write out the files at the specified tag into a separate testing
+ * workspace (straight from the git object database) so as to test in isolation of new changes. Each
+ * submission has its own workspace so several tags can be tested at once.
  *
- * <p>If there is a remote set then we don't store the local version but we do make a clone for each
- * test. All the apis for listing the contents of the repo and changing it are disabled when we use
- * a remote.
+ * <p>If there is a remote set then we don't store the local version. Instead we keep a bare mirror
+ * of the remote on this node (see RemoteMirrors) and only fetch the tag being tested if the mirror
+ * doesn't already have it. The TreeMaterializer then writes the tree out of the mirror into the
+ * testing workspace in the same way as for a local repo. All the apis for listing the contents of
+ * the repo and changing it are disabled when we use a remote.
  */
 public class Repo {
 
   protected static final Logger LOG = LoggerFactory.getLogger(Repo.class);
 
+  /** The number of times createNewTag tries to find an unused tag name before giving up. */
+  private static final int MAX_TAG_ATTEMPTS = 10;
+
   private final RepoInfo repoInfo;
 
   /** The directory holding this repository. */
   private final File repoDirectory;
 
-  private final File repoTestingDirectory;
+  /** The bundle that this repo is packed into whilst it is archived. */
+  private final File archiveFile;
+
+  /** Held whilst archiving or rehydrating the repo. */
+  private final Object archiveLock = new Object();
+
+  /**
+   * Readers hold the read lock for as long as they have the repository open, including those which
+   * don't take the FourLevelLock. Archiving holds the write lock so that the directory is never
+   * deleted from under a reader.
+   */
+  private final ReentrantReadWriteLock archiveGuard = new ReentrantReadWriteLock();
 
   private final String webtagPrefix;
 
@@ -112,17 +165,83 @@ public class Repo {
    */
   private final Object lockFields = new Object();
 
-  /** Protects access to the git repo and working directory. */
+  /**
+   * Protects the working directory and serialises changes to HEAD. Reads of committed objects
+   * (readFile, listFiles, listTags etc.) don't take this lock: they resolve the ref they need once
+   * and then read immutable objects from the git database. Writers publish new commits and tags
+   * with an atomic ref update so readers always see either the old or the new version.
+   */
   private final FourLevelLock lock = new FourLevelLock();
 
-  /** A map of submissions that have been tested. Keys are tags. You can only have one per tag. */
+  /**
+   * A map of submissions which are being tested or which have not been stored in the database.
+   * Keys are tags. You can only have one per tag. Once stored, submissions are moved to the
+   * CompletedSubmissionCache.
+   */
   private ConcurrentHashMap<String, Submission> activeSubmissions;
 
-  private Repo(RepoInfo repoInfo, RepoConfig c) {
+  /** Submissions which have been stored in the database. Shared with other repos. */
+  private final CompletedSubmissionCache completedSubmissions;
+
+  /** The web tags in this repository. */
+  private final TagIndex tagIndex;
+
+  /** Pool of open git repository handles. Our handle is keyed by our repoId. */
+  private final RepositoryPool repositoryPool;
+
+  /** Commits buffered file updates when in write-behind mode. */
+  private final WriteBehindFlusher writeBehindFlusher;
+
+  /** Looks up (and caches) the head of remote repos. */
+  private final HeadResolver headResolver;
+
+  /** Garbage collects the git database once we've stopped writing to it. */
+  private final GitMaintenance gitMaintenance;
+
+  /**
+   * How GitMaintenance sees this repo. This comes from RepoFactory because GitMaintenance keeps it
+   * for longer than this object might be cached for.
+   */
+  private final GitMaintenance.Target maintenanceTarget;
+
+  /** How long to buffer file updates for before committing them. 0 means don't buffer. */
+  private final long writeBehindWindowMs;
+
+  /** Buffered updates are committed straight away once they reach this size. */
+  private final long writeBehindMaxBytes;
+
+  /**
+   * File updates which have not been committed yet, indexed by path. Entries are only removed once
+   * they have been committed so that reads can always see them either here or at HEAD. Guarded by
+   * itself.
+   */
+  private final Map<String, byte[]> pendingUpdates = new LinkedHashMap<>();
+
+  /** The total size of pendingUpdates. Guarded by pendingUpdates. */
+  private long pendingBytes = 0;
+
+  private Repo(
+      RepoInfo repoInfo,
+      RepoConfig c,
+      RepositoryPool repositoryPool,
+      WriteBehindFlusher writeBehindFlusher,
+      HeadResolver headResolver,
+      GitMaintenance gitMaintenance,
+      GitMaintenance.Target maintenanceTarget,
+      CompletedSubmissionCache completedSubmissions) {
     this.repoInfo = repoInfo;
+    this.gitMaintenance = gitMaintenance;
+    this.maintenanceTarget = maintenanceTarget;
+    this.repositoryPool = repositoryPool;
+    this.writeBehindFlusher = writeBehindFlusher;
+    this.headResolver = headResolver;
+    this.completedSubmissions = completedSubmissions;
+    this.writeBehindWindowMs = c.getWriteBehindWindowMs();
+    this.writeBehindMaxBytes = c.getWriteBehindMaxBytes();
     this.repoDirectory = c.getRepoDir(repoInfo.getRepoId());
-    this.repoTestingDirectory = c.getRepoTestingDir(repoInfo.getRepoId());
+    this.archiveFile = c.getRepoArchiveFile(repoInfo.getRepoId());
     this.webtagPrefix = c.getWebtagPrefix();
+    this.tagIndex = new TagIndex(webtagPrefix);
     this.activeSubmissions = new ConcurrentHashMap<>();
   }
 
@@ -133,10 +252,25 @@ public class Repo {
    * @param repoId the ID of the repo to open
    * @param config server configuration
    * @param database database connection
+   * @param repositoryPool pool of open repository handles
+   * @param writeBehindFlusher commits buffered file updates
+   * @param headResolver looks up the head of remote repos
+   * @param gitMaintenance garbage collects the repository
+   * @param maintenanceTarget how gitMaintenance sees the repository
+   * @param completedSubmissions holds submissions once they have been stored
    * @return a repo object for this repository
    * @throws RepoNotFoundException if the repository does not exist or if it can't be opened
    */
-  static Repo openRepo(String repoId, RepoConfig config, Database database)
+  static Repo openRepo(
+      String repoId,
+      RepoConfig config,
+      Database database,
+      RepositoryPool repositoryPool,
+      WriteBehindFlusher writeBehindFlusher,
+      HeadResolver headResolver,
+      GitMaintenance gitMaintenance,
+      GitMaintenance.Target maintenanceTarget,
+      CompletedSubmissionCache completedSubmissions)
       throws RepoNotFoundException {
 
     File repoDirectory = config.getRepoDir(repoId);
@@ -144,10 +278,20 @@ public class Repo {
     try (TransactionQueryRunner q = database.getQueryRunner()) {
       RepoInfo r = RepoInfos.getByRepoId(repoId, q);
       if (r != null) {
-        if (r.getRemote().equals(RepoInfo.REMOTE_UNSET) && !repoDirectory.exists()) {
+        if (r.getRemote().equals(RepoInfo.REMOTE_UNSET)
+            && !repoDirectory.exists()
+            && !config.getRepoArchiveFile(repoId).exists()) {
           throw new RepoNotFoundException("Failed to find repository directory " + repoDirectory);
         }
-        return new Repo(r, config);
+        return new Repo(
+            r,
+            config,
+            repositoryPool,
+            writeBehindFlusher,
+            headResolver,
+            gitMaintenance,
+            maintenanceTarget,
+            completedSubmissions);
       } else {
         throw new RepoNotFoundException(
             "Repository with ID " + repoId + " does not exist in database");
@@ -162,7 +306,16 @@ public class Repo {
    * Create a new repository and return an appropriate repo object. Use RepoFactory rather than
    * calling this method directly.
    */
-  static Repo createRepo(RepoInfo repoInfo, RepoConfig config, Database database)
+  static Repo createRepo(
+      RepoInfo repoInfo,
+      RepoConfig config,
+      Database database,
+      RepositoryPool repositoryPool,
+      WriteBehindFlusher writeBehindFlusher,
+      HeadResolver headResolver,
+      GitMaintenance gitMaintenance,
+      GitMaintenance.Target maintenanceTarget,
+      CompletedSubmissionCache completedSubmissions)
       throws RepoStorageException {
 
     if (repoInfo.isRemote()) {
@@ -196,41 +349,196 @@ public class Repo {
         throw new RepoStorageException("Failed to create repo directory", e);
       }
     }
-    return new Repo(repoInfo, config);
+    return new Repo(
+        repoInfo,
+        config,
+        repositoryPool,
+        writeBehindFlusher,
+        headResolver,
+        gitMaintenance,
+        maintenanceTarget,
+        completedSubmissions);
+  }
+
+  /**
+   * Create a repository directory holding the skeleton files but don't record it in the database.
+   * The directory is not a usable repo until it has been claimed. Use WarmRepoPool rather than
+   * calling this method directly.
+   *
+   * @param repoDirectory the directory to create
+   * @param skeletonCommit the commit to start from or null for an empty repository
+   * @param skeletonObjects the object directory holding skeletonCommit
+   */
+  static void provisionRepo(File repoDirectory, ObjectId skeletonCommit, File skeletonObjects)
+      throws RepoStorageException {
+    try (FileUtil.AutoDelete createdDirectory = FileUtil.mkdirWithAutoDelete(repoDirectory)) {
+      try {
+        Git.init().setDirectory(repoDirectory).call().close();
+      } catch (GitAPIException e) {
+        throw new RepoStorageException("Failed to initialise git repository", e);
+      }
+      if (skeletonCommit != null) {
+        addAlternate(repoDirectory, skeletonObjects);
+        try (Git git = Git.open(repoDirectory)) {
+          startFromSkeleton(git.getRepository(), skeletonCommit);
+        }
+      }
+      createdDirectory.persist();
+    } catch (IOException e) {
+      throw new RepoStorageException("Failed to create repo directory", e);
+    }
   }
 
-  /** Recursively copy all files from the given sourceLocation and add them to the repository. */
+  /**
+   * Take ownership of a repository created by provisionRepo by recording it in the database. Use
+   * RepoFactory rather than calling this method directly.
+   */
+  static Repo claimRepo(
+      RepoInfo repoInfo,
+      RepoConfig config,
+      Database database,
+      RepositoryPool repositoryPool,
+      WriteBehindFlusher writeBehindFlusher,
+      HeadResolver headResolver,
+      GitMaintenance gitMaintenance,
+      GitMaintenance.Target maintenanceTarget,
+      CompletedSubmissionCache completedSubmissions)
+      throws RepoStorageException {
+    try (TransactionQueryRunner t = database.getQueryRunner()) {
+      RepoInfos.insert(repoInfo, t);
+      t.commit();
+    } catch (SQLException e) {
+      throw new RepoStorageException("Failed to store repository details", e);
+    }
+    return new Repo(
+        repoInfo,
+        config,
+        repositoryPool,
+        writeBehindFlusher,
+        headResolver,
+        gitMaintenance,
+        maintenanceTarget,
+        completedSubmissions);
+  }
+
+  /**
+   * Add the skeleton files from the task copy to the repository.
+   *
+   * <p>The skeleton is already stored as a commit in a shared object store. We add the store to our
+   * alternates so we can read its objects without copying them. If the repository is empty then
+   * we simply point master at the skeleton commit. Otherwise we commit the skeleton files on top of
+   * HEAD. Either way the skeleton's objects are not duplicated in this repository.
+   */
   public void copyFiles(TaskCopy task) throws RepoStorageException, RepoExpiredException {
     throwIfRepoExpired();
     throwIfRemote();
-    try (AutoCloseableLock ignored = lock.takeFileWritingLock()) {
-      try (Git git = Git.open(repoDirectory)) {
-        try {
-          List<String> copiedFiles = task.copySkeleton(repoDirectory);
-          if (!copiedFiles.isEmpty()) {
-            for (String f : copiedFiles) {
-              git.add().addFilepattern(f).call();
-            }
-            git.commit().setMessage("Copied files").call();
-          }
-        } catch (IOException | GitAPIException e) {
-          try {
-            git.reset().setMode(ResetType.HARD).setRef(Constants.HEAD).call();
-            throw new RepoStorageException(
-                "An error occurred when copying and adding to repository. Rolled back", e);
-          } catch (GitAPIException | JGitInternalException e1) {
-            e1.addSuppressed(e);
-            throw new RepoStorageException("Failed to rollback failed update", e1);
-          }
+    ObjectId skeletonCommit = task.getSkeletonCommit();
+    if (skeletonCommit == null) {
+      return;
+    }
+    flushPendingUpdates();
+    try (AutoCloseableLock ignored = takeWritingLock()) {
+      if (addAlternate(repoDirectory, task.getSkeletonObjectDirectory())) {
+        // The pooled handle only reads the alternates when it is opened
+        repositoryPool.invalidate(repoInfo.getRepoId());
+      }
+      try (RepositoryPool.Lease lease = openRepository()) {
+        Repository r = lease.getRepository();
+        ObjectId headId = r.resolve(Constants.HEAD);
+        if (headId == null) {
+          startFromSkeleton(r, skeletonCommit);
+        } else {
+          commitSkeleton(r, headId, skeletonCommit);
         }
-      } catch (IOException e2) {
-        throw new RepoStorageException("Failed to open repository", e2);
+      } catch (IOException e) {
+        throw new RepoStorageException("Failed to add skeleton files to repository", e);
       }
     } catch (InterruptedException e) {
       throw new RepoStorageException("Interrupted whilst waiting for file writing lock", e);
     }
   }
 
+  /**
+   * Add the object directory to objects/info/alternates if it's not there already.
+   *
+   * @return true if the alternates were changed
+   */
+  private static boolean addAlternate(File repoDirectory, File objectDirectory)
+      throws RepoStorageException {
+    String entry = objectDirectory.getAbsolutePath();
+    File alternates =
+        new File(
+            new File(new File(repoDirectory, Constants.DOT_GIT), Constants.OBJECTS),
+            Constants.INFO_ALTERNATES);
+    try {
+      if (alternates.exists()
+          && Files.readAllLines(alternates.toPath(), StandardCharsets.UTF_8).contains(entry)) {
+        return false;
+      }
+      FileUtil.mkdirIfNotExists(alternates.getParentFile());
+      Files.write(
+          alternates.toPath(),
+          Collections.singletonList(entry),
+          StandardCharsets.UTF_8,
+          StandardOpenOption.CREATE,
+          StandardOpenOption.APPEND);
+      return true;
+    } catch (IOException e) {
+      throw new RepoStorageException("Failed to add shared object store to repository", e);
+    }
+  }
+
+  /** Point master of an empty repository at the skeleton commit. */
+  private static void startFromSkeleton(Repository r, ObjectId skeletonCommit)
+      throws IOException, RepoStorageException {
+    RefUpdate update = r.updateRef(Constants.HEAD);
+    update.setNewObjectId(skeletonCommit);
+    update.setExpectedOldObjectId(ObjectId.zeroId());
+    update.setRefLogMessage("Copied files", false);
+    RefUpdate.Result result = update.update();
+    if (result != RefUpdate.Result.NEW) {
+      throw new RepoStorageException("Failed to move HEAD to skeleton commit: " + result);
+    }
+  }
+
+  /** Commit the files from the skeleton commit on top of HEAD, replacing any existing copies. */
+  private static void commitSkeleton(Repository r, ObjectId headId, ObjectId skeletonCommit)
+      throws IOException, RepoStorageException {
+    try (ObjectInserter inserter = r.newObjectInserter();
+        ObjectReader reader = r.newObjectReader();
+        RevWalk revWalk = new RevWalk(reader)) {
+      DirCache index = DirCache.newInCore();
+      DirCacheBuilder builder = index.builder();
+      builder.addTree(
+          new byte[0], DirCacheEntry.STAGE_0, reader, revWalk.parseCommit(headId).getTree());
+      builder.finish();
+
+      DirCacheEditor editor = index.editor();
+      try (TreeWalk treeWalk = new TreeWalk(reader)) {
+        treeWalk.addTree(revWalk.parseCommit(skeletonCommit).getTree());
+        treeWalk.setRecursive(true);
+        while (treeWalk.next()) {
+          FileMode mode = treeWalk.getFileMode(0);
+          ObjectId blobId = treeWalk.getObjectId(0);
+          editor.add(
+              new DirCacheEditor.PathEdit(treeWalk.getPathString()) {
+                @Override
+                public void apply(DirCacheEntry ent) {
+                  ent.setFileMode(mode);
+                  ent.setObjectId(blobId);
+                }
+              });
+        }
+      }
+      try {
+        editor.finish();
+      } catch (IllegalArgumentException e) {
+        throw new RepoStorageException("Skeleton files clash with files in the repository", e);
+      }
+      commitTree(r, inserter, headId, index.writeTree(inserter), "Copied files");
+    }
+  }
+
   /**
    * Return the submission object for the given tag. Each tagged version in the repository can only
    * be submitted at most once. Poll this method to get updates on the submission testing process
@@ -244,6 +552,10 @@ public class Repo {
         return s;
       }
     }
+    Submission completed = completedSubmissions.get(repoInfo.getRepoId(), tag);
+    if (completed != null) {
+      return completed;
+    }
     try (TransactionQueryRunner q = database.getQueryRunner()) {
       Submission s = Submissions.getByRepoIdAndTag(repoInfo.getRepoId(), tag, q);
       if (s == null) {
@@ -273,6 +585,7 @@ public class Repo {
   public Submission scheduleSubmission(String tag, Worker w, Database db)
       throws RepoExpiredException, SubmissionStorageException, RepoStorageException {
     throwIfRepoExpired();
+    flushPendingUpdates();
 
     if (tag.equals("HEAD")) {
       return scheduleSubmission(resolveHeadSha(), w, db);
@@ -295,275 +608,541 @@ public class Repo {
       updateSubmission(currentSubmission);
     }
 
+    SubmissionTest test = new SubmissionTest(tag, builder);
     w.schedule(
-        new Job() {
-          @Override
-          public int execute(
-              TaskIndex taskIndex,
-              RepoFactory repoFactory,
-              ContainerManager containerManager,
-              Database database) {
-            updateSubmission(builder.setStarted());
-            Task t;
-            try {
-              t = taskIndex.getTask(repoInfo.getTaskId());
-            } catch (TaskNotFoundException e1) {
-              updateSubmission(
-                  builder.setCompilationResponse("Task no longer available", false, 0));
-              return STATUS_FAILED;
-            }
-            try (TaskCopy c =
-                repoInfo.isUsingTestingVersion()
-                    ? t.acquireTestingCopy()
-                    : t.acquireRegisteredCopy()) {
-              try (AutoCloseableLock ignored = lock.takeFileWritingLock()) {
-                try {
-                  setVersionToTest(tag);
-                } catch (RepoStorageException e) {
-                  updateSubmission(
-                      builder.addErrorMessage(
-                          "Failed to reset repository to requested tag (" + tag + ")"));
-                  return STATUS_FAILED;
-                }
+        test.job(Stage.CHECKOUT),
+        test.job(Stage.COMPILATION),
+        test.job(Stage.HARNESS),
+        test.job(Stage.VALIDATOR));
+    return currentSubmission;
+  }
 
-                File codeDir = repoTestingDirectory;
-                TaskInfo taskInfo = c.getInfo();
-                String image = taskInfo.getImage();
-                updateSubmission(builder.setStatus(Submission.STATUS_COMPILATION_RUNNING));
-                ContainerExecResponse<String> compilationResponse;
-                try {
-                  compilationResponse =
-                      containerManager.execCompilation(
-                          codeDir,
-                          c.getCompileRoot(),
-                          image,
-                          taskInfo.getCompilationRestrictions());
-                } catch (ApiUnavailableException e) {
-                  LOG.warn(
-                      "Docker API unavailable when trying to execute compilation step. Retrying",
-                      e);
-                  updateSubmission(
-                      builder
-                          .addErrorMessage(
-                              "Compilation failed, unable to contact the container API. "
-                                  + "Retrying...")
-                          .setRetry());
-                  return STATUS_RETRY;
-                }
-                updateSubmission(
-                    builder.setCompilationResponse(
-                        compilationResponse.response(),
-                        compilationResponse.status().equals(Status.COMPLETED),
-                        compilationResponse.executionTimeMs()));
-                switch (compilationResponse.status()) {
-                  case FAILED_UNKNOWN:
-                    updateSubmission(
-                        builder.addErrorMessage("Compilation failed, no tests were run"));
-                    break;
-                  case FAILED_DISK:
-                    updateSubmission(
-                        builder.addErrorMessage("Compilation failed, disk usage limit exceeded"));
-                    break;
-                  case FAILED_OOM:
-                    updateSubmission(
-                        builder.addErrorMessage("Compilation failed, memory usage limit exceeded"));
-                    break;
-                  case FAILED_TIMEOUT:
-                    updateSubmission(
-                        builder.addErrorMessage(
-                            "Compilation failed, execution time limit exceeded"));
-                    break;
-                  case COMPLETED:
-                  default:
-                    // do nothing
-                }
+  /**
+   * Testing a submission. The test is run as a sequence of jobs, one for each stage, and each stage
+   * is run by the worker's threads for that stage. This object carries what each stage produces
+   * (the task copy, the workspace holding the compiled code and the harness output) on to the next
+   * one. The result is stored once the last stage has run or if a stage fails.
+   */
+  private class SubmissionTest {
 
-                if (!compilationResponse.status().equals(Status.COMPLETED)) {
-                  return STATUS_FAILED;
-                }
+    private final String tag;
 
-                updateSubmission(builder.setStatus(Submission.STATUS_HARNESS_RUNNING));
-                ContainerExecResponse<HarnessResponse> harnessResponse;
-                try {
-                  harnessResponse =
-                      containerManager.execHarness(
-                          codeDir, c.getHarnessRoot(), image, taskInfo.getHarnessRestrictions());
-                } catch (ApiUnavailableException e) {
-                  LOG.warn("Docker API unavailable when trying to run harness step. Retrying", e);
-                  updateSubmission(
-                      builder
-                          .addErrorMessage(
-                              "Harness failed, unable to contact the container API. Retrying...")
-                          .setRetry());
-                  return STATUS_RETRY;
-                }
-                updateSubmission(
-                    builder.setHarnessResponse(
-                        harnessResponse.response(), harnessResponse.executionTimeMs()));
-                switch (harnessResponse.status()) {
-                  case FAILED_UNKNOWN:
-                    updateSubmission(builder.addErrorMessage("Harness failed, no tests were run"));
-                    updateSubmission(
-                        builder.addErrorMessage(harnessResponse.response().getErrorMessage()));
-                    break;
-                  case FAILED_DISK:
-                    updateSubmission(
-                        builder.addErrorMessage("Harness failed, disk usage limit exceeded"));
-                    break;
-                  case FAILED_OOM:
-                    updateSubmission(
-                        builder.addErrorMessage("Harness failed, memory usage limit exceeded"));
-                    break;
-                  case FAILED_TIMEOUT:
-                    updateSubmission(
-                        builder.addErrorMessage("Harness failed, execution time limit exceeded"));
-                    break;
-                  case COMPLETED:
-                  default:
-                    if (!harnessResponse.response().isCompleted()) {
-                      updateSubmission(
-                          builder.addErrorMessage("Harness failed to run to completions"));
-                    }
-                }
-                if (!harnessResponse.status().equals(Status.COMPLETED)
-                    || !harnessResponse.response().isCompleted()) {
-                  return STATUS_FAILED;
-                }
+    private final Submission.Builder builder;
 
-                updateSubmission(builder.setStatus(Submission.STATUS_VALIDATOR_RUNNING));
-
-                ContainerExecResponse<ValidatorResponse> validatorResponse;
-                try {
-                  validatorResponse =
-                      containerManager.execValidator(
-                          c.getValidatorRoot(),
-                          harnessResponse.response(),
-                          image,
-                          taskInfo.getValidatorRestrictions());
-                } catch (ApiUnavailableException e) {
-                  LOG.warn("Docker API unavailable when trying to run validator step. Retrying", e);
-                  updateSubmission(
-                      builder
-                          .addErrorMessage(
-                              "Validation failed, unable to contact the container API. "
-                                  + "Retrying...")
-                          .setRetry());
-                  return STATUS_RETRY;
-                }
+    private TaskCopy taskCopy;
 
-                switch (validatorResponse.status()) {
-                  case FAILED_UNKNOWN:
-                    updateSubmission(
-                        builder.addErrorMessage("Validator failed, no tests were run"));
-                    break;
-                  case FAILED_DISK:
-                    updateSubmission(
-                        builder.addErrorMessage("Validator failed, disk usage limit exceeded"));
-                    break;
-                  case FAILED_OOM:
-                    updateSubmission(
-                        builder.addErrorMessage("Validator failed, memory usage limit exceeded"));
-                    break;
-                  case FAILED_TIMEOUT:
-                    updateSubmission(
-                        builder.addErrorMessage("Validator failed, execution time limit exceeded"));
-                    break;
-                  case COMPLETED:
-                  default:
-                    if (!validatorResponse.response().isCompleted()) {
-                      updateSubmission(
-                          builder.addErrorMessage("Validator failed to run to completion"));
-                    }
-                }
-                if (!validatorResponse.status().equals(Status.COMPLETED)
-                    || !validatorResponse.response().isCompleted()) {
-                  return STATUS_FAILED;
-                }
+    private TestingWorkspace workspace;
 
-                boolean acceptableFound = false;
-                String errorMessage = validatorResponse.response().getErrorMessage();
-                boolean badFound = errorMessage != null && !errorMessage.trim().equals("");
-                for (Interpretation i : validatorResponse.response().getInterpretations()) {
-                  if (i.getResult().equals(Interpretation.INTERPRETED_ACCEPTABLE)) {
-                    acceptableFound = true;
-                  } else if (i.getResult().equals(Interpretation.INTERPRETED_FAILED)) {
-                    badFound = true;
-                  }
-                }
+    private SubmissionCacheKey cacheKey;
 
-                String interpretation;
-                if (badFound) {
-                  interpretation = Submission.INTERPRETATION_BAD;
-                } else if (acceptableFound) {
-                  interpretation = Submission.INTERPRETATION_ACCEPTABLE;
-                } else {
-                  interpretation = Submission.INTERPRETATION_EXCELLENT;
-                }
+    private Submission cachedResult;
 
-                updateSubmission(
-                    builder
-                        .setValidatorResponse(
-                            validatorResponse.response(), validatorResponse.executionTimeMs())
-                        .setInterpretation(interpretation)
-                        .addErrorMessage(errorMessage));
-                if (!validatorResponse.response().isCompleted()) {
-                  return STATUS_FAILED;
-                }
-              } catch (InterruptedException e) {
-                updateSubmission(
-                    Submission.builder(repoInfo.getRepoId(), tag)
-                        .setCompilationResponse("Job was interrupted, retrying", false, 0));
-                return STATUS_RETRY;
-              } finally {
-                builder.setComplete();
-
-                Submission s = builder.build();
-                if (!s.isNeedsRetry()) {
-                  try (TransactionQueryRunner q = database.getQueryRunner()) {
-                    Submissions.insert(s, q);
-                    q.commit();
-                  } catch (SQLException e) {
-                    // This shouldn't happen, but if it does then we'll force
-                    // an error message out to the user
-                    updateSubmission(
-                        Submission.builder(repoInfo.getRepoId(), tag)
-                            .addErrorMessage(
-                                "Failed to store result in database: " + e.getMessage()));
-                    return STATUS_FAILED;
-                  }
-                }
-                updateSubmission(s);
-              }
-            } catch (TaskNotFoundException e1) {
-              updateSubmission(builder.addErrorMessage("Task no longer available"));
-              return STATUS_FAILED;
-            }
-            return Job.STATUS_OK;
+    private ContainerExecResponse<HarnessResponse> harnessResponse;
+
+    private boolean resultCacheable;
+
+    /** Set once the worker has given up retrying so that the result is stored as it is. */
+    private boolean abandoned;
+
+    /** Set whilst we've let go of the workspace and task copy to wait for a retry. */
+    private boolean released;
+
+    private SubmissionTest(String tag, Submission.Builder builder) {
+      this.tag = tag;
+      this.builder = builder;
+    }
+
+    private Job job(Stage stage) {
+      return new Job() {
+        @Override
+        public int execute(
+            TaskIndex taskIndex,
+            RepoFactory repoFactory,
+            ContainerManager containerManager,
+            Database database) {
+          return runStage(stage, taskIndex, repoFactory, containerManager, database);
+        }
+
+        @Override
+        public String getDescription() {
+          return "Testing submission "
+              + repoInfo.getRepoId()
+              + ":"
+              + tag
+              + " ("
+              + stage.name().toLowerCase()
+              + ")";
+        }
+
+        @Override
+        public Stage getStage() {
+          return stage;
+        }
+
+        @Override
+        public ResourceRequest getResourceRequest() {
+          return resourcesFor(stage);
+        }
+
+        @Override
+        public void abandon(
+            TaskIndex taskIndex,
+            RepoFactory repoFactory,
+            ContainerManager containerManager,
+            Database database) {
+          updateSubmission(builder.addErrorMessage("Too many retries, giving up"));
+          abandoned = true;
+          finish(repoFactory, database);
+        }
+      };
+    }
+
+    /** The resources declared by the task for the container that this stage runs. */
+    private ResourceRequest resourcesFor(Stage stage) {
+      if (taskCopy == null) {
+        return ResourceRequest.NONE;
+      }
+      TaskInfo taskInfo = taskCopy.getInfo();
+      ContainerRestrictions restrictions;
+      switch (stage) {
+        case COMPILATION:
+          restrictions = taskInfo.getCompilationRestrictions();
+          break;
+        case HARNESS:
+          restrictions = taskInfo.getHarnessRestrictions();
+          break;
+        case VALIDATOR:
+          restrictions = taskInfo.getValidatorRestrictions();
+          break;
+        default:
+          return ResourceRequest.NONE;
+      }
+      return ResourceRequest.create((int) restrictions.getRamLimitMegabytes(), 1);
+    }
+
+    private int runStage(
+        Stage stage,
+        TaskIndex taskIndex,
+        RepoFactory repoFactory,
+        ContainerManager containerManager,
+        Database database) {
+      int result;
+      try {
+        result = resume(stage, taskIndex, repoFactory, containerManager, database);
+        if (result == Job.STATUS_OK) {
+          result = runStep(stage, taskIndex, repoFactory, containerManager, database);
+        }
+      } catch (InterruptedException e) {
+        updateSubmission(
+            Submission.builder(repoInfo.getRepoId(), tag)
+                .setCompilationResponse("Job was interrupted, retrying", false, 0));
+        result = Job.STATUS_RETRY;
+      } catch (RuntimeException e) {
+        finish(repoFactory, database);
+        throw e;
+      }
+      if (result == Job.STATUS_RETRY) {
+        // Don't keep a workspace or the task copy from anyone else whilst we wait for the retry
+        release();
+        return result;
+      }
+      released = false;
+      if (result == Job.STATUS_OK && stage != Stage.VALIDATOR) {
+        // Hold on to everything for the next stage
+        return result;
+      }
+      return finish(repoFactory, database) ? result : Job.STATUS_FAILED;
+    }
+
+    private int runStep(
+        Stage stage,
+        TaskIndex taskIndex,
+        RepoFactory repoFactory,
+        ContainerManager containerManager,
+        Database database)
+        throws InterruptedException {
+      switch (stage) {
+        case CHECKOUT:
+          return checkout(taskIndex, repoFactory, database, true);
+        case COMPILATION:
+          return compile(containerManager);
+        case HARNESS:
+          return runHarness(containerManager);
+        case VALIDATOR:
+          return validate(containerManager);
+        default:
+          throw new IllegalArgumentException("Unexpected stage " + stage);
+      }
+    }
+
+    /**
+     * Get back what this stage needs if we let go of it to wait for a retry. The files are written
+     * out again if the stage needs a workspace, and compiled again before the harness since the
+     * workspace that we get back might not hold the compiled code any more.
+     */
+    private int resume(
+        Stage stage,
+        TaskIndex taskIndex,
+        RepoFactory repoFactory,
+        ContainerManager containerManager,
+        Database database)
+        throws InterruptedException {
+      if (!released || stage == Stage.CHECKOUT) {
+        return Job.STATUS_OK;
+      }
+      SubmissionCacheKey previousKey = cacheKey;
+      int result = checkout(taskIndex, repoFactory, database, stage != Stage.VALIDATOR);
+      if (result == Job.STATUS_OK && stage == Stage.HARNESS) {
+        result = compile(containerManager);
+      }
+      if (stage == Stage.VALIDATOR && !Objects.equals(previousKey, cacheKey)) {
+        // The task has a new copy since we ran the harness so don't cache what we get
+        cacheKey = null;
+      }
+      return result;
+    }
+
+    /** Let go of the workspace and task copy whilst we wait to be retried. */
+    private void release() {
+      if (workspace != null) {
+        workspace.close();
+        workspace = null;
+      }
+      if (taskCopy != null) {
+        taskCopy.close();
+        taskCopy = null;
+      }
+      released = true;
+    }
+
+    /**
+     * Write out the files to test unless we've already got a result for this code. The files are
+     * only written out if needsWorkspace is set.
+     */
+    private int checkout(
+        TaskIndex taskIndex, RepoFactory repoFactory, Database database, boolean needsWorkspace)
+        throws InterruptedException {
+      if (taskCopy == null) {
+        if (!released) {
+          updateSubmission(builder.setStarted());
+        }
+        Task t;
+        try {
+          t = taskIndex.getTask(repoInfo.getTaskId());
+        } catch (TaskNotFoundException e1) {
+          updateSubmission(builder.setCompilationResponse("Task no longer available", false, 0));
+          return Job.STATUS_FAILED;
+        }
+        try {
+          taskCopy =
+              repoInfo.isUsingTestingVersion()
+                  ? t.acquireTestingCopy()
+                  : t.acquireRegisteredCopy();
+        } catch (TaskNotFoundException e1) {
+          updateSubmission(builder.addErrorMessage("Task no longer available"));
+          return Job.STATUS_FAILED;
+        }
+      }
+      RemoteMirrors remoteMirrors = repoFactory.getRemoteMirrors();
+      ObjectId treeId;
+      try {
+        treeId = resolveTreeToTest(tag, remoteMirrors);
+      } catch (RepoStorageException e) {
+        updateSubmission(builder.addErrorMessage("Failed to find requested tag (" + tag + ")"));
+        return Job.STATUS_FAILED;
+      }
+
+      if (taskCopy.isDeterministic()) {
+        cacheKey =
+            SubmissionCacheKey.create(
+                treeId.getName(), taskCopy.getCopyId(), taskCopy.getInfo().getImage());
+        try {
+          cachedResult =
+              repoFactory.getSubmissionResultCache().lookup(cacheKey, builder.build(), database);
+        } catch (SQLException e) {
+          LOG.warn("Failed to look up earlier results, testing submission instead", e);
+        }
+        if (cachedResult != null) {
+          return Job.STATUS_DONE;
+        }
+      }
+
+      if (!needsWorkspace) {
+        return Job.STATUS_OK;
+      }
+      // Only take a workspace once we know that we need one since we might have to wait for it
+      if (workspace == null) {
+        if (released) {
+          // Waiting would hold up this thread whilst we're meant to be backing off
+          workspace = repoFactory.getTestingWorkspaces().tryAcquire(repoInfo.getRepoId());
+          if (workspace == null) {
+            return Job.STATUS_RETRY;
           }
+        } else {
+          workspace = repoFactory.getTestingWorkspaces().acquire(repoInfo.getRepoId());
+        }
+      }
+      try {
+        setVersionToTest(tag, treeId, workspace, remoteMirrors);
+      } catch (RepoStorageException e) {
+        updateSubmission(
+            builder.addErrorMessage("Failed to reset repository to requested tag (" + tag + ")"));
+        return Job.STATUS_FAILED;
+      }
+      return Job.STATUS_OK;
+    }
+
+    private int compile(ContainerManager containerManager) throws InterruptedException {
+      TaskInfo taskInfo = taskCopy.getInfo();
+      updateSubmission(builder.setStatus(Submission.STATUS_COMPILATION_RUNNING));
+      ContainerExecResponse<String> compilationResponse;
+      try {
+        compilationResponse =
+            containerManager.execCompilation(
+                workspace.getDirectory(),
+                taskCopy.getCompileRoot(),
+                taskInfo.getImage(),
+                taskInfo.getCompilationRestrictions());
+      } catch (ApiUnavailableException e) {
+        LOG.warn("Docker API unavailable when trying to execute compilation step. Retrying", e);
+        updateSubmission(
+            builder
+                .addErrorMessage(
+                    "Compilation failed, unable to contact the container API. Retrying...")
+                .setRetry());
+        return Job.STATUS_RETRY;
+      }
+      updateSubmission(
+          builder.setCompilationResponse(
+              compilationResponse.response(),
+              compilationResponse.status().equals(Status.COMPLETED),
+              compilationResponse.executionTimeMs()));
+      switch (compilationResponse.status()) {
+        case FAILED_UNKNOWN:
+          updateSubmission(builder.addErrorMessage("Compilation failed, no tests were run"));
+          break;
+        case FAILED_DISK:
+          updateSubmission(
+              builder.addErrorMessage("Compilation failed, disk usage limit exceeded"));
+          break;
+        case FAILED_OOM:
+          updateSubmission(
+              builder.addErrorMessage("Compilation failed, memory usage limit exceeded"));
+          break;
+        case FAILED_TIMEOUT:
+          updateSubmission(
+              builder.addErrorMessage("Compilation failed, execution time limit exceeded"));
+          break;
+        case COMPLETED:
+        default:
+          // do nothing
+      }
 
-          @Override
-          public String getDescription() {
-            return "Testing submission " + repoInfo.getRepoId() + ":" + tag;
+      if (!compilationResponse.status().equals(Status.COMPLETED)) {
+        return Job.STATUS_FAILED;
+      }
+      return Job.STATUS_OK;
+    }
+
+    private int runHarness(ContainerManager containerManager) throws InterruptedException {
+      TaskInfo taskInfo = taskCopy.getInfo();
+      updateSubmission(builder.setStatus(Submission.STATUS_HARNESS_RUNNING));
+      try {
+        harnessResponse =
+            containerManager.execHarness(
+                workspace.getDirectory(),
+                taskCopy.getHarnessRoot(),
+                taskInfo.getImage(),
+                taskInfo.getHarnessRestrictions());
+      } catch (ApiUnavailableException e) {
+        LOG.warn("Docker API unavailable when trying to run harness step. Retrying", e);
+        updateSubmission(
+            builder
+                .addErrorMessage("Harness failed, unable to contact the container API. Retrying...")
+                .setRetry());
+        return Job.STATUS_RETRY;
+      }
+      updateSubmission(
+          builder.setHarnessResponse(
+              harnessResponse.response(), harnessResponse.executionTimeMs()));
+      switch (harnessResponse.status()) {
+        case FAILED_UNKNOWN:
+          updateSubmission(builder.addErrorMessage("Harness failed, no tests were run"));
+          updateSubmission(builder.addErrorMessage(harnessResponse.response().getErrorMessage()));
+          break;
+        case FAILED_DISK:
+          updateSubmission(builder.addErrorMessage("Harness failed, disk usage limit exceeded"));
+          break;
+        case FAILED_OOM:
+          updateSubmission(builder.addErrorMessage("Harness failed, memory usage limit exceeded"));
+          break;
+        case FAILED_TIMEOUT:
+          updateSubmission(
+              builder.addErrorMessage("Harness failed, execution time limit exceeded"));
+          break;
+        case COMPLETED:
+        default:
+          if (!harnessResponse.response().isCompleted()) {
+            updateSubmission(builder.addErrorMessage("Harness failed to run to completions"));
           }
-        });
-    return currentSubmission;
+      }
+      if (!harnessResponse.status().equals(Status.COMPLETED)
+          || !harnessResponse.response().isCompleted()) {
+        return Job.STATUS_FAILED;
+      }
+      return Job.STATUS_OK;
+    }
+
+    private int validate(ContainerManager containerManager) throws InterruptedException {
+      TaskInfo taskInfo = taskCopy.getInfo();
+      updateSubmission(builder.setStatus(Submission.STATUS_VALIDATOR_RUNNING));
+
+      ContainerExecResponse<ValidatorResponse> validatorResponse;
+      try {
+        validatorResponse =
+            containerManager.execValidator(
+                taskCopy.getValidatorRoot(),
+                harnessResponse.response(),
+                taskInfo.getImage(),
+                taskInfo.getValidatorRestrictions());
+      } catch (ApiUnavailableException e) {
+        LOG.warn("Docker API unavailable when trying to run validator step. Retrying", e);
+        updateSubmission(
+            builder
+                .addErrorMessage(
+                    "Validation failed, unable to contact the container API. Retrying...")
+                .setRetry());
+        return Job.STATUS_RETRY;
+      }
+
+      switch (validatorResponse.status()) {
+        case FAILED_UNKNOWN:
+          updateSubmission(builder.addErrorMessage("Validator failed, no tests were run"));
+          break;
+        case FAILED_DISK:
+          updateSubmission(
+              builder.addErrorMessage("Validator failed, disk usage limit exceeded"));
+          break;
+        case FAILED_OOM:
+          updateSubmission(
+              builder.addErrorMessage("Validator failed, memory usage limit exceeded"));
+          break;
+        case FAILED_TIMEOUT:
+          updateSubmission(
+              builder.addErrorMessage("Validator failed, execution time limit exceeded"));
+          break;
+        case COMPLETED:
+        default:
+          if (!validatorResponse.response().isCompleted()) {
+            updateSubmission(builder.addErrorMessage("Validator failed to run to completion"));
+          }
+      }
+      if (!validatorResponse.status().equals(Status.COMPLETED)
+          || !validatorResponse.response().isCompleted()) {
+        return Job.STATUS_FAILED;
+      }
+
+      boolean acceptableFound = false;
+      String errorMessage = validatorResponse.response().getErrorMessage();
+      boolean badFound = errorMessage != null && !errorMessage.trim().equals("");
+      for (Interpretation i : validatorResponse.response().getInterpretations()) {
+        if (i.getResult().equals(Interpretation.INTERPRETED_ACCEPTABLE)) {
+          acceptableFound = true;
+        } else if (i.getResult().equals(Interpretation.INTERPRETED_FAILED)) {
+          badFound = true;
+        }
+      }
+
+      String interpretation;
+      if (badFound) {
+        interpretation = Submission.INTERPRETATION_BAD;
+      } else if (acceptableFound) {
+        interpretation = Submission.INTERPRETATION_ACCEPTABLE;
+      } else {
+        interpretation = Submission.INTERPRETATION_EXCELLENT;
+      }
+
+      updateSubmission(
+          builder
+              .setValidatorResponse(
+                  validatorResponse.response(), validatorResponse.executionTimeMs())
+              .setInterpretation(interpretation)
+              .addErrorMessage(errorMessage));
+      if (!validatorResponse.response().isCompleted()) {
+        return Job.STATUS_FAILED;
+      }
+      resultCacheable = cacheKey != null;
+      return Job.STATUS_OK;
+    }
+
+    /**
+     * Release the workspace and task copy and store the result. Returns false if the result could
+     * not be stored.
+     */
+    private boolean finish(RepoFactory repoFactory, Database database) {
+      if (taskCopy == null && !released && !abandoned) {
+        // We never got started so there's nothing to store
+        return true;
+      }
+      try {
+        if (workspace != null) {
+          workspace.close();
+          workspace = null;
+        }
+        builder.setComplete();
+
+        Submission s = cachedResult != null ? cachedResult : builder.build();
+        if (abandoned) {
+          // The builder still asks for the retry that we're not going to make
+          s = Submissions.withoutRetry(s);
+        }
+        if (!s.isNeedsRetry()) {
+          try (TransactionQueryRunner q = database.getQueryRunner()) {
+            Submissions.insert(s, q);
+            q.commit();
+          } catch (SQLException e) {
+            // This shouldn't happen, but if it does then we'll force
+            // an error message out to the user
+            updateSubmission(
+                Submission.builder(repoInfo.getRepoId(), tag)
+                    .addErrorMessage("Failed to store result in database: " + e.getMessage()));
+            return false;
+          }
+          if (resultCacheable) {
+            repoFactory.getSubmissionResultCache().store(cacheKey, s, database);
+          }
+          // Now that it's stored we don't need to keep it for as long as this repo object
+          completedSubmissions.put(s);
+          activeSubmissions.remove(tag);
+        } else {
+          updateSubmission(s);
+        }
+        return true;
+      } finally {
+        if (taskCopy != null) {
+          taskCopy.close();
+          taskCopy = null;
+        }
+      }
+    }
   }
 
-  /** Find the SHA hash for the head of the master branch. */
+  /**
+   * Find the SHA hash for the head of the master branch. Local repos are read straight from the ref
+   * database. Lookups for remote repos are cached for a short while by the HeadResolver.
+   */
   public String resolveHeadSha() throws RepoStorageException {
-    try {
-      return Git.lsRemoteRepository()
-          .setRemote(repoInfo.isRemote() ? repoInfo.getRemote() : repoDirectory.getPath())
-          .setHeads(true)
-          .call()
-          .stream()
-          .filter(ref -> ref.getName().equals("refs/heads/master"))
-          .map(Ref::getObjectId)
-          .map(ObjectId::getName)
-          .findFirst()
-          .orElseThrow(
-              () -> new RefNotFoundException("Failed to find reference named refs/heads/master"));
-    } catch (GitAPIException e) {
+    if (repoInfo.isRemote()) {
+      try {
+        return headResolver.resolveMaster(repoInfo.getRemote());
+      } catch (IOException e) {
+        throw new RepoStorageException("Failed to resolve SHA1 for refs/heads/master", e);
+      }
+    }
+    flushPendingUpdates();
+    try (RepositoryPool.Lease lease = openRepository()) {
+      return HeadResolver.resolveMaster(lease.getRepository());
+    } catch (IOException e) {
       throw new RepoStorageException("Failed to resolve SHA1 for refs/heads/master", e);
     }
   }
@@ -583,37 +1162,64 @@ public class Repo {
   }
 
   /**
-   * Update the checkout of this repo that we use for testing to point to a new tag.
+   * Write out the files at a particular tag into a testing workspace.
    *
-   * @param tag the tag to update the test to point to
+   * <p>We write the tree for the tag straight out of the object database (or the local mirror for
+   * remote repos). Only files which have changed since the last time we used the workspace are
+   * rewritten.
+   *
+   * @param tag the tag (or commit SHA) to test
+   * @param treeId the tree for this tag (from resolveTreeToTest)
+   * @param workspace the workspace to write to
+   * @param remoteMirrors holds the mirrors of remote repos
    * @throws RepoStorageException if something goes wrong
    */
-  private void setVersionToTest(String tag) throws RepoStorageException {
-    try (AutoCloseableLock ignored = lock.takeFileWritingLock()) {
-      if (repoTestingDirectory.exists()) {
-        try {
-          FileUtil.deleteRecursive(repoTestingDirectory);
-        } catch (IOException e) {
-          throw new RepoStorageException("Failed to delete previous testing directory", e);
-        }
-      }
-      if (!repoTestingDirectory.mkdirs()) {
-        throw new RepoStorageException("Failed to create directory for holding test checkout");
+  private void setVersionToTest(
+      String tag, ObjectId treeId, TestingWorkspace workspace, RemoteMirrors remoteMirrors)
+      throws RepoStorageException {
+    if (repoInfo.isRemote()) {
+      try {
+        workspace.setSnapshot(
+            remoteMirrors.materialize(
+                repoInfo.getRepoId(), treeId, workspace.getDirectory(), workspace.getSnapshot()));
+      } catch (IOException e) {
+        workspace.setSnapshot(null);
+        throw new RepoStorageException("Failed to write out files for tag " + tag, e);
       }
+      return;
+    }
+    try (RepositoryPool.Lease lease = openRepository()) {
+      workspace.setSnapshot(
+          TreeMaterializer.materialize(
+              lease.getRepository(), treeId, workspace.getDirectory(), workspace.getSnapshot()));
+    } catch (IOException e) {
+      workspace.setSnapshot(null);
+      throw new RepoStorageException("Failed to write out files for tag " + tag, e);
+    }
+  }
 
-      try (Git g =
-          Git.cloneRepository()
-              .setURI(repoInfo.isRemote() ? repoInfo.getRemote() : repoDirectory.getPath())
-              .setDirectory(repoTestingDirectory)
-              .call()) {
-        g.checkout().setName(tag).call();
-      } catch (GitAPIException e) {
-        throw new RepoStorageException("Failed to clone repository", e);
-      } catch (JGitInternalException e) {
-        throw new RepoStorageException("Failed to clone repository", e.getCause());
+  /**
+   * Find the tree of files to test for the given tag (or commit SHA). Git objects are immutable so
+   * once we have found the tree we can read it without holding any lock. Remote repos are fetched
+   * into their local mirror if necessary.
+   */
+  private ObjectId resolveTreeToTest(String tag, RemoteMirrors remoteMirrors)
+      throws RepoStorageException {
+    if (repoInfo.isRemote()) {
+      try {
+        return remoteMirrors.fetchTree(repoInfo.getRepoId(), repoInfo.getRemote(), tag);
+      } catch (IOException e) {
+        throw new RepoStorageException("Failed to fetch tag " + tag, e);
       }
-    } catch (InterruptedException e) {
-      throw new RepoStorageException("Interrupted whilst waiting for file writing lock", e);
+    }
+    try (RepositoryPool.Lease lease = openRepository()) {
+      ObjectId treeId = lease.getRepository().resolve(tag + "^{tree}");
+      if (treeId == null) {
+        throw new RepoStorageException("Failed to find tag " + tag);
+      }
+      return treeId;
+    } catch (IOException | RevisionSyntaxException e) {
+      throw new RepoStorageException("Failed to resolve tag " + tag, e);
     }
   }
 
@@ -625,15 +1231,11 @@ public class Repo {
    * @throws RepoStorageException if something goes wrong
    */
   public boolean existsTag(String tag) throws RepoStorageException {
-    try (AutoCloseableLock ignored = lock.takeGitDbOpLock()) {
-      try (Git git = Git.open(repoDirectory)) {
-        return git.getRepository().resolve(Constants.R_TAGS + tag) != null;
-      } catch (IOException e) {
-        throw new RepoStorageException(
-            "Failed to lookup tag in repository " + repoInfo.getRepoId(), e);
-      }
-    } catch (InterruptedException e) {
-      throw new RepoStorageException("Interrupted whilst waiting for git operation lock", e);
+    try (RepositoryPool.Lease lease = openRepository()) {
+      return lease.getRepository().exactRef(Constants.R_TAGS + tag) != null;
+    } catch (IOException e) {
+      throw new RepoStorageException(
+          "Failed to lookup tag in repository " + repoInfo.getRepoId(), e);
     }
   }
 
@@ -646,118 +1248,117 @@ public class Repo {
   public ImmutableList<String> listFiles(String tag)
       throws RepoStorageException, RepoTagNotFoundException {
     throwIfRemote();
-    try (AutoCloseableLock ignored = lock.takeFileReadingLock()) {
-      try (Git git = Git.open(repoDirectory)) {
-        Repository repo = git.getRepository();
-        RevWalk revWalk = new RevWalk(repo);
-
-        try {
-          ImmutableList.Builder<String> builder = ImmutableList.builder();
-          RevTree tree = getRevTree(tag, repo, revWalk);
-          try (TreeWalk treeWalk = new TreeWalk(repo)) {
-            treeWalk.addTree(tree);
-            treeWalk.setRecursive(true);
-            while (treeWalk.next()) {
-              builder.add(treeWalk.getPathString());
-            }
-          }
-          revWalk.dispose();
-          return builder.build();
-        } catch (NoHeadInRepoException e) {
-          return ImmutableList.of();
+    // Copy the buffered updates before reading HEAD. If they get committed in the meantime then we
+    // will find them at HEAD instead.
+    ImmutableSet<String> pending = ImmutableSet.of();
+    if (Constants.HEAD.equals(tag)) {
+      synchronized (pendingUpdates) {
+        pending = ImmutableSet.copyOf(pendingUpdates.keySet());
+      }
+    }
+    ImmutableList<String> committed;
+    try (RepositoryPool.Lease lease = openRepository();
+        RevWalk revWalk = new RevWalk(lease.getRepository())) {
+      Repository repo = lease.getRepository();
+      ImmutableList.Builder<String> builder = ImmutableList.builder();
+      RevTree tree = getRevTree(tag, repo, revWalk);
+      try (TreeWalk treeWalk = new TreeWalk(repo)) {
+        treeWalk.addTree(tree);
+        treeWalk.setRecursive(true);
+        while (treeWalk.next()) {
+          builder.add(treeWalk.getPathString());
         }
-      } catch (IOException e) {
-        throw new RepoStorageException(
-            "Failed to access files in repository " + repoInfo.getRepoId() + " under tag " + tag,
-            e);
       }
-    } catch (InterruptedException e) {
-      throw new RepoStorageException("Interrupted whilst waiting for file reading lock", e);
+      committed = builder.build();
+    } catch (NoHeadInRepoException e) {
+      committed = ImmutableList.of();
+    } catch (IOException e) {
+      throw new RepoStorageException(
+          "Failed to access files in repository " + repoInfo.getRepoId() + " under tag " + tag, e);
     }
+    if (pending.isEmpty()) {
+      return committed;
+    }
+    return ImmutableSortedSet.<String>naturalOrder()
+        .addAll(committed)
+        .addAll(pending)
+        .build()
+        .asList();
   }
 
   /**
    * Create a new tag in this repository.
    *
+   * <p>The name comes from the tag index. We create the tag with a ref update which fails if the
+   * tag already exists: if that happens then someone has created tags behind our back and so we
+   * reload the index and try again.
+   *
    * @return the name of the tag
    */
   public String createNewTag() throws RepoStorageException, RepoExpiredException {
     throwIfRepoExpired();
     throwIfRemote();
-    try (AutoCloseableLock ignored = lock.takeGitDbOpLock()) {
-      try (Git git = Git.open(repoDirectory)) {
-        List<Ref> tagList;
-        try {
-          tagList = git.tagList().call();
-        } catch (GitAPIException e) {
-          throw new RepoStorageException("Failed to list all tags in repo", e);
-        }
-
-        String prefix = Constants.R_TAGS + webtagPrefix;
-        int max = -1;
-        for (Ref tag : tagList) {
-          String tagName = tag.getName();
-          if (tagName.startsWith(prefix)) {
-            int value;
-            try {
-              value = Integer.parseInt(tagName.substring(prefix.length()));
-            } catch (NumberFormatException e) {
-              throw new RepoStorageException("Failed to parse tag name " + tagName, e);
-            }
-            if (value > max) {
-              max = value;
-            }
-          }
+    flushPendingUpdates();
+    gitMaintenance.recordWrite(maintenanceTarget);
+    try (RepositoryPool.Lease lease = openRepository();
+        ObjectInserter inserter = lease.getRepository().newObjectInserter()) {
+      Repository r = lease.getRepository();
+      ObjectId headId = r.resolve(Constants.HEAD);
+      if (headId == null) {
+        throw new RepoStorageException("Failed to find HEAD in repo " + repoInfo.getRepoId());
+      }
+      for (int attempt = 0; attempt < MAX_TAG_ATTEMPTS; attempt++) {
+        String newTag = tagIndex.nextTagName(r);
+        TagBuilder tag = new TagBuilder();
+        tag.setObjectId(headId, Constants.OBJ_COMMIT);
+        tag.setTag(newTag);
+        tag.setTagger(new PersonIdent(r));
+        ObjectId tagId = inserter.insert(tag);
+        inserter.flush();
+
+        RefUpdate update = r.updateRef(Constants.R_TAGS + newTag);
+        update.setNewObjectId(tagId);
+        update.setExpectedOldObjectId(ObjectId.zeroId());
+        RefUpdate.Result result = update.update();
+        if (result == RefUpdate.Result.NEW) {
+          tagIndex.added(newTag, r);
+          return newTag;
         }
-
-        String newTag = webtagPrefix + String.format("%03d", (max + 1));
-
-        try {
-          git.tag().setName(newTag).call();
-        } catch (GitAPIException e) {
+        if (result != RefUpdate.Result.LOCK_FAILURE) {
           throw new RepoStorageException(
-              "Failed to apply tag " + newTag + " to repo " + repoInfo.getRepoId(), e);
+              "Failed to apply tag " + newTag + " to repo " + repoInfo.getRepoId() + ": " + result);
         }
-        return newTag;
-      } catch (IOException e) {
-        throw new RepoStorageException("Failed to open repository " + repoInfo.getRepoId(), e);
+        tagIndex.reload(r);
       }
-    } catch (InterruptedException e) {
-      throw new RepoStorageException("Interrupted whilst waiting for git operation lock", e);
+      throw new RepoStorageException(
+          "Failed to find an unused tag name in repo " + repoInfo.getRepoId());
+    } catch (IOException e) {
+      throw new RepoStorageException("Failed to create tag in repo " + repoInfo.getRepoId(), e);
     }
   }
 
   /**
-   * List all tags in this repository (only tags which have the webtag prefix are returned.
+   * List all tags in this repository (only tags which have the webtag prefix are returned). These
+   * come from the tag index rather than from scanning the refs.
    *
    * @return a list of tag names
    * @throws RepoStorageException if something goes wrong
    */
   public List<String> listTags() throws RepoStorageException {
     throwIfRemote();
-    String prefix = Constants.R_TAGS + webtagPrefix;
-    try (AutoCloseableLock ignored = lock.takeGitDbOpLock()) {
-      try (Git g = Git.open(repoDirectory)) {
-        return g.tagList()
-            .call()
-            .stream()
-            .filter(t -> t.getName().startsWith(prefix))
-            .map(t -> t.getName().substring(Constants.R_TAGS.length()))
-            .collect(Collectors.toList());
-      } catch (IOException | GitAPIException e) {
-        throw new RepoStorageException("Failed to get tag list", e);
-      }
-    } catch (InterruptedException e) {
-      throw new RepoStorageException("Interrupted whilst waiting for git operation lock", e);
+    try (RepositoryPool.Lease lease = openRepository()) {
+      return tagIndex.list(lease.getRepository());
+    } catch (IOException e) {
+      throw new RepoStorageException("Failed to get tag list", e);
     }
   }
 
   /**
    * Set the contents of the repository to be the same as at the particular tag.
    *
-   * Since jgit doesn't expose a multi-commit or no-commit revert command, we instead
-   * reset to the earlier point, put the HEAD pointer back where it was, and then do a
-   * manual commit.
+   * <p>We do this by writing a new commit on top of HEAD which has the tree from the tag and then
+   * moving HEAD to it with a single ref update. Readers never see HEAD pointing anywhere else in
+   * the meantime.
    *
    * @param tag the tag to reset to
    */
@@ -765,37 +1366,29 @@ public class Repo {
       throws RepoStorageException, RepoExpiredException, RepoTagNotFoundException {
     throwIfRepoExpired();
     throwIfRemote();
-    try (AutoCloseableLock ignored = lock.takeFullExclusionLock()) {
-      try (Git git = Git.open(repoDirectory)) {
-        Repository r = git.getRepository();
-        Ref tagRef = r.findRef(tag);
+    flushPendingUpdates();
+    try (AutoCloseableLock ignored = takeWritingLock()) {
+      try (RepositoryPool.Lease lease = openRepository()) {
+        Repository r = lease.getRepository();
+        Ref tagRef = r.exactRef(Constants.R_TAGS + tag);
         if (tagRef == null) {
           throw new RepoTagNotFoundException(
               "Tag " + tag + " not found in repository " + repoInfo.getRepoId());
         }
 
-        ResetCommand reset = git.reset()
-            .setMode(ResetType.HARD)
-            .setRef(tagRef.getName());
-
-        reset.call();
-
-        reset = git.reset()
-            .setMode(ResetType.SOFT)
-            .setRef(Constants.ORIG_HEAD); // The revision before the reset above
-
-        reset.call();
-
-        CommitCommand commit = git.commit()
-            .setMessage("Reverted to " + tag);
-
-        commit.call();
-
-      } catch (GitAPIException | IOException e) {
+        ObjectId headId = r.resolve(Constants.HEAD);
+        RevTree tree;
+        try (RevWalk revWalk = new RevWalk(r)) {
+          tree = revWalk.parseCommit(tagRef.getObjectId()).getTree();
+        }
+        try (ObjectInserter inserter = r.newObjectInserter()) {
+          commitTree(r, inserter, headId, tree, "Reverted to " + tag);
+        }
+      } catch (IOException e) {
         throw new RepoStorageException("Failed to reset repo to tag " + tag, e);
       }
     } catch (InterruptedException e) {
-      throw new RepoStorageException("Interrupted whilst waiting for full exclusion lock", e);
+      throw new RepoStorageException("Interrupted whilst waiting for file writing lock", e);
     }
   }
 
@@ -808,40 +1401,16 @@ public class Repo {
       throws RepoStorageException, RepoExpiredException, RepoFileNotFoundException {
     throwIfRepoExpired();
     throwIfRemote();
-    try (AutoCloseableLock ignored = lock.takeFileWritingLock()) {
-      File f = new File(repoDirectory, fileName);
-      try {
-        if (!FileUtil.isParent(repoDirectory, f)) {
-          throw new RepoFileNotFoundException("Invalid fileName " + fileName);
-        }
+    String path = toRepoPath(fileName);
+    flushPendingUpdates();
+    try (AutoCloseableLock ignored = takeWritingLock()) {
+      try (RepositoryPool.Lease lease = openRepository()) {
+        commitEdits(
+            lease.getRepository(),
+            ImmutableList.of(FileEdit.delete(path)),
+            "Removing file: " + fileName);
       } catch (IOException e) {
-        throw new RepoStorageException("Failed to perform security check on requested filename", e);
-      }
-
-      if (!f.exists()) {
-        throw new RepoFileNotFoundException("File does not exist");
-      }
-
-      if (f.isDirectory()) {
-        throw new RepoFileNotFoundException("File is a directory");
-      }
-
-      try (Git git = Git.open(repoDirectory)) {
-        try {
-          git.rm().addFilepattern(fileName).call();
-          git.commit().setMessage("Removing file: " + fileName).call();
-        } catch (GitAPIException e) {
-          try {
-            git.reset().setMode(ResetType.HARD).setRef(Constants.HEAD).call();
-            throw new RepoStorageException(
-                "Failed to commit delete of " + fileName + ". Rolled back", e);
-          } catch (GitAPIException e1) {
-            e1.addSuppressed(e);
-            throw new RepoStorageException("Failed to rollback delete of " + fileName, e1);
-          }
-        }
-      } catch (IOException e) {
-        throw new RepoStorageException("Failed to open repository " + repoInfo.getRepoId(), e);
+        throw new RepoStorageException("Failed to commit delete of " + fileName, e);
       }
     } catch (InterruptedException e) {
       throw new RepoStorageException("Interrupted whilst waiting for file writing lock", e);
@@ -851,6 +1420,10 @@ public class Repo {
   /**
    * Replace the contents of a file.
    *
+   * <p>In write-behind mode the update is buffered and committed together with any other updates
+   * made within the window (or sooner if the buffer gets too big). Reads of HEAD see buffered
+   * updates straight away.
+   *
    * @param fileName the filename with path relative to the root of the repository
    * @param data to replace the contents of the file with
    */
@@ -858,52 +1431,363 @@ public class Repo {
       throws RepoStorageException, RepoExpiredException, RepoFileNotFoundException {
     throwIfRepoExpired();
     throwIfRemote();
-    try (AutoCloseableLock ignored = lock.takeFileWritingLock()) {
-      File f = new File(repoDirectory, fileName);
-      try {
-        if (!FileUtil.isParent(repoDirectory, f)) {
-          throw new RepoFileNotFoundException("Invalid fileName " + fileName);
-        }
+    String path = toRepoPath(fileName);
+    if (writeBehindWindowMs > 0 && bufferUpdate(path, data)) {
+      return;
+    }
+    try (AutoCloseableLock ignored = takeWritingLock()) {
+      try (RepositoryPool.Lease lease = openRepository()) {
+        commitEdits(
+            lease.getRepository(),
+            ImmutableList.of(FileEdit.update(path, data)),
+            "Updating file " + fileName);
       } catch (IOException e) {
-        throw new RepoStorageException("Failed to perform security check on requested filename", e);
+        throw new RepoStorageException("Failed to commit update to " + fileName, e);
       }
+    } catch (InterruptedException e) {
+      throw new RepoStorageException("Interrupted whilst waiting for file writing lock", e);
+    }
+  }
 
-      if (f.isDirectory()) {
-        throw new RepoFileNotFoundException("File already exists and is a directory");
+  /**
+   * Update and delete several files in a single commit. Either all of the changes are made or none
+   * of them are.
+   *
+   * @param updates new file contents indexed by filename (relative to the root of the repository)
+   * @param deletions filenames (relative to the root of the repository) to delete
+   */
+  public void updateFiles(Map<String, byte[]> updates, Collection<String> deletions)
+      throws RepoStorageException, RepoExpiredException, RepoFileNotFoundException {
+    throwIfRepoExpired();
+    throwIfRemote();
+    List<FileEdit> edits = new ArrayList<>();
+    for (Map.Entry<String, byte[]> e : updates.entrySet()) {
+      edits.add(FileEdit.update(toRepoPath(e.getKey()), e.getValue()));
+    }
+    for (String fileName : deletions) {
+      edits.add(FileEdit.delete(toRepoPath(fileName)));
+    }
+    if (edits.isEmpty()) {
+      return;
+    }
+    flushPendingUpdates();
+    try (AutoCloseableLock ignored = takeWritingLock()) {
+      try (RepositoryPool.Lease lease = openRepository()) {
+        commitEdits(
+            lease.getRepository(),
+            edits,
+            "Updating " + updates.size() + " files and deleting " + deletions.size() + " files");
+      } catch (IOException e) {
+        throw new RepoStorageException("Failed to commit changes to files", e);
       }
+    } catch (InterruptedException e) {
+      throw new RepoStorageException("Interrupted whilst waiting for file writing lock", e);
+    }
+  }
+
+  /**
+   * Add this update to the buffer of pending updates. Returns false if the update couldn't be
+   * buffered (because it would turn a buffered file into a directory or vice versa) in which case
+   * the buffer has been flushed and the caller should commit the update directly.
+   */
+  private boolean bufferUpdate(String path, byte[] data)
+      throws RepoStorageException, RepoFileNotFoundException {
+    boolean conflict;
+    synchronized (pendingUpdates) {
+      conflict =
+          pendingUpdates
+              .keySet()
+              .stream()
+              .anyMatch(p -> p.startsWith(path + "/") || path.startsWith(p + "/"));
+    }
+    if (conflict) {
+      flushPendingUpdates();
+      return false;
+    }
+
+    try (RepositoryPool.Lease lease = openRepository();
+        ObjectReader reader = lease.getRepository().newObjectReader();
+        RevWalk revWalk = new RevWalk(reader)) {
+      ObjectId headId = lease.getRepository().resolve(Constants.HEAD);
+      RevTree headTree = headId == null ? null : revWalk.parseCommit(headId).getTree();
+      checkEdit(reader, headTree, FileEdit.update(path, data), ImmutableSet.of());
+    } catch (IOException e) {
+      throw new RepoStorageException("Failed to check update to " + path, e);
+    }
 
-      File parentFile = f.getParentFile();
+    boolean flushNow;
+    boolean schedule;
+    synchronized (pendingUpdates) {
+      schedule = pendingUpdates.isEmpty();
+      byte[] previous = pendingUpdates.put(path, data);
+      pendingBytes += data.length - (previous == null ? 0 : previous.length);
+      flushNow = pendingBytes >= writeBehindMaxBytes;
+    }
+    if (schedule) {
+      writeBehindFlusher.schedule(this, writeBehindWindowMs);
+    }
+    if (flushNow) {
+      flushPendingUpdates();
+    }
+    return true;
+  }
 
-      if (!parentFile.exists()) {
-        if (!parentFile.mkdirs()) {
-          throw new RepoStorageException("Failed to create directories for " + fileName);
+  /**
+   * Returns true if this object is in use: someone holds (or is waiting for) the lock, there are
+   * buffered updates or a submission is still being tested. RepoFactory never evicts a repo which
+   * is in use since that would let a second object for the same repo be created.
+   */
+  boolean isInUse() {
+    return lock.isInUse()
+        || hasPendingUpdates()
+        || activeSubmissions.values().stream().anyMatch(s -> !s.isComplete());
+  }
+
+  private boolean hasPendingUpdates() {
+    synchronized (pendingUpdates) {
+      return !pendingUpdates.isEmpty();
+    }
+  }
+
+  /** Commit any buffered file updates. */
+  void flushPendingUpdates() throws RepoStorageException {
+    if (!hasPendingUpdates()) {
+      return;
+    }
+    boolean reschedule;
+    try (AutoCloseableLock ignored = takeWritingLock()) {
+      Map<String, byte[]> updates;
+      synchronized (pendingUpdates) {
+        if (pendingUpdates.isEmpty()) {
+          return;
         }
+        updates = new LinkedHashMap<>(pendingUpdates);
       }
-      try (FileOutputStream fos = new FileOutputStream(f)) {
-        IOUtils.write(data, fos);
-      } catch (IOException e) {
-        throw new RepoStorageException("Failed to write data to file " + fileName, e);
+      String message =
+          updates.size() == 1
+              ? "Updating file " + updates.keySet().iterator().next()
+              : "Updating " + updates.size() + " files";
+      try (RepositoryPool.Lease lease = openRepository()) {
+        commitEdits(
+            lease.getRepository(),
+            updates
+                .entrySet()
+                .stream()
+                .map(e -> FileEdit.update(e.getKey(), e.getValue()))
+                .collect(Collectors.toList()),
+            message);
+      } catch (IOException | RepoFileNotFoundException e) {
+        throw new RepoStorageException("Failed to commit buffered updates", e);
       }
-      try (Git git = Git.open(repoDirectory)) {
-        try {
-          git.add().addFilepattern(fileName).call();
-          git.commit().setMessage("Updating file " + fileName).call();
-        } catch (GitAPIException e) {
-          try {
-            git.reset().setMode(ResetType.HARD).setRef(Constants.HEAD).call();
-            throw new RepoStorageException(
-                "Failed to commit update to " + fileName + ". Rolled back", e);
-          } catch (GitAPIException e1) {
-            e1.addSuppressed(e);
-            throw new RepoStorageException("Failed to rollback failed update to " + fileName, e1);
+      synchronized (pendingUpdates) {
+        // Keep anything which was updated again whilst we were committing
+        for (Map.Entry<String, byte[]> e : updates.entrySet()) {
+          if (pendingUpdates.remove(e.getKey(), e.getValue())) {
+            pendingBytes -= e.getValue().length;
           }
         }
-      } catch (IOException e) {
-        throw new RepoStorageException("Failed to open repository", e);
+        reschedule = !pendingUpdates.isEmpty();
+        if (!reschedule) {
+          writeBehindFlusher.flushed(this);
+        }
       }
     } catch (InterruptedException e) {
       throw new RepoStorageException("Interrupted whilst waiting for file writing lock", e);
     }
+    if (reschedule) {
+      writeBehindFlusher.schedule(this, writeBehindWindowMs);
+    }
+  }
+
+  /**
+   * Convert a filename from the api into a path within the repository. The filename must refer to
+   * something inside the repository (and not inside the .git directory).
+   */
+  private String toRepoPath(String fileName)
+      throws RepoStorageException, RepoFileNotFoundException {
+    File f = new File(repoDirectory, fileName);
+    try {
+      if (!FileUtil.isParent(repoDirectory, f)) {
+        throw new RepoFileNotFoundException("Invalid fileName " + fileName);
+      }
+    } catch (IOException e) {
+      throw new RepoStorageException("Failed to perform security check on requested filename", e);
+    }
+    String path =
+        repoDirectory
+            .toPath()
+            .normalize()
+            .relativize(f.toPath().normalize())
+            .toString()
+            .replace(File.separatorChar, '/');
+    if (path.isEmpty()
+        || path.equals(Constants.DOT_GIT)
+        || path.startsWith(Constants.DOT_GIT + "/")) {
+      throw new RepoFileNotFoundException("Invalid fileName " + fileName);
+    }
+    return path;
+  }
+
+  /**
+   * Apply the edits to the tree at HEAD and commit the result. This works directly on the object
+   * database: new blobs are inserted, the tree is edited in memory and HEAD is moved to the new
+   * commit with a single ref update. The working directory and the index are not touched. You must
+   * hold the file writing lock.
+   */
+  private void commitEdits(Repository r, List<FileEdit> edits, String message)
+      throws IOException, RepoStorageException, RepoFileNotFoundException {
+    ObjectId headId = r.resolve(Constants.HEAD);
+    try (ObjectInserter inserter = r.newObjectInserter();
+        ObjectReader reader = r.newObjectReader();
+        RevWalk revWalk = new RevWalk(reader)) {
+      RevTree headTree = headId == null ? null : revWalk.parseCommit(headId).getTree();
+
+      DirCache index = DirCache.newInCore();
+      DirCacheBuilder builder = index.builder();
+      if (headTree != null) {
+        builder.addTree(new byte[0], DirCacheEntry.STAGE_0, reader, headTree);
+      }
+      builder.finish();
+
+      checkEditsAreIndependent(edits);
+      Set<String> deleted =
+          edits.stream().filter(e -> e.data == null).map(e -> e.path).collect(Collectors.toSet());
+      DirCacheEditor editor = index.editor();
+      for (FileEdit edit : edits) {
+        checkEdit(reader, headTree, edit, deleted);
+        if (edit.data == null) {
+          editor.add(new DirCacheEditor.DeletePath(edit.path));
+        } else {
+          ObjectId blobId = inserter.insert(Constants.OBJ_BLOB, edit.data);
+          editor.add(
+              new DirCacheEditor.PathEdit(edit.path) {
+                @Override
+                public void apply(DirCacheEntry ent) {
+                  // Keep the executable bit on files which already have it
+                  if (!FileMode.EXECUTABLE_FILE.equals(ent.getRawMode())) {
+                    ent.setFileMode(FileMode.REGULAR_FILE);
+                  }
+                  ent.setObjectId(blobId);
+                }
+              });
+        }
+      }
+      try {
+        editor.finish();
+      } catch (IllegalArgumentException e) {
+        throw new RepoFileNotFoundException("Invalid fileName", e);
+      }
+
+      commitTree(r, inserter, headId, index.writeTree(inserter), message);
+    }
+  }
+
+  /** Check that no two edits are for the same path and that no edit is for a parent of another. */
+  private static void checkEditsAreIndependent(List<FileEdit> edits)
+      throws RepoFileNotFoundException {
+    TreeSet<String> paths = new TreeSet<>();
+    for (FileEdit edit : edits) {
+      if (!paths.add(edit.path)) {
+        throw new RepoFileNotFoundException("More than one change to " + edit.path);
+      }
+    }
+    for (String path : paths) {
+      String next = paths.ceiling(path + "/");
+      if (next != null && next.startsWith(path + "/")) {
+        throw new RepoFileNotFoundException("Cannot change both " + path + " and " + next);
+      }
+    }
+  }
+
+  /**
+   * Check that an edit makes sense given the files which exist at HEAD. Files in deleted are being
+   * deleted in the same commit and so may be replaced by directories.
+   */
+  private static void checkEdit(
+      ObjectReader reader, RevTree headTree, FileEdit edit, Set<String> deleted)
+      throws IOException, RepoFileNotFoundException {
+    FileMode existing = fileModeAt(reader, headTree, edit.path);
+    if (edit.data == null) {
+      if (existing == null) {
+        throw new RepoFileNotFoundException("File does not exist");
+      }
+      if (FileMode.TREE.equals(existing)) {
+        throw new RepoFileNotFoundException("File is a directory");
+      }
+      return;
+    }
+    if (FileMode.TREE.equals(existing)) {
+      throw new RepoFileNotFoundException("File already exists and is a directory");
+    }
+    for (int i = edit.path.indexOf('/'); i != -1; i = edit.path.indexOf('/', i + 1)) {
+      String parentPath = edit.path.substring(0, i);
+      FileMode parent = fileModeAt(reader, headTree, parentPath);
+      if (parent != null && !FileMode.TREE.equals(parent) && !deleted.contains(parentPath)) {
+        throw new RepoFileNotFoundException("Failed to create directories for " + edit.path);
+      }
+    }
+  }
+
+  /** Find the mode of the entry at the given path in the tree or null if there isn't one. */
+  private static FileMode fileModeAt(ObjectReader reader, RevTree tree, String path)
+      throws IOException {
+    if (tree == null) {
+      return null;
+    }
+    try (TreeWalk treeWalk = TreeWalk.forPath(reader, path, tree)) {
+      return treeWalk == null ? null : treeWalk.getFileMode(0);
+    }
+  }
+
+  /**
+   * Write a commit with the given tree whose parent is headId (which may be null if there are no
+   * commits yet) and move HEAD to it. The update fails if HEAD has moved in the meantime.
+   */
+  private static void commitTree(
+      Repository r, ObjectInserter inserter, ObjectId headId, ObjectId treeId, String message)
+      throws IOException, RepoStorageException {
+    CommitBuilder commit = new CommitBuilder();
+    commit.setTreeId(treeId);
+    if (headId != null) {
+      commit.setParentId(headId);
+    }
+    PersonIdent ident = new PersonIdent(r);
+    commit.setAuthor(ident);
+    commit.setCommitter(ident);
+    commit.setMessage(message);
+    ObjectId commitId = inserter.insert(commit);
+    inserter.flush();
+
+    RefUpdate update = r.updateRef(Constants.HEAD);
+    update.setNewObjectId(commitId);
+    update.setExpectedOldObjectId(headId == null ? ObjectId.zeroId() : headId);
+    update.setRefLogMessage("commit: " + message, false);
+    RefUpdate.Result result = update.update();
+    if (result != RefUpdate.Result.FAST_FORWARD && result != RefUpdate.Result.NEW) {
+      throw new RepoStorageException("Failed to move HEAD to new commit: " + result);
+    }
+  }
+
+  /** A change to a single file in the repository. */
+  private static class FileEdit {
+
+    private final String path;
+
+    /** The new contents of the file or null if the file should be deleted. */
+    private final byte[] data;
+
+    private FileEdit(String path, byte[] data) {
+      this.path = path;
+      this.data = data;
+    }
+
+    static FileEdit update(String path, byte[] data) {
+      return new FileEdit(path, data);
+    }
+
+    static FileEdit delete(String path) {
+      return new FileEdit(path, null);
+    }
   }
 
   /**
@@ -911,39 +1795,205 @@ public class Repo {
    *
    * @param tag the tag of the version to use or HEAD
    * @param fileName the filename relative to the root of the repository
-   * @return a StreamingOutput instance containing the data
+   * @return the contents of the file
    */
   public byte[] readFile(String tag, String fileName)
       throws RepoStorageException, RepoFileNotFoundException, RepoTagNotFoundException {
+    RepoFile file = findFile(tag, fileName);
+    try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+      file.writeTo(out);
+      return out.toByteArray();
+    } catch (IOException e) {
+      throw new RepoFileNotFoundException("Failed to read file from repository", e);
+    }
+  }
+
+  /**
+   * Find a particular file at a particular version. This only looks up the file's blob id: the
+   * contents aren't read until you call writeTo on the result.
+   *
+   * @param tag the tag of the version to use or HEAD
+   * @param fileName the filename relative to the root of the repository
+   * @return a handle on the file
+   */
+  public RepoFile findFile(String tag, String fileName)
+      throws RepoStorageException, RepoFileNotFoundException, RepoTagNotFoundException {
     throwIfRemote();
-    try (AutoCloseableLock ignored = lock.takeFileReadingLock()) {
-      try (Git git = Git.open(repoDirectory)) {
-        Repository repo = git.getRepository();
-        RevWalk revWalk = new RevWalk(repo);
-        RevTree tree;
-        try {
-          tree = getRevTree(tag, repo, revWalk);
-        } catch (NoHeadInRepoException e) {
-          throw new IOException("File not found");
+    if (Constants.HEAD.equals(tag) && hasPendingUpdates()) {
+      String path = toRepoPath(fileName);
+      synchronized (pendingUpdates) {
+        byte[] pending = pendingUpdates.get(path);
+        if (pending != null) {
+          return new RepoFile(
+              new ObjectInserter.Formatter().idFor(Constants.OBJ_BLOB, pending), pending);
         }
+      }
+    }
+    try (RepositoryPool.Lease lease = openRepository();
+        RevWalk revWalk = new RevWalk(lease.getRepository())) {
+      Repository repo = lease.getRepository();
+      RevTree tree;
+      try {
+        tree = getRevTree(tag, repo, revWalk);
+      } catch (NoHeadInRepoException e) {
+        throw new IOException("File not found");
+      }
+
+      try (TreeWalk treeWalk = new TreeWalk(repo)) {
+        treeWalk.addTree(tree);
+        treeWalk.setRecursive(true);
+        treeWalk.setFilter(PathFilter.create(fileName));
+        if (!treeWalk.next()) {
+          throw new IOException("File (" + fileName + ") not found");
+        }
+        return new RepoFile(treeWalk.getObjectId(0), null);
+      }
+    } catch (IOException e) {
+      throw new RepoFileNotFoundException("Failed to read file from repository", e);
+    }
+  }
+
+  /** A file which has been found in the repository but not read yet. */
+  public final class RepoFile {
+
+    private final ObjectId blobId;
+
+    /** The contents of the file if it is a buffered update or null if it has been committed. */
+    private final byte[] pendingData;
+
+    private RepoFile(ObjectId blobId, byte[] pendingData) {
+      this.blobId = blobId;
+      this.pendingData = pendingData;
+    }
+
+    /** The git blob id of the contents of the file. This changes if and only if they do. */
+    public String getBlobId() {
+      return blobId.getName();
+    }
+
+    /** Stream the contents of the file straight out of the object database. */
+    public void writeTo(OutputStream out) throws IOException {
+      if (pendingData != null) {
+        out.write(pendingData);
+        return;
+      }
+      try (RepositoryPool.Lease lease = openRepository()) {
+        lease.getRepository().open(blobId, Constants.OBJ_BLOB).copyTo(out);
+      }
+    }
+  }
+
+  /** Take the full exclusion lock without waiting or return null if the repo is busy. */
+  AutoCloseableLock tryTakeFullExclusionLock() {
+    return lock.tryTakeFullExclusionLock();
+  }
+
+  /** Take the file writing lock and record that we are changing the git database. */
+  private AutoCloseableLock takeWritingLock() throws InterruptedException {
+    gitMaintenance.recordWrite(maintenanceTarget);
+    return lock.takeFileWritingLock();
+  }
+
+  /**
+   * Lease the pooled repository handle for this repo. Close the lease when finished. The repo is
+   * rehydrated first if it has been archived. If the repo is being archived then this waits for
+   * that to finish and then rehydrates it.
+   */
+  private RepositoryPool.Lease openRepository() throws IOException {
+    Lock readLock = archiveGuard.readLock();
+    readLock.lock();
+    try {
+      if (!repoDirectory.exists()) {
+        rehydrate();
+      }
+      return repositoryPool.acquire(repoInfo.getRepoId(), repoDirectory, readLock::unlock);
+    } catch (IOException | RuntimeException e) {
+      readLock.unlock();
+      throw e;
+    }
+  }
 
-        try (TreeWalk treeWalk = new TreeWalk(repo)) {
-          treeWalk.addTree(tree);
-          treeWalk.setRecursive(true);
-          treeWalk.setFilter(PathFilter.create(fileName));
-          if (!treeWalk.next()) {
-            throw new IOException("File (" + fileName + ") not found");
+  /**
+   * Pack this repo into a git bundle and delete its directory. Use StorageReclaimer rather than
+   * calling this method directly.
+   *
+   * <p>The repo is skipped if anyone has it open, so this never deletes files that a lock-free
+   * reader is using. Readers which arrive whilst we are archiving wait and then rehydrate the repo.
+   *
+   * @param rateLimiter limits the rate (in bytes per second) at which we write and delete files
+   * @return the number of bytes freed or -1 if the repo was not archived because it is remote, is
+   *     already archived or is in use
+   */
+  long archive(RateLimiter rateLimiter) throws RepoStorageException {
+    if (repoInfo.isRemote()) {
+      return -1;
+    }
+    flushPendingUpdates();
+    try (AutoCloseableLock ignored = lock.takeFullExclusionLock()) {
+      if (!archiveGuard.writeLock().tryLock()) {
+        // Someone is reading the repo
+        return -1;
+      }
+      try {
+        return archiveWithoutReaders(rateLimiter);
+      } finally {
+        archiveGuard.writeLock().unlock();
+      }
+    } catch (IOException e) {
+      throw new RepoStorageException("Failed to archive repository", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RepoStorageException("Interrupted whilst waiting to archive repository", e);
+    }
+  }
+
+  private long archiveWithoutReaders(RateLimiter rateLimiter) throws IOException {
+    synchronized (archiveLock) {
+      if (!repoDirectory.exists()
+          || hasPendingUpdates()
+          || activeSubmissions.values().stream().anyMatch(s -> !s.isComplete())) {
+        return -1;
+      }
+      File partFile = new File(archiveFile.getPath() + ".part");
+      try (RepositoryPool.Lease lease = openRepository();
+          OutputStream out =
+              new StorageReclaimer.ThrottledOutputStream(
+                  new BufferedOutputStream(new FileOutputStream(partFile)), rateLimiter)) {
+        Repository repository = lease.getRepository();
+        BundleWriter bundleWriter = new BundleWriter(repository);
+        for (Ref ref : repository.getRefDatabase().getRefs(RefDatabase.ALL).values()) {
+          if (!ref.isSymbolic()) {
+            bundleWriter.include(ref);
           }
+        }
+        bundleWriter.writeBundle(NullProgressMonitor.INSTANCE, out);
+      }
+      Files.move(partFile.toPath(), archiveFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      repositoryPool.invalidate(repoInfo.getRepoId());
+      long freed = StorageReclaimer.deleteRecursive(repoDirectory, rateLimiter);
+      return Math.max(0, freed - archiveFile.length());
+    }
+  }
 
-          ObjectId objectId = treeWalk.getObjectId(0);
-          ObjectLoader loader = repo.open(objectId);
-          return loader.getBytes();
+  /** Recreate the repo directory from its bundle if it has been archived. */
+  private void rehydrate() throws IOException {
+    synchronized (archiveLock) {
+      if (repoDirectory.exists() || !archiveFile.exists()) {
+        return;
+      }
+      try (FileUtil.AutoDelete createdDirectory = FileUtil.mkdirWithAutoDelete(repoDirectory)) {
+        try (Git git = Git.init().setDirectory(repoDirectory).call()) {
+          git.fetch()
+              .setRemote(archiveFile.getPath())
+              .setRefSpecs(new RefSpec("+refs/*:refs/*"))
+              .call();
+        } catch (GitAPIException e) {
+          throw new IOException("Failed to restore repository from " + archiveFile, e);
         }
-      } catch (IOException e) {
-        throw new RepoFileNotFoundException("Failed to read file from repository", e);
+        createdDirectory.persist();
       }
-    } catch (InterruptedException e) {
-      throw new RepoStorageException("Interrupted whilst waiting for file reading lock", e);
+      Files.delete(archiveFile.toPath());
+      LOG.info("Rehydrated archived repo {}", repoInfo.getRepoId());
     }
   }
 
@@ -998,8 +2048,10 @@ public class Repo {
       throws SubmissionAlreadyScheduledException, SubmissionNotFoundException,
           SubmissionStorageException {
     synchronized (lockFields) {
-      Submission submission = activeSubmissions.get(tag);
-      if (submission == null) {
+      Submission submission;
+      try {
+        submission = getSubmission(tag, database);
+      } catch (SubmissionNotFoundException e) {
         throw new SubmissionNotFoundException(
             "Submission " + tag + " for repo " + repoInfo.getRepoId() + " not found.");
       }
@@ -1011,6 +2063,7 @@ public class Repo {
         Submissions.delete(submission, q);
         q.commit();
         activeSubmissions.remove(tag);
+        completedSubmissions.invalidate(repoInfo.getRepoId(), tag);
       } catch (SQLException e) {
         throw new SubmissionStorageException("Failed to remove submission from database", e);
       }
@@ -18,52 +18,125 @@
 
 package uk.ac.cam.cl.dtg.teaching.pottery.repo;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.google.common.cache.CacheStats;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import java.io.File;
 import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.eclipse.jgit.lib.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
+import uk.ac.cam.cl.dtg.teaching.pottery.FourLevelLock.AutoCloseableLock;
+import uk.ac.cam.cl.dtg.teaching.pottery.GitMaintenance;
+import uk.ac.cam.cl.dtg.teaching.pottery.HeadResolver;
+import uk.ac.cam.cl.dtg.teaching.pottery.PinningCache;
+import uk.ac.cam.cl.dtg.teaching.pottery.Stoppable;
+import uk.ac.cam.cl.dtg.teaching.pottery.TransactionQueryRunner;
 import uk.ac.cam.cl.dtg.teaching.pottery.UuidGenerator;
 import uk.ac.cam.cl.dtg.teaching.pottery.config.RepoConfig;
+import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerManager;
 import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoExpiredException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoStorageException;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.RepoInfo;
+import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskCopy;
+import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskIndex;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.Job;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.Worker;
 
 @Singleton
-public class RepoFactory {
+public class RepoFactory implements Stoppable {
+
+  protected static final Logger LOG = LoggerFactory.getLogger(RepoFactory.class);
 
   /** This object is used to generate new uuids for repos. */
   private UuidGenerator uuidGenerator = new UuidGenerator();
 
   private Database database;
   private RepoConfig config;
+
+  /** Looks up (and caches) the head of remote repos. */
+  private final HeadResolver headResolver;
+
+  /** Garbage collects repos once we've stopped writing to them. */
+  private final GitMaintenance gitMaintenance;
+
+  /** Open git repository handles shared between all Repo objects. */
+  private final RepositoryPool repositoryPool;
+
+  /** Directories for testing submissions in. */
+  private final TestingWorkspaces testingWorkspaces;
+
+  /** Commits buffered file updates for repos in write-behind mode. */
+  private final WriteBehindFlusher writeBehindFlusher = new WriteBehindFlusher();
+
+  /** Ready-made repos for candidates to claim. */
+  private final WarmRepoPool warmRepoPool;
+
+  /** Results of earlier test runs which can be reused for identical submissions. */
+  private final SubmissionResultCache submissionResultCache = new SubmissionResultCache();
+
+  private final CompletedSubmissionCache completedSubmissions;
+
+  /** Local mirrors of remote repos. */
+  private final RemoteMirrors remoteMirrors;
+
+  /** Frees up disk space used by stale testing directories and expired repos. */
+  private final StorageReclaimer storageReclaimer;
+
   // We need to ensure that only one Repo object exists for any repoId so that
   // we guarantee mutual exclusion on the filesystem operations. So we cache created objects
-  // here.
-  private LoadingCache<String, Repo> cache =
-      CacheBuilder.newBuilder()
-          .softValues()
-          .build(
-              new CacheLoader<String, Repo>() {
-                @Override
-                public Repo load(String key) throws Exception {
-                  return Repo.openRepo(key, config, database);
-                }
-              });
+  // here. Repos which are in use are never evicted.
+  private final PinningCache<String, Repo> cache;
 
   /** Construct a new RepoFactory object. */
   @Inject
-  public RepoFactory(RepoConfig config, Database database) throws IOException {
+  public RepoFactory(
+      RepoConfig config,
+      Database database,
+      HeadResolver headResolver,
+      GitMaintenance gitMaintenance)
+      throws IOException {
     this.database = database;
     this.config = config;
+    this.headResolver = headResolver;
+    this.gitMaintenance = gitMaintenance;
+    this.completedSubmissions = new CompletedSubmissionCache(config);
+    this.repositoryPool =
+        new RepositoryPool(
+            config.getRepositoryPoolSize(), config.getRepositoryPoolIdleTimeoutMs());
+    this.cache =
+        new PinningCache<>(
+            config.getRepoCacheSize(),
+            config.getRepoCacheExpiryMs(),
+            Repo::isInUse,
+            (repoId, repo) -> {
+              repositoryPool.invalidate(repoId);
+              gitMaintenance.forget(gitDirectory(repoId));
+            });
     FileUtil.mkdirIfNotExists(config.getRepoRoot());
     FileUtil.mkdirIfNotExists(config.getRepoTestingRoot());
+    FileUtil.mkdirIfNotExists(config.getRepoArchiveRoot());
+    // Anything left in the warm pool from a previous run was never recorded in the database
+    FileUtil.deleteRecursive(config.getWarmRepoRoot());
+    FileUtil.mkdirIfNotExists(config.getWarmRepoRoot());
+    this.testingWorkspaces = new TestingWorkspaces(config);
+    this.remoteMirrors = new RemoteMirrors(config, repositoryPool);
+    this.warmRepoPool = new WarmRepoPool(config, uuidGenerator);
     for (File f : config.getRepoRoot().listFiles()) {
       if (f.getName().startsWith(".")) {
         continue;
@@ -71,12 +144,36 @@ public class RepoFactory {
       String uuid = f.getName();
       uuidGenerator.reserve(uuid);
     }
+    for (File f : config.getRepoArchiveRoot().listFiles()) {
+      if (f.getName().endsWith(".bundle")) {
+        uuidGenerator.reserve(f.getName().substring(0, f.getName().length() - ".bundle".length()));
+      }
+    }
+    this.storageReclaimer = new StorageReclaimer(config, database, this, testingWorkspaces);
+    this.storageReclaimer.start();
   }
 
   /** Lookup a repo by its repoId. */
   public Repo getInstance(String repoId) throws RepoStorageException, RepoNotFoundException {
+    // A repo with buffered updates must not be replaced by a new instance
+    Repo dirty = writeBehindFlusher.getDirty(repoId);
+    if (dirty != null) {
+      return dirty;
+    }
     try {
-      return cache.get(repoId);
+      return cache.get(
+          repoId,
+          () ->
+              Repo.openRepo(
+                  repoId,
+                  config,
+                  database,
+                  repositoryPool,
+                  writeBehindFlusher,
+                  headResolver,
+                  gitMaintenance,
+                  maintenanceTarget(repoId),
+                  completedSubmissions));
     } catch (ExecutionException e) {
       rethrowExecutionException(e);
       throw new Error(e);
@@ -95,13 +192,273 @@ public class RepoFactory {
               Repo.createRepo(
                   new RepoInfo(newRepoId, taskId, usingTestingVersion, expiryDate, remote),
                   config,
-                  database));
+                  database,
+                  repositoryPool,
+                  writeBehindFlusher,
+                  headResolver,
+                  gitMaintenance,
+                  maintenanceTarget(newRepoId),
+                  completedSubmissions));
     } catch (ExecutionException e) {
       rethrowExecutionException(e);
       throw new Error(e);
     }
   }
 
+  /**
+   * Create a new local repo holding the skeleton files from this task copy and return it. If there
+   * is a ready-made repo in the warm pool then we move it into the repo root and record it in the
+   * database. The pool is topped up in the background by the worker.
+   */
+  public Repo claimInstance(
+      String taskId, boolean usingTestingVersion, Date expiryDate, TaskCopy copy, Worker worker)
+      throws RepoStorageException, RepoNotFoundException, RepoExpiredException {
+    String repoId = warmRepoPool.claim(taskId, usingTestingVersion, copy);
+    if (warmRepoPool.startRefill(taskId, usingTestingVersion)) {
+      worker.schedule(
+          new Job() {
+            @Override
+            public int execute(
+                TaskIndex taskIndex,
+                RepoFactory repoFactory,
+                ContainerManager containerManager,
+                Database database) {
+              warmRepoPool.refill(taskId, usingTestingVersion);
+              return Job.STATUS_OK;
+            }
+
+            @Override
+            public String getDescription() {
+              return "Refilling warm repo pool for task " + taskId;
+            }
+          });
+    }
+    if (repoId == null) {
+      Repo repo = createInstance(taskId, usingTestingVersion, expiryDate, RepoInfo.REMOTE_UNSET);
+      repo.copyFiles(copy);
+      return repo;
+    }
+    try {
+      return cache.get(
+          repoId,
+          () ->
+              Repo.claimRepo(
+                  new RepoInfo(
+                      repoId, taskId, usingTestingVersion, expiryDate, RepoInfo.REMOTE_UNSET),
+                  config,
+                  database,
+                  repositoryPool,
+                  writeBehindFlusher,
+                  headResolver,
+                  gitMaintenance,
+                  maintenanceTarget(repoId),
+                  completedSubmissions));
+    } catch (ExecutionException e) {
+      // The repo has been moved out of the pool so nobody else will clean it up
+      deleteQuietly(config.getRepoDir(repoId));
+      rethrowExecutionException(e);
+      throw new Error(e);
+    }
+  }
+
+  /** Receives the outcome of each repo when creating repos in bulk. */
+  public interface BulkCreationListener {
+
+    /** The repo with this index was created and has been stored in the database. */
+    void created(int index, RepoInfo repoInfo);
+
+    /** The repo with this index could not be created. */
+    void failed(int index, Exception e);
+  }
+
+  /**
+   * Create count new local repos holding the skeleton files from this task copy.
+   *
+   * <p>Repos are provisioned in parallel. Whenever some have finished we record all of them in the
+   * database with a single batched insert and then report them to the listener. The listener is
+   * only called from the calling thread.
+   *
+   * @throws RepoStorageException if we are interrupted. Repos which have already been reported to
+   *     the listener are kept.
+   */
+  public void createInstances(
+      String taskId,
+      boolean usingTestingVersion,
+      Date expiryDate,
+      TaskCopy copy,
+      int count,
+      BulkCreationListener listener)
+      throws RepoStorageException {
+    if (count <= 0) {
+      return;
+    }
+    ExecutorService executor =
+        Executors.newFixedThreadPool(Math.min(count, config.getBulkCreationParallelism()));
+    CompletionService<RepoInfo> completionService = new ExecutorCompletionService<>(executor);
+    Map<Future<RepoInfo>, Integer> indexes = new HashMap<>();
+    try {
+      for (int i = 0; i < count; i++) {
+        RepoInfo repoInfo =
+            new RepoInfo(
+                uuidGenerator.generate(),
+                taskId,
+                usingTestingVersion,
+                expiryDate,
+                RepoInfo.REMOTE_UNSET);
+        indexes.put(
+            completionService.submit(
+                () -> {
+                  Repo.provisionRepo(
+                      config.getRepoDir(repoInfo.getRepoId()),
+                      copy.getSkeletonCommit(),
+                      copy.getSkeletonObjectDirectory());
+                  return repoInfo;
+                }),
+            i);
+      }
+      int remaining = count;
+      while (remaining > 0) {
+        // Wait for one repo and then take whatever else has finished in the meantime
+        List<Future<RepoInfo>> done = new ArrayList<>();
+        done.add(completionService.take());
+        Future<RepoInfo> next;
+        while ((next = completionService.poll()) != null) {
+          done.add(next);
+        }
+        remaining -= done.size();
+
+        List<RepoInfo> provisioned = new ArrayList<>();
+        List<Integer> provisionedIndexes = new ArrayList<>();
+        for (Future<RepoInfo> f : done) {
+          try {
+            provisioned.add(f.get());
+            provisionedIndexes.add(indexes.get(f));
+          } catch (ExecutionException e) {
+            listener.failed(
+                indexes.get(f),
+                e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+          }
+        }
+        if (provisioned.isEmpty()) {
+          continue;
+        }
+        try (TransactionQueryRunner t = database.getQueryRunner()) {
+          RepoInfos.insertAll(provisioned, t);
+          t.commit();
+        } catch (SQLException e) {
+          for (int i = 0; i < provisioned.size(); i++) {
+            deleteQuietly(config.getRepoDir(provisioned.get(i).getRepoId()));
+            listener.failed(
+                provisionedIndexes.get(i),
+                new RepoStorageException("Failed to store repository details", e));
+          }
+          continue;
+        }
+        for (int i = 0; i < provisioned.size(); i++) {
+          listener.created(provisionedIndexes.get(i), provisioned.get(i));
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new RepoStorageException("Interrupted whilst creating repos", e);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /** Statistics about the cache of repo objects. */
+  public CacheStats getCacheStats() {
+    return cache.stats();
+  }
+
+  public RepositoryPool getRepositoryPool() {
+    return repositoryPool;
+  }
+
+  public TestingWorkspaces getTestingWorkspaces() {
+    return testingWorkspaces;
+  }
+
+  public WriteBehindFlusher getWriteBehindFlusher() {
+    return writeBehindFlusher;
+  }
+
+  public WarmRepoPool getWarmRepoPool() {
+    return warmRepoPool;
+  }
+
+  public SubmissionResultCache getSubmissionResultCache() {
+    return submissionResultCache;
+  }
+
+  public CompletedSubmissionCache getCompletedSubmissions() {
+    return completedSubmissions;
+  }
+
+  public RemoteMirrors getRemoteMirrors() {
+    return remoteMirrors;
+  }
+
+  public StorageReclaimer getStorageReclaimer() {
+    return storageReclaimer;
+  }
+
+  @Override
+  public void stop() {
+    storageReclaimer.stop();
+    writeBehindFlusher.stop();
+    warmRepoPool.stop();
+    testingWorkspaces.stop();
+    remoteMirrors.stop();
+    repositoryPool.stop();
+  }
+
+  /**
+   * How GitMaintenance sees a repo. GitMaintenance keeps this for as long as the repo is being
+   * tracked, which can be longer than any one Repo object is cached for. So we look up the cached
+   * Repo each time that gc wants to run and only let it run if we can take that object's lock
+   * straight away.
+   */
+  private GitMaintenance.Target maintenanceTarget(String repoId) {
+    File gitDirectory = gitDirectory(repoId);
+    return new GitMaintenance.Target() {
+      @Override
+      public File getGitDirectory() {
+        return gitDirectory;
+      }
+
+      @Override
+      public GitMaintenance.Exclusion tryExclude() {
+        Repo repo = cache.getIfPresent(repoId);
+        if (repo == null) {
+          return null;
+        }
+        AutoCloseableLock l = repo.tryTakeFullExclusionLock();
+        if (l == null) {
+          return null;
+        }
+        // Holding the lock pins the repo in the cache. If it is still the cached object now then
+        // no other object can be created for this repo until we let go.
+        if (cache.getIfPresent(repoId) != repo) {
+          l.close();
+          return null;
+        }
+        return l::close;
+      }
+    };
+  }
+
+  private File gitDirectory(String repoId) {
+    return new File(config.getRepoDir(repoId), Constants.DOT_GIT);
+  }
+
+  private static void deleteQuietly(File repoDirectory) {
+    try {
+      FileUtil.deleteRecursive(repoDirectory);
+    } catch (IOException e) {
+      LOG.warn("Failed to delete repo directory {}", repoDirectory, e);
+    }
+  }
+
   private void rethrowExecutionException(ExecutionException e)
       throws RepoStorageException, RepoNotFoundException {
     if (e.getCause() instanceof RepoStorageException) {
@@ -21,6 +21,8 @@ package uk.ac.cam.cl.dtg.teaching.pottery.repo;
 import java.sql.Date;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
 import org.apache.commons.dbutils.QueryRunner;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.RepoInfo;
 
@@ -42,15 +44,63 @@ public class RepoInfos {
         repoId);
   }
 
+  /** Look up the ids of local (i.e. not remote) repos which expired before the given time. */
+  public static List<String> getExpiredLocalRepoIds(java.util.Date before, QueryRunner q)
+      throws SQLException {
+    return q.query(
+        "SELECT repoid from repos where expiryDate < ? and remote = ?",
+        rs -> {
+          List<String> result = new ArrayList<>();
+          while (rs.next()) {
+            result.add(rs.getString(1));
+          }
+          return result;
+        },
+        new Timestamp(before.getTime()),
+        RepoInfo.REMOTE_UNSET);
+  }
+
+  /** Look up the ids of remote repos which expired before the given time. */
+  public static List<String> getExpiredRemoteRepoIds(java.util.Date before, QueryRunner q)
+      throws SQLException {
+    return q.query(
+        "SELECT repoid from repos where expiryDate < ? and remote <> ?",
+        rs -> {
+          List<String> result = new ArrayList<>();
+          while (rs.next()) {
+            result.add(rs.getString(1));
+          }
+          return result;
+        },
+        new Timestamp(before.getTime()),
+        RepoInfo.REMOTE_UNSET);
+  }
+
+  private static final String INSERT_SQL =
+      "INSERT INTO repos(repoid,taskid,using_testing_version,expiryDate, remote) "
+          + "values (?,?,?,?,?)";
+
   /** Insert this repo in to the database. */
   public static void insert(RepoInfo repoInfo, QueryRunner q) throws SQLException {
-    q.update(
-        "INSERT INTO repos(repoid,taskid,using_testing_version,expiryDate, remote) "
-            + "values (?,?,?,?,?)",
-        repoInfo.getRepoId(),
-        repoInfo.getTaskId(),
-        repoInfo.isUsingTestingVersion(),
-        new Timestamp(repoInfo.getExpiryDate().getTime()),
-        repoInfo.getRemote());
+    q.update(INSERT_SQL, toParams(repoInfo));
+  }
+
+  /** Insert all of these repos in to the database with a single batched statement. */
+  public static void insertAll(List<RepoInfo> repoInfos, QueryRunner q) throws SQLException {
+    Object[][] params = new Object[repoInfos.size()][];
+    for (int i = 0; i < params.length; i++) {
+      params[i] = toParams(repoInfos.get(i));
+    }
+    q.batch(INSERT_SQL, params);
+  }
+
+  private static Object[] toParams(RepoInfo repoInfo) {
+    return new Object[] {
+      repoInfo.getRepoId(),
+      repoInfo.getTaskId(),
+      repoInfo.isUsingTestingVersion(),
+      new Timestamp(repoInfo.getExpiryDate().getTime()),
+      repoInfo.getRemote()
+    };
   }
 }
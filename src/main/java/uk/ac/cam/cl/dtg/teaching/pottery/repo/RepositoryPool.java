@@ -0,0 +1,259 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import uk.ac.cam.cl.dtg.teaching.pottery.Stoppable;
+
+/**
+ * A bounded pool of open JGit repository handles keyed by repoId (or by another key for handles on
+ * bare repositories such as the mirrors of remote repos).
+ *
+ * <p>Opening a repository means reading its config, scanning its refs and loading its pack indexes
+ * so we keep handles open between requests rather than paying this on every call. Handles are
+ * reference counted: a handle which is evicted (because the pool is full, it has been idle for too
+ * long or it was invalidated) is only closed once the last lease on it has been released.
+ */
+public class RepositoryPool implements Stoppable {
+
+  private final int maxSize;
+
+  private final long idleTimeoutMs;
+
+  /** Entries in least-recently-used order. Guarded by this. */
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private final AtomicLong hits = new AtomicLong(0);
+
+  private final AtomicLong misses = new AtomicLong(0);
+
+  private final AtomicLong evictions = new AtomicLong(0);
+
+  public RepositoryPool(int maxSize, long idleTimeoutMs) {
+    this.maxSize = maxSize;
+    this.idleTimeoutMs = idleTimeoutMs;
+  }
+
+  /**
+   * Lease the repository handle for this repoId, opening it if necessary. Callers must close the
+   * lease when they are finished with the repository and must not close the repository itself.
+   * onClose is run when the lease is closed but not if this method throws.
+   */
+  Lease acquire(String repoId, File repoDirectory, Runnable onClose) throws IOException {
+    return acquire(repoId, new FileRepositoryBuilder().setWorkTree(repoDirectory), onClose);
+  }
+
+  /**
+   * Lease the handle for a bare repository (which has no working tree) in the same way as {@link
+   * #acquire(String, File, Runnable)}. The key must not clash with any repoId.
+   */
+  Lease acquireBare(String key, File gitDirectory) throws IOException {
+    return acquire(key, new FileRepositoryBuilder().setGitDir(gitDirectory), () -> {});
+  }
+
+  private Lease acquire(String repoId, FileRepositoryBuilder builder, Runnable onClose)
+      throws IOException {
+    Entry entry;
+    List<Entry> toClose = new ArrayList<>();
+    synchronized (this) {
+      evict(System.currentTimeMillis(), toClose);
+      entry = entries.get(repoId);
+      if (entry == null) {
+        entry = new Entry();
+        entries.put(repoId, entry);
+        misses.incrementAndGet();
+      } else {
+        hits.incrementAndGet();
+      }
+      entry.refCount++;
+    }
+    closeAll(toClose);
+
+    try {
+      return new Lease(entry, entry.open(builder), onClose);
+    } catch (IOException | RuntimeException e) {
+      synchronized (this) {
+        entries.remove(repoId, entry);
+        entry.evicted = true;
+      }
+      release(entry);
+      throw e;
+    }
+  }
+
+  /**
+   * Remove the handle for this repoId from the pool. It will be closed as soon as any outstanding
+   * leases are released.
+   */
+  public void invalidate(String repoId) {
+    Entry entry;
+    synchronized (this) {
+      entry = entries.remove(repoId);
+      if (entry == null) {
+        return;
+      }
+      entry.evicted = true;
+      evictions.incrementAndGet();
+      if (entry.refCount > 0) {
+        return;
+      }
+    }
+    entry.close();
+  }
+
+  @Override
+  public void stop() {
+    List<Entry> toClose = new ArrayList<>();
+    synchronized (this) {
+      for (Entry entry : entries.values()) {
+        entry.evicted = true;
+        if (entry.refCount == 0) {
+          toClose.add(entry);
+        }
+      }
+      entries.clear();
+    }
+    closeAll(toClose);
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public synchronized int getSize() {
+    return entries.size();
+  }
+
+  private void release(Entry entry) {
+    List<Entry> toClose = new ArrayList<>();
+    synchronized (this) {
+      entry.refCount--;
+      entry.lastReleased = System.currentTimeMillis();
+      if (entry.evicted && entry.refCount == 0) {
+        toClose.add(entry);
+      }
+    }
+    closeAll(toClose);
+  }
+
+  /**
+   * Evict idle entries and then, if we are still over size, the least recently used entries which
+   * are not currently leased. Entries which are ready to be closed are added to toClose so that the
+   * caller can close them without holding the lock.
+   */
+  private void evict(long now, List<Entry> toClose) {
+    int excess = entries.size() - maxSize + 1;
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.refCount > 0) {
+        continue;
+      }
+      if (excess > 0 || now - entry.lastReleased > idleTimeoutMs) {
+        it.remove();
+        entry.evicted = true;
+        evictions.incrementAndGet();
+        toClose.add(entry);
+        excess--;
+      }
+    }
+  }
+
+  private static void closeAll(List<Entry> toClose) {
+    for (Entry entry : toClose) {
+      entry.close();
+    }
+  }
+
+  /** A lease on a pooled repository handle. Close it to return the handle to the pool. */
+  public final class Lease implements AutoCloseable {
+
+    private final Entry entry;
+
+    private final Repository repository;
+
+    private final Runnable onClose;
+
+    private boolean closed = false;
+
+    private Lease(Entry entry, Repository repository, Runnable onClose) {
+      this.entry = entry;
+      this.repository = repository;
+      this.onClose = onClose;
+    }
+
+    public Repository getRepository() {
+      return repository;
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        release(entry);
+        onClose.run();
+      }
+    }
+  }
+
+  private static class Entry {
+
+    /** Number of outstanding leases. Guarded by the pool. */
+    private int refCount = 0;
+
+    /** True if this entry is no longer in the pool. Guarded by the pool. */
+    private boolean evicted = false;
+
+    /** The time at which the last lease was released. Guarded by the pool. */
+    private long lastReleased = System.currentTimeMillis();
+
+    /** The open repository. Guarded by this. */
+    private Repository repository;
+
+    private synchronized Repository open(FileRepositoryBuilder builder) throws IOException {
+      if (repository == null) {
+        repository = builder.setMustExist(true).build();
+      }
+      return repository;
+    }
+
+    private synchronized void close() {
+      if (repository != null) {
+        repository.close();
+        repository = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,305 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import com.google.common.util.concurrent.RateLimiter;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.Stoppable;
+import uk.ac.cam.cl.dtg.teaching.pottery.TransactionQueryRunner;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.RepoConfig;
+import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoNotFoundException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoStorageException;
+
+/**
+ * Frees up disk space in the background.
+ *
+ * <p>Each pass deletes directories in the testing root which have been left behind by testing
+ * workspaces and packs repos which expired more than a grace period ago into a single git bundle
+ * file. The repo directory is then deleted. An archived repo is rehydrated from its bundle the next
+ * time it is used. Remote repos have nothing to archive but the local mirrors of those which
+ * expired more than the grace period ago are deleted. All reading, writing and deleting of files is
+ * rate limited so that we don't compete with testing submissions for the disk.
+ */
+public class StorageReclaimer implements Stoppable {
+
+  protected static final Logger LOG = LoggerFactory.getLogger(StorageReclaimer.class);
+
+  /** The cost of deleting a file (or directory) is at least this many bytes. */
+  private static final int MIN_DELETE_COST = 4096;
+
+  private final RepoConfig config;
+
+  private final Database database;
+
+  private final RepoFactory repoFactory;
+
+  private final TestingWorkspaces testingWorkspaces;
+
+  private final RateLimiter rateLimiter;
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+  private final AtomicLong reclaimedBytes = new AtomicLong(0);
+
+  private final AtomicLong archivedRepos = new AtomicLong(0);
+
+  private final AtomicLong deletedTestingDirectories = new AtomicLong(0);
+
+  private final AtomicLong removedMirrors = new AtomicLong(0);
+
+  StorageReclaimer(
+      RepoConfig config,
+      Database database,
+      RepoFactory repoFactory,
+      TestingWorkspaces testingWorkspaces) {
+    this.config = config;
+    this.database = database;
+    this.repoFactory = repoFactory;
+    this.testingWorkspaces = testingWorkspaces;
+    this.rateLimiter = RateLimiter.create(config.getStorageReclaimerBytesPerSecond());
+  }
+
+  /** Start running passes periodically. */
+  void start() {
+    long intervalMs = config.getStorageReclaimerIntervalMs();
+    scheduler.scheduleWithFixedDelay(this::reclaim, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  /** Run a single pass now. Failures are logged. */
+  public void reclaim() {
+    sweepTestingDirectories();
+    archiveExpiredRepos();
+    removeExpiredMirrors();
+  }
+
+  /**
+   * Pack this repo into a bundle and delete its directory. Nothing is done if the repo is remote,
+   * is already archived or is in use.
+   *
+   * @return true if the repo was archived
+   */
+  public boolean archive(String repoId) throws RepoNotFoundException, RepoStorageException {
+    long freed = repoFactory.getInstance(repoId).archive(rateLimiter);
+    if (freed < 0) {
+      return false;
+    }
+    reclaimedBytes.addAndGet(freed);
+    archivedRepos.incrementAndGet();
+    LOG.info("Archived repo {} freeing {} bytes", repoId, freed);
+    return true;
+  }
+
+  /**
+   * Delete the local mirror of this remote repo. It is fetched again if the repo is used
+   * afterwards.
+   *
+   * @return true if there was a mirror to delete
+   */
+  public boolean removeMirror(String repoId) throws IOException {
+    long freed = repoFactory.getRemoteMirrors().remove(repoId, rateLimiter);
+    if (freed < 0) {
+      return false;
+    }
+    reclaimedBytes.addAndGet(freed);
+    removedMirrors.incrementAndGet();
+    LOG.info("Removed mirror of repo {} freeing {} bytes", repoId, freed);
+    return true;
+  }
+
+  /** The number of bytes freed so far. */
+  public long getReclaimedBytes() {
+    return reclaimedBytes.get();
+  }
+
+  /** The number of repos which have been packed into bundles. */
+  public long getArchivedRepos() {
+    return archivedRepos.get();
+  }
+
+  /** The number of mirrors of expired remote repos which have been deleted. */
+  public long getRemovedMirrors() {
+    return removedMirrors.get();
+  }
+
+  /** The number of stale directories deleted from the testing root. */
+  public long getDeletedTestingDirectories() {
+    return deletedTestingDirectories.get();
+  }
+
+  @Override
+  public void stop() {
+    scheduler.shutdownNow();
+  }
+
+  private void sweepTestingDirectories() {
+    File[] candidates = config.getRepoTestingRoot().listFiles();
+    if (candidates == null) {
+      return;
+    }
+    long staleBefore = System.currentTimeMillis() - config.getStaleTestingDirectoryMs();
+    for (File f : candidates) {
+      if (Thread.currentThread().isInterrupted()) {
+        return;
+      }
+      if (testingWorkspaces.isLive(f) || f.lastModified() > staleBefore) {
+        continue;
+      }
+      try {
+        reclaimedBytes.addAndGet(deleteRecursive(f, rateLimiter));
+        deletedTestingDirectories.incrementAndGet();
+      } catch (IOException e) {
+        LOG.warn("Failed to delete stale testing directory {}", f, e);
+      }
+    }
+  }
+
+  private void archiveExpiredRepos() {
+    List<String> repoIds;
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      repoIds =
+          RepoInfos.getExpiredLocalRepoIds(
+              new Date(System.currentTimeMillis() - config.getExpiredRepoGracePeriodMs()), q);
+    } catch (SQLException e) {
+      LOG.error("Failed to look up expired repos", e);
+      return;
+    }
+    for (String repoId : repoIds) {
+      if (Thread.currentThread().isInterrupted()) {
+        return;
+      }
+      if (!config.getRepoDir(repoId).exists()) {
+        // Already archived
+        continue;
+      }
+      try {
+        archive(repoId);
+      } catch (RepoNotFoundException | RepoStorageException e) {
+        LOG.warn("Failed to archive repo {}", repoId, e);
+      }
+    }
+  }
+
+  private void removeExpiredMirrors() {
+    List<String> repoIds;
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      repoIds =
+          RepoInfos.getExpiredRemoteRepoIds(
+              new Date(System.currentTimeMillis() - config.getExpiredRepoGracePeriodMs()), q);
+    } catch (SQLException e) {
+      LOG.error("Failed to look up expired remote repos", e);
+      return;
+    }
+    for (String repoId : repoIds) {
+      if (Thread.currentThread().isInterrupted()) {
+        return;
+      }
+      if (!config.getRemoteMirrorDir(repoId).exists()) {
+        // Already removed
+        continue;
+      }
+      try {
+        removeMirror(repoId);
+      } catch (IOException e) {
+        LOG.warn("Failed to remove mirror of repo {}", repoId, e);
+      }
+    }
+  }
+
+  /**
+   * Delete this file or directory (and everything under it) at the rate allowed by the limiter.
+   *
+   * @return the number of bytes freed
+   */
+  static long deleteRecursive(File root, RateLimiter rateLimiter) throws IOException {
+    AtomicLong freed = new AtomicLong(0);
+    try {
+      Files.walkFileTree(
+          root.toPath(),
+          new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                throws IOException {
+              long cost = attrs.size() + MIN_DELETE_COST;
+              rateLimiter.acquire((int) Math.min(Integer.MAX_VALUE, cost));
+              Files.delete(file);
+              freed.addAndGet(attrs.size());
+              return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc)
+                throws IOException {
+              if (exc != null) {
+                throw exc;
+              }
+              rateLimiter.acquire(MIN_DELETE_COST);
+              Files.delete(dir);
+              return FileVisitResult.CONTINUE;
+            }
+          });
+    } catch (NoSuchFileException e) {
+      // Someone else deleted it
+    }
+    return freed.get();
+  }
+
+  /** An output stream which writes no faster than the rate allowed by the limiter. */
+  static class ThrottledOutputStream extends FilterOutputStream {
+
+    private final RateLimiter rateLimiter;
+
+    ThrottledOutputStream(OutputStream out, RateLimiter rateLimiter) {
+      super(out);
+      this.rateLimiter = rateLimiter;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      rateLimiter.acquire();
+      out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (len > 0) {
+        rateLimiter.acquire(len);
+      }
+      out.write(b, off, len);
+    }
+  }
+}
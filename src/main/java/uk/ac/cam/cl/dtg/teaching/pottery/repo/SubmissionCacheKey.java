@@ -0,0 +1,42 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import com.google.auto.value.AutoValue;
+
+/**
+ * Identifies the inputs to a test run. Two submissions with the same key will produce the same
+ * result (as long as the task is deterministic).
+ */
+@AutoValue
+abstract class SubmissionCacheKey {
+
+  /** The SHA of the tree of files under test. */
+  abstract String treeId();
+
+  /** The task copy used to compile, run and validate the submission. */
+  abstract String copyId();
+
+  /** The container image used for testing. */
+  abstract String image();
+
+  static SubmissionCacheKey create(String treeId, String copyId, String image) {
+    return new AutoValue_SubmissionCacheKey(treeId, copyId, image);
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.TransactionQueryRunner;
+import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
+import uk.ac.cam.cl.dtg.teaching.pottery.model.Submission;
+
+/**
+ * Results of earlier test runs indexed by the content that was tested.
+ *
+ * <p>The cache is held in the submissioncache table. Each row points at the submission which
+ * produced the result so deleting that submission also removes it from the cache.
+ */
+public class SubmissionResultCache {
+
+  protected static final Logger LOG = LoggerFactory.getLogger(SubmissionResultCache.class);
+
+  private final AtomicLong hits = new AtomicLong(0);
+
+  private final AtomicLong misses = new AtomicLong(0);
+
+  /**
+   * Copy an earlier result for this key into a new submission with the given repoId and tag.
+   *
+   * @param key the inputs to the test run
+   * @param started the new submission. We keep its identity and scheduling information.
+   * @return a completed submission or null if there is no earlier result
+   */
+  Submission lookup(SubmissionCacheKey key, Submission started, Database database)
+      throws SQLException {
+    Submission cached;
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      cached = Submissions.getByCacheKey(key, q);
+    }
+    if (cached == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return new Submission(
+        started.getRepoId(),
+        started.getTag(),
+        cached.getCompilationOutput(),
+        cached.getCompilationTimeMs(),
+        cached.getHarnessTimeMs(),
+        cached.getValidatorTimeMs(),
+        started.getWaitTimeMs(),
+        cached.getTestSteps(),
+        cached.getErrorMessage(),
+        cached.getStatus(),
+        started.getDateScheduled(),
+        cached.getInterpretation(),
+        false);
+  }
+
+  /**
+   * Record that the stored submission is the result for this key. Failures are logged rather than
+   * thrown: the result is already safely stored, we just won't be able to reuse it.
+   */
+  void store(SubmissionCacheKey key, Submission submission, Database database) {
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      Submissions.insertCacheEntry(key, submission, q);
+      q.commit();
+    } catch (SQLException e) {
+      LOG.warn("Failed to add submission {} to the result cache", submission.getTag(), e);
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /** Fraction of lookups which found an earlier result. */
+  public double getHitRate() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return total == 0 ? 0.0 : (double) h / total;
+  }
+}
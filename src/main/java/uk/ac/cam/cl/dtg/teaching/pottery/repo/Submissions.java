@@ -60,6 +60,24 @@ public class Submissions {
     }
   }
 
+  /** A copy of this submission which doesn't ask to be retried. */
+  static Submission withoutRetry(Submission s) {
+    return new Submission(
+        s.getRepoId(),
+        s.getTag(),
+        s.getCompilationOutput(),
+        s.getCompilationTimeMs(),
+        s.getHarnessTimeMs(),
+        s.getValidatorTimeMs(),
+        s.getWaitTimeMs(),
+        s.getTestSteps(),
+        s.getErrorMessage(),
+        s.getStatus(),
+        s.getDateScheduled(),
+        s.getInterpretation(),
+        false);
+  }
+
   /** Lookup a Submission by its repoId and the tag (sha hash). */
   public static Submission getByRepoIdAndTag(String repoId, String tag, QueryRunner q)
       throws SQLException {
@@ -70,6 +88,43 @@ public class Submissions {
         tag);
   }
 
+  /** Lookup a Submission whose result is cached under this key. */
+  static Submission getByCacheKey(SubmissionCacheKey key, QueryRunner q) throws SQLException {
+    return q.query(
+        "select s.* from submissioncache c, submissions s "
+            + "where c.repoid = s.repoid and c.tag = s.tag "
+            + "and c.treeid = ? and c.copyid = ? and c.image = ?",
+        rs -> rs.next() ? resultSetToSubmission(rs) : null,
+        key.treeId(),
+        key.copyId(),
+        key.image());
+  }
+
+  /**
+   * Record that this (stored) submission holds the result for the given cache key. Nothing is
+   * changed if there is already an entry for the key.
+   */
+  static void insertCacheEntry(
+      SubmissionCacheKey key, Submission submission, TransactionQueryRunner q)
+      throws SQLException {
+    boolean exists =
+        q.query(
+            "select repoid from submissioncache where treeid = ? and copyid = ? and image = ?",
+            rs -> rs.next(),
+            key.treeId(),
+            key.copyId(),
+            key.image());
+    if (!exists) {
+      q.update(
+          "INSERT into submissioncache (treeid, copyid, image, repoid, tag) VALUES (?,?,?,?,?)",
+          key.treeId(),
+          key.copyId(),
+          key.image(),
+          submission.getRepoId(),
+          submission.getTag());
+    }
+  }
+
   /** Insert this submission into the database. */
   public static void insert(Submission submission, TransactionQueryRunner q) throws SQLException {
     ObjectMapper mapper = new ObjectMapper();
@@ -148,7 +203,12 @@ public class Submissions {
     q.commit();
   }
 
+  /** Delete this submission and any result cache entries which refer to it. */
   public static void delete(Submission submission, TransactionQueryRunner q) throws SQLException {
+    q.update(
+        "DELETE from submissioncache where repoId=? and tag=?",
+        submission.getRepoId(),
+        submission.getTag());
     q.update(
         "DELETE from submissions where repoId=? and tag=?",
         submission.getRepoId(),
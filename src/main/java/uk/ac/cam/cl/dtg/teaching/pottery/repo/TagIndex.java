@@ -0,0 +1,166 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import com.google.common.collect.ImmutableList;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * An in-memory index of the web tags in a repository.
+ *
+ * <p>The index is loaded from the refs the first time it is used and is then kept up to date as we
+ * create tags, so listing tags and choosing the next tag name don't need to scan the refs. If the
+ * refs change on disk behind our back (i.e. the packed-refs file or the refs/tags directory
+ * changes) then the index is reloaded. Tags are created with a ref update which fails if the ref
+ * already exists so an out of date index can never cause a tag to be overwritten.
+ */
+class TagIndex {
+
+  private final String prefix;
+
+  /** The tag names (without refs/tags/). Replaced wholesale on reload. */
+  private volatile ConcurrentSkipListSet<String> tags = new ConcurrentSkipListSet<>();
+
+  /** The sequence number to use for the next tag. */
+  private final AtomicInteger nextSequence = new AtomicInteger(0);
+
+  /** The state of the refs on disk when we last looked or null if not loaded. Guarded by this. */
+  private Fingerprint fingerprint = null;
+
+  TagIndex(String prefix) {
+    this.prefix = prefix;
+  }
+
+  /** List the names of the tags in the repository. */
+  ImmutableList<String> list(Repository repository) throws IOException {
+    refreshIfChanged(repository);
+    return ImmutableList.copyOf(tags);
+  }
+
+  /**
+   * Reserve a name for a new tag. The name is never handed out again by this index but it might
+   * already exist if it was created out of band. In which case call reload and try again.
+   */
+  String nextTagName(Repository repository) throws IOException {
+    refreshIfChanged(repository);
+    return prefix + String.format("%03d", nextSequence.getAndIncrement());
+  }
+
+  /** Record that we have created this tag. */
+  synchronized void added(String tagName, Repository repository) throws IOException {
+    tags.add(tagName);
+    fingerprint = Fingerprint.of(repository.getDirectory());
+  }
+
+  /** Reload the index from the refs in the repository. */
+  synchronized void reload(Repository repository) throws IOException {
+    // Take the fingerprint first so that any change whilst we are reading the refs is noticed
+    Fingerprint current = Fingerprint.of(repository.getDirectory());
+    ConcurrentSkipListSet<String> loaded = new ConcurrentSkipListSet<>();
+    int max = -1;
+    for (String tagName : repository.getRefDatabase().getRefs(Constants.R_TAGS).keySet()) {
+      if (tagName.startsWith(prefix)) {
+        try {
+          max = Math.max(max, Integer.parseInt(tagName.substring(prefix.length())));
+        } catch (NumberFormatException e) {
+          throw new IOException("Failed to parse tag name " + tagName, e);
+        }
+        loaded.add(tagName);
+      }
+    }
+    int next = max + 1;
+    nextSequence.accumulateAndGet(next, Math::max);
+    tags = loaded;
+    fingerprint = current;
+  }
+
+  private void refreshIfChanged(Repository repository) throws IOException {
+    Fingerprint current = Fingerprint.of(repository.getDirectory());
+    synchronized (this) {
+      if (current.equals(fingerprint)) {
+        return;
+      }
+    }
+    reload(repository);
+  }
+
+  /** Identifies the state of the refs/tags directory and the packed-refs file. */
+  private static final class Fingerprint {
+
+    private final FileTime tagsModified;
+
+    private final FileTime packedRefsModified;
+
+    /** Identifies the packed-refs file. This changes when it is rewritten. */
+    private final Object packedRefsKey;
+
+    private Fingerprint(FileTime tagsModified, FileTime packedRefsModified, Object packedRefsKey) {
+      this.tagsModified = tagsModified;
+      this.packedRefsModified = packedRefsModified;
+      this.packedRefsKey = packedRefsKey;
+    }
+
+    private static Fingerprint of(File gitDirectory) throws IOException {
+      BasicFileAttributes tags = readAttributes(new File(gitDirectory, Constants.R_TAGS));
+      BasicFileAttributes packedRefs =
+          readAttributes(new File(gitDirectory, Constants.PACKED_REFS));
+      return new Fingerprint(
+          tags == null ? null : tags.lastModifiedTime(),
+          packedRefs == null ? null : packedRefs.lastModifiedTime(),
+          packedRefs == null ? null : packedRefs.fileKey());
+    }
+
+    private static BasicFileAttributes readAttributes(File file) throws IOException {
+      try {
+        return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+      } catch (NoSuchFileException e) {
+        return null;
+      }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Fingerprint)) {
+        return false;
+      }
+      Fingerprint that = (Fingerprint) o;
+      return Objects.equals(tagsModified, that.tagsModified)
+          && Objects.equals(packedRefsModified, that.packedRefsModified)
+          && Objects.equals(packedRefsKey, that.packedRefsKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(tagsModified, packedRefsModified, packedRefsKey);
+    }
+  }
+}
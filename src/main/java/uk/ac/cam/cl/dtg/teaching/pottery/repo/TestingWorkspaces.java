@@ -0,0 +1,226 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
+import uk.ac.cam.cl.dtg.teaching.pottery.Stoppable;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.RepoConfig;
+
+/**
+ * Manages the directories that submissions are tested in.
+ *
+ * <p>Each submission gets a workspace of its own so that different tags of the same repo can be
+ * tested at the same time. The number of workspaces in use is capped. When a workspace is released
+ * it is deleted in the background after a short delay. If another submission for the same repo
+ * comes along in the meantime then it takes over the old workspace so that only the files which
+ * have changed need to be written out.
+ */
+public class TestingWorkspaces implements Stoppable {
+
+  protected static final Logger LOG = LoggerFactory.getLogger(TestingWorkspaces.class);
+
+  private final RepoConfig config;
+
+  private final Semaphore available;
+
+  private final ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor();
+
+  /** The directories of all workspaces which have not been deleted yet. */
+  private final Set<File> live = ConcurrentHashMap.newKeySet();
+
+  /** Released workspaces waiting to be deleted, indexed by repoId. Guarded by this. */
+  private final Map<String, Deque<TestingWorkspace>> idle = new HashMap<>();
+
+  /**
+   * Used to give each workspace a unique directory name. We start from the current time so that
+   * names don't clash with any left over directories from a previous run which are still being
+   * deleted.
+   */
+  private final AtomicLong counter = new AtomicLong(System.currentTimeMillis());
+
+  /** Create a new instance. Any directories left over from a previous run are deleted. */
+  public TestingWorkspaces(RepoConfig config) {
+    this.config = config;
+    this.available = new Semaphore(config.getMaxTestingWorkspaces(), true);
+    File[] leftOver = config.getRepoTestingRoot().listFiles();
+    if (leftOver != null) {
+      for (File f : leftOver) {
+        cleaner.execute(() -> delete(f));
+      }
+    }
+  }
+
+  /**
+   * Get a workspace for testing a submission from this repo. This blocks if the maximum number of
+   * workspaces are already in use. Close the workspace to release it.
+   */
+  TestingWorkspace acquire(String repoId) throws InterruptedException {
+    available.acquire();
+    return take(repoId);
+  }
+
+  /**
+   * Get a workspace for testing a submission from this repo without waiting.
+   *
+   * @return the workspace or null if the maximum number of workspaces are already in use
+   */
+  TestingWorkspace tryAcquire(String repoId) throws InterruptedException {
+    // A timeout of zero (unlike tryAcquire()) doesn't jump ahead of anyone already waiting
+    if (!available.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+      return null;
+    }
+    return take(repoId);
+  }
+
+  /** Reuse an idle workspace for this repo or make a new one. Call after taking a permit. */
+  private TestingWorkspace take(String repoId) {
+    synchronized (this) {
+      Deque<TestingWorkspace> candidates = idle.get(repoId);
+      if (candidates != null) {
+        TestingWorkspace workspace = candidates.pollFirst();
+        if (candidates.isEmpty()) {
+          idle.remove(repoId);
+        }
+        if (workspace != null) {
+          workspace.pendingDeletion.cancel(false);
+          workspace.pendingDeletion = null;
+          return workspace;
+        }
+      }
+    }
+    File directory = config.getTestingWorkspaceDir(repoId, counter.incrementAndGet());
+    live.add(directory);
+    return new TestingWorkspace(repoId, directory);
+  }
+
+  /** Returns true if this directory belongs to a workspace which is in use or is idle. */
+  boolean isLive(File directory) {
+    return live.contains(directory);
+  }
+
+  /** The number of workspaces currently in use. */
+  public int getActive() {
+    return config.getMaxTestingWorkspaces() - available.availablePermits();
+  }
+
+  /** The number of released workspaces which have not been deleted yet. */
+  public synchronized int getIdle() {
+    return idle.values().stream().mapToInt(Deque::size).sum();
+  }
+
+  @Override
+  public void stop() {
+    cleaner.shutdownNow();
+  }
+
+  private void release(TestingWorkspace workspace) {
+    try {
+      synchronized (this) {
+        workspace.pendingDeletion =
+            cleaner.schedule(
+                () -> expire(workspace),
+                config.getTestingWorkspaceRetentionMs(),
+                TimeUnit.MILLISECONDS);
+        idle.computeIfAbsent(workspace.repoId, k -> new ArrayDeque<>()).addFirst(workspace);
+      }
+    } catch (RejectedExecutionException e) {
+      // We've been stopped
+      delete(workspace.directory);
+      live.remove(workspace.directory);
+    } finally {
+      available.release();
+    }
+  }
+
+  private void expire(TestingWorkspace workspace) {
+    synchronized (this) {
+      Deque<TestingWorkspace> candidates = idle.get(workspace.repoId);
+      if (candidates == null || !candidates.remove(workspace)) {
+        // Someone else has taken it over
+        return;
+      }
+      if (candidates.isEmpty()) {
+        idle.remove(workspace.repoId);
+      }
+    }
+    delete(workspace.directory);
+    live.remove(workspace.directory);
+  }
+
+  private static void delete(File directory) {
+    try {
+      FileUtil.deleteRecursive(directory);
+    } catch (IOException e) {
+      LOG.warn("Failed to delete testing directory {}", directory, e);
+    }
+  }
+
+  /** A directory for testing one submission. */
+  class TestingWorkspace implements AutoCloseable {
+
+    private final String repoId;
+
+    private final File directory;
+
+    /** What we last wrote into the directory or null if unknown. */
+    private TreeMaterializer.Snapshot snapshot;
+
+    /** Set whilst this workspace is idle. Guarded by TestingWorkspaces.this. */
+    private ScheduledFuture<?> pendingDeletion;
+
+    private TestingWorkspace(String repoId, File directory) {
+      this.repoId = repoId;
+      this.directory = directory;
+    }
+
+    File getDirectory() {
+      return directory;
+    }
+
+    TreeMaterializer.Snapshot getSnapshot() {
+      return snapshot;
+    }
+
+    void setSnapshot(TreeMaterializer.Snapshot snapshot) {
+      this.snapshot = snapshot;
+    }
+
+    @Override
+    public void close() {
+      release(this);
+    }
+  }
+}
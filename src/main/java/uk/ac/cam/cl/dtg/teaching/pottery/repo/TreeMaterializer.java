@@ -0,0 +1,238 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import com.google.common.collect.ImmutableMap;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectChecker;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
+
+/**
+ * Writes the contents of a git tree into a plain directory straight from the object database.
+ *
+ * <p>This replaces cloning the repository and checking out the tag under test. No .git directory is
+ * created. If we are given a snapshot of what we wrote into the directory last time then we only
+ * rewrite the files that have changed, delete the files which have been removed and delete anything
+ * else which has appeared in the directory since (e.g. compiler output).
+ */
+class TreeMaterializer {
+
+  /** A record of the files written into a directory. */
+  static class Snapshot {
+
+    private final ObjectId treeId;
+
+    private final ImmutableMap<String, FileState> files;
+
+    private Snapshot(ObjectId treeId, ImmutableMap<String, FileState> files) {
+      this.treeId = treeId;
+      this.files = files;
+    }
+
+    ObjectId getTreeId() {
+      return treeId;
+    }
+  }
+
+  /**
+   * The state of a file that we wrote. We record the length and modification time after writing so
+   * that we can notice if something else has changed the file since.
+   */
+  private static class FileState {
+
+    private final ObjectId blobId;
+
+    private final FileMode mode;
+
+    private final long length;
+
+    private final long lastModified;
+
+    private FileState(ObjectId blobId, FileMode mode, BasicFileAttributes attributes) {
+      this.blobId = blobId;
+      this.mode = mode;
+      this.length = attributes.size();
+      this.lastModified = attributes.lastModifiedTime().toMillis();
+    }
+
+    private boolean matches(BasicFileAttributes attributes) {
+      return attributes.size() == length
+          && attributes.lastModifiedTime().toMillis() == lastModified;
+    }
+
+    private boolean matches(ObjectId blobId, FileMode mode) {
+      return this.blobId.equals(blobId) && this.mode.equals(mode);
+    }
+  }
+
+  /**
+   * Make the contents of targetDirectory match the given tree.
+   *
+   * @param repository the repository holding the tree
+   * @param treeId the tree to write out
+   * @param targetDirectory the directory to write to. This is created if it doesn't exist.
+   * @param previous the snapshot returned by the last call for this directory or null if unknown
+   * @return a snapshot describing the new contents of targetDirectory
+   */
+  static Snapshot materialize(
+      Repository repository, ObjectId treeId, File targetDirectory, Snapshot previous)
+      throws IOException {
+    if (previous == null && targetDirectory.exists()) {
+      FileUtil.deleteRecursive(targetDirectory);
+    }
+    FileUtil.mkdirIfNotExists(targetDirectory);
+    Path root = targetDirectory.toPath().toAbsolutePath().normalize();
+    Path realRoot = root.toRealPath();
+    ObjectChecker pathChecker = new ObjectChecker().setSafeForWindows(true).setSafeForMacOS(true);
+
+    try (ObjectReader reader = repository.newObjectReader()) {
+      Map<String, ObjectId> blobs = new HashMap<>();
+      Map<String, FileMode> modes = new HashMap<>();
+      try (TreeWalk treeWalk = new TreeWalk(reader)) {
+        treeWalk.addTree(treeId);
+        treeWalk.setRecursive(true);
+        while (treeWalk.next()) {
+          FileMode mode = treeWalk.getFileMode(0);
+          if (mode.equals(FileMode.GITLINK)) {
+            continue;
+          }
+          // The tree might have come from a candidate's remote repo so don't trust the paths in it
+          pathChecker.checkPath(treeWalk.getPathString());
+          blobs.put(treeWalk.getPathString(), treeWalk.getObjectId(0));
+          modes.put(treeWalk.getPathString(), mode);
+        }
+      }
+
+      Map<String, FileState> written = new HashMap<>();
+      if (previous != null) {
+        deleteChanged(root, previous, blobs, modes, written);
+      }
+
+      for (Map.Entry<String, ObjectId> e : blobs.entrySet()) {
+        String path = e.getKey();
+        if (written.containsKey(path)) {
+          continue;
+        }
+        FileMode mode = modes.get(path);
+        Path file = root.resolve(path).normalize();
+        if (!file.startsWith(root) || file.equals(root)) {
+          throw new IOException("Refusing to write " + path + " outside of " + root);
+        }
+        writeBlob(reader, e.getValue(), mode, file, realRoot);
+        written.put(
+            path,
+            new FileState(
+                e.getValue(),
+                mode,
+                Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS)));
+      }
+      return new Snapshot(treeId, ImmutableMap.copyOf(written));
+    }
+  }
+
+  /**
+   * Walk the directory and delete everything apart from files which we wrote last time, which are
+   * unchanged since and which have the same contents in the new tree. Files which we keep are added
+   * to kept.
+   */
+  private static void deleteChanged(
+      Path root,
+      Snapshot previous,
+      Map<String, ObjectId> blobs,
+      Map<String, FileMode> modes,
+      Map<String, FileState> kept)
+      throws IOException {
+    Files.walkFileTree(
+        root,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+              throws IOException {
+            String path = root.relativize(file).toString().replace(File.separatorChar, '/');
+            FileState state = previous.files.get(path);
+            if (state != null
+                && state.matches(attrs)
+                && blobs.containsKey(path)
+                && state.matches(blobs.get(path), modes.get(path))) {
+              kept.put(path, state);
+            } else {
+              Files.delete(file);
+            }
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+            if (exc != null) {
+              throw exc;
+            }
+            if (!dir.equals(root)) {
+              try (Stream<Path> children = Files.list(dir)) {
+                if (!children.findAny().isPresent()) {
+                  Files.delete(dir);
+                }
+              }
+            }
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+
+  private static void writeBlob(
+      ObjectReader reader, ObjectId blobId, FileMode mode, Path file, Path realRoot)
+      throws IOException {
+    FileUtil.mkdirIfNotExists(file.getParent().toFile());
+    // Make sure that we aren't about to write through a symlink to somewhere else
+    if (!file.getParent().toRealPath().startsWith(realRoot)) {
+      throw new IOException("Refusing to write " + file + " outside of " + realRoot);
+    }
+    if (mode.equals(FileMode.SYMLINK)) {
+      String target =
+          new String(reader.open(blobId, Constants.OBJ_BLOB).getBytes(), StandardCharsets.UTF_8);
+      Files.createSymbolicLink(file, Paths.get(target));
+      return;
+    }
+    try (OutputStream out = new FileOutputStream(file.toFile())) {
+      reader.open(blobId, Constants.OBJ_BLOB).copyTo(out);
+    }
+    if (mode.equals(FileMode.EXECUTABLE_FILE) && !file.toFile().setExecutable(true, false)) {
+      throw new IOException("Failed to set executable permission on " + file);
+    }
+  }
+}
@@ -0,0 +1,263 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jgit.lib.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
+import uk.ac.cam.cl.dtg.teaching.pottery.Stoppable;
+import uk.ac.cam.cl.dtg.teaching.pottery.UuidGenerator;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.RepoConfig;
+import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskCopy;
+
+/**
+ * Keeps a supply of ready-made repos for each task copy so that starting a repo only needs a
+ * database insert.
+ *
+ * <p>Repos in the pool hold the skeleton files but are not in the database. They are kept in a
+ * separate directory (which is wiped at startup) and moved into the repo root when claimed so that
+ * an unclean shutdown can't leave unrecorded repos amongst the real ones.
+ *
+ * <p>A pool is created the first time a candidate starts a repo from a task copy and is then topped
+ * up in the background by the worker. If the task is given a new copy then the pool is discarded
+ * and its repos are deleted.
+ */
+public class WarmRepoPool implements Stoppable {
+
+  protected static final Logger LOG = LoggerFactory.getLogger(WarmRepoPool.class);
+
+  private final RepoConfig config;
+
+  private final UuidGenerator uuidGenerator;
+
+  /** Pools indexed by taskId and whether they are for the testing copy. Guarded by this. */
+  private final Map<String, Pool> pools = new HashMap<>();
+
+  /** Repos from discarded pools which need deleting. Guarded by this. */
+  private final List<String> discarded = new ArrayList<>();
+
+  /** Set once we have been stopped. Guarded by this. */
+  private boolean stopped = false;
+
+  private final AtomicLong hits = new AtomicLong(0);
+
+  private final AtomicLong misses = new AtomicLong(0);
+
+  private final AtomicLong provisioned = new AtomicLong(0);
+
+  WarmRepoPool(RepoConfig config, UuidGenerator uuidGenerator) {
+    this.config = config;
+    this.uuidGenerator = uuidGenerator;
+  }
+
+  /**
+   * Take a ready-made repo for this task copy and move it into the repo root.
+   *
+   * @return the repoId of the repo or null if there isn't one ready
+   */
+  String claim(String taskId, boolean usingTestingVersion, TaskCopy copy) {
+    String repoId;
+    synchronized (this) {
+      if (config.getWarmRepoPoolSize() == 0 || stopped) {
+        return null;
+      }
+      String key = key(taskId, usingTestingVersion);
+      Pool pool = pools.get(key);
+      if (pool == null || !pool.copyId.equals(copy.getCopyId())) {
+        if (pool != null) {
+          discard(pool);
+        }
+        pool =
+            new Pool(
+                copy.getCopyId(), copy.getSkeletonCommit(), copy.getSkeletonObjectDirectory());
+        pools.put(key, pool);
+      }
+      repoId = pool.ready.pollFirst();
+    }
+    if (repoId == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    try {
+      Files.move(
+          config.getWarmRepoDir(repoId).toPath(),
+          config.getRepoDir(repoId).toPath(),
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOG.warn("Failed to move warm repo {} into place", repoId, e);
+      synchronized (this) {
+        discarded.add(repoId);
+      }
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return repoId;
+  }
+
+  /**
+   * Decide whether to refill the pool for this task. Returns true if the caller should arrange for
+   * refill to be called. We only allow one refill per pool at a time.
+   */
+  synchronized boolean startRefill(String taskId, boolean usingTestingVersion) {
+    Pool pool = pools.get(key(taskId, usingTestingVersion));
+    if (pool == null || pool.refilling || pool.ready.size() >= config.getWarmRepoPoolSize()) {
+      return false;
+    }
+    pool.refilling = true;
+    return true;
+  }
+
+  /** Top up the pool for this task and delete any discarded repos. Only call after startRefill. */
+  void refill(String taskId, boolean usingTestingVersion) {
+    Pool pool;
+    synchronized (this) {
+      pool = pools.get(key(taskId, usingTestingVersion));
+    }
+    try {
+      while (pool != null) {
+        synchronized (this) {
+          if (stopped || pool.discarded || pool.ready.size() >= config.getWarmRepoPoolSize()) {
+            break;
+          }
+        }
+        String repoId = uuidGenerator.generate();
+        try {
+          Repo.provisionRepo(
+              config.getWarmRepoDir(repoId), pool.skeletonCommit, pool.skeletonObjects);
+        } catch (RepoStorageException e) {
+          LOG.warn("Failed to provision repo for task {}", taskId, e);
+          break;
+        }
+        provisioned.incrementAndGet();
+        synchronized (this) {
+          if (stopped || pool.discarded) {
+            discarded.add(repoId);
+          } else {
+            pool.ready.addLast(repoId);
+          }
+        }
+      }
+    } finally {
+      if (pool != null) {
+        synchronized (this) {
+          pool.refilling = false;
+        }
+      }
+      deleteDiscarded();
+    }
+  }
+
+  /** The number of ready-made repos across all pools. */
+  public synchronized int getDepth() {
+    return pools.values().stream().mapToInt(p -> p.ready.size()).sum();
+  }
+
+  /** The number of repos which were taken from a pool. */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** The number of repos which had to be created on demand because the pool was empty. */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /** The number of repos which have been created to refill pools. */
+  public long getProvisioned() {
+    return provisioned.get();
+  }
+
+  /** Delete all of the ready-made repos. */
+  @Override
+  public void stop() {
+    synchronized (this) {
+      stopped = true;
+      for (Pool pool : pools.values()) {
+        discard(pool);
+      }
+      pools.clear();
+    }
+    deleteDiscarded();
+  }
+
+  /** Mark the pool as discarded and queue its repos for deletion. Call whilst holding this. */
+  private void discard(Pool pool) {
+    pool.discarded = true;
+    discarded.addAll(pool.ready);
+    pool.ready.clear();
+  }
+
+  private void deleteDiscarded() {
+    List<String> toDelete;
+    synchronized (this) {
+      toDelete = new ArrayList<>(discarded);
+      discarded.clear();
+    }
+    for (String repoId : toDelete) {
+      File repoDirectory = config.getWarmRepoDir(repoId);
+      try {
+        FileUtil.deleteRecursive(repoDirectory);
+      } catch (IOException e) {
+        LOG.warn("Failed to delete unused repo {}", repoDirectory, e);
+      }
+    }
+  }
+
+  private static String key(String taskId, boolean usingTestingVersion) {
+    return taskId + (usingTestingVersion ? ":testing" : ":registered");
+  }
+
+  /** Ready-made repos for one task copy. */
+  private static class Pool {
+
+    private final String copyId;
+
+    private final ObjectId skeletonCommit;
+
+    private final File skeletonObjects;
+
+    /** The repoIds of the ready-made repos. Guarded by WarmRepoPool.this. */
+    private final Deque<String> ready = new ArrayDeque<>();
+
+    /** Set whilst a refill is scheduled or running. Guarded by WarmRepoPool.this. */
+    private boolean refilling = false;
+
+    /** Set once the task has a new copy or we have been stopped. Guarded by WarmRepoPool.this. */
+    private boolean discarded = false;
+
+    private Pool(String copyId, ObjectId skeletonCommit, File skeletonObjects) {
+      this.copyId = copyId;
+      this.skeletonCommit = skeletonCommit;
+      this.skeletonObjects = skeletonObjects;
+    }
+  }
+}
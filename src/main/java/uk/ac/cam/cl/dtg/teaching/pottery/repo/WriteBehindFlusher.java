@@ -0,0 +1,105 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.Stoppable;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoStorageException;
+
+/**
+ * Flushes buffered file updates for repos in write-behind mode once their window has passed.
+ *
+ * <p>Repos with buffered updates are held here until they have been flushed. RepoFactory hands out
+ * these instances in preference to anything in its cache so that there is never more than one Repo
+ * object (and so one buffer) for a repoId whilst updates are pending.
+ */
+public class WriteBehindFlusher implements Stoppable {
+
+  protected static final Logger LOG = LoggerFactory.getLogger(WriteBehindFlusher.class);
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+  /** Repos with buffered updates, indexed by repoId. */
+  private final ConcurrentHashMap<String, Repo> dirty = new ConcurrentHashMap<>();
+
+  private final AtomicLong flushes = new AtomicLong(0);
+
+  /** Record that this repo has buffered updates and flush them after delayMs. */
+  void schedule(Repo repo, long delayMs) {
+    dirty.put(repo.getRepoId(), repo);
+    try {
+      scheduler.schedule(() -> flush(repo, delayMs), delayMs, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // We've been stopped
+      flush(repo, delayMs);
+    }
+  }
+
+  /** Record that this repo has no more buffered updates. */
+  void flushed(Repo repo) {
+    dirty.remove(repo.getRepoId(), repo);
+    flushes.incrementAndGet();
+  }
+
+  /** Return the repo object for this repoId if it has buffered updates or null if not. */
+  Repo getDirty(String repoId) {
+    return dirty.get(repoId);
+  }
+
+  /** The number of repos which currently have buffered updates. */
+  public int getPending() {
+    return dirty.size();
+  }
+
+  /** The number of times that buffered updates have been committed. */
+  public long getFlushes() {
+    return flushes.get();
+  }
+
+  /** Flush all buffered updates. */
+  @Override
+  public void stop() {
+    scheduler.shutdownNow();
+    for (Repo repo : dirty.values()) {
+      try {
+        repo.flushPendingUpdates();
+      } catch (RepoStorageException e) {
+        LOG.error("Failed to flush buffered updates to repo {}", repo.getRepoId(), e);
+      }
+    }
+  }
+
+  private void flush(Repo repo, long delayMs) {
+    try {
+      repo.flushPendingUpdates();
+    } catch (RepoStorageException e) {
+      LOG.error("Failed to flush buffered updates to repo {}. Retrying", repo.getRepoId(), e);
+      if (!scheduler.isShutdown()) {
+        schedule(repo, delayMs);
+      }
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.task;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Date;
+import java.util.TimeZone;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+
+/**
+ * A bare git repository holding the skeleton files of every task copy.
+ *
+ * <p>Each skeleton is stored as a single commit. Candidate repos borrow objects from this store
+ * (through objects/info/alternates) so starting a new repo from a skeleton is just a matter of
+ * pointing its master branch at the commit. The commits are deterministic (fixed author, date and
+ * message) so the same skeleton always gives the same commit no matter which task copy stored it.
+ * Each commit is kept reachable by a ref named after it so that it is never garbage collected.
+ *
+ * <p>The store is append-only. Nothing is ever removed from it, even once every task copy which
+ * stored a skeleton has been destroyed, because candidate repos started from the skeleton keep
+ * borrowing its objects for as long as they exist. Since identical skeletons share a commit the
+ * store only grows when a task copy has a skeleton which hasn't been seen before.
+ */
+class SkeletonStore {
+
+  private static final String REF_PREFIX = "refs/skeletons/";
+
+  private static final PersonIdent IDENT =
+      new PersonIdent("Pottery", "pottery@localhost", new Date(0), TimeZone.getTimeZone("UTC"));
+
+  private static final String COMMIT_MESSAGE = "Copied files";
+
+  /**
+   * Store the files in skeletonDir as a commit.
+   *
+   * @param storeDir the location of the bare repository. This is created if it doesn't exist.
+   * @param skeletonDir the files to store
+   * @return the id of the commit or null if there are no skeleton files
+   */
+  static synchronized ObjectId store(File storeDir, File skeletonDir) throws IOException {
+    if (!skeletonDir.exists()) {
+      return null;
+    }
+    if (!storeDir.exists()) {
+      try {
+        Git.init().setBare(true).setDirectory(storeDir).call().close();
+      } catch (GitAPIException e) {
+        throw new IOException("Failed to initialise skeleton store " + storeDir, e);
+      }
+    }
+    try (Repository store =
+            new FileRepositoryBuilder().setGitDir(storeDir).setMustExist(true).build();
+        ObjectInserter inserter = store.newObjectInserter()) {
+      DirCache index = DirCache.newInCore();
+      DirCacheBuilder builder = index.builder();
+      Path root = skeletonDir.toPath();
+      Files.walkFileTree(
+          root,
+          new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                throws IOException {
+              DirCacheEntry entry =
+                  new DirCacheEntry(
+                      root.relativize(file).toString().replace(File.separatorChar, '/'));
+              entry.setFileMode(
+                  Files.isExecutable(file) ? FileMode.EXECUTABLE_FILE : FileMode.REGULAR_FILE);
+              try (InputStream in = Files.newInputStream(file)) {
+                entry.setObjectId(inserter.insert(Constants.OBJ_BLOB, Files.size(file), in));
+              }
+              builder.add(entry);
+              return FileVisitResult.CONTINUE;
+            }
+          });
+      builder.finish();
+      if (index.getEntryCount() == 0) {
+        return null;
+      }
+
+      CommitBuilder commit = new CommitBuilder();
+      commit.setTreeId(index.writeTree(inserter));
+      commit.setAuthor(IDENT);
+      commit.setCommitter(IDENT);
+      commit.setMessage(COMMIT_MESSAGE);
+      ObjectId commitId = inserter.insert(commit);
+      inserter.flush();
+
+      RefUpdate update = store.updateRef(REF_PREFIX + commitId.getName());
+      update.setNewObjectId(commitId);
+      RefUpdate.Result result = update.update();
+      if (result != RefUpdate.Result.NEW && result != RefUpdate.Result.NO_CHANGE) {
+        throw new IOException("Failed to create ref for skeleton commit: " + result);
+      }
+      return commitId;
+    }
+  }
+
+  /** The object directory of the store, for use in objects/info/alternates. */
+  static File objectDirectory(File storeDir) {
+    return new File(storeDir, Constants.OBJECTS);
+  }
+}
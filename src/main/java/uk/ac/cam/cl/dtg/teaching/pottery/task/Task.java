@@ -26,11 +26,10 @@ import java.sql.SQLException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
-import org.eclipse.jgit.lib.Constants;
-import org.eclipse.jgit.lib.Ref;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
+import uk.ac.cam.cl.dtg.teaching.pottery.HeadResolver;
 import uk.ac.cam.cl.dtg.teaching.pottery.TransactionQueryRunner;
 import uk.ac.cam.cl.dtg.teaching.pottery.UuidGenerator;
 import uk.ac.cam.cl.dtg.teaching.pottery.config.TaskConfig;
@@ -80,6 +79,9 @@ public class Task {
   private final TaskConfig config;
   /** Used to generate unique taskIds and unique copyIds. */
   private final UuidGenerator uuidGenerator;
+
+  /** Used to look up the head of the task definition repository. */
+  private final HeadResolver headResolver;
   /**
    * Mutex for managing access to the registration fields (registeredbuilder and registeredcopy).
    */
@@ -125,7 +127,8 @@ public class Task {
       TaskCopy registeredCopy,
       boolean retired,
       TaskConfig config,
-      UuidGenerator uuidGenerator) {
+      UuidGenerator uuidGenerator,
+      HeadResolver headResolver) {
     super();
     this.taskId = taskId;
     this.taskDefLocation = taskDefLocation;
@@ -136,6 +139,7 @@ public class Task {
     this.retired = new AtomicBoolean(retired);
     this.config = config;
     this.uuidGenerator = uuidGenerator;
+    this.headResolver = headResolver;
   }
 
   /**
@@ -143,7 +147,11 @@ public class Task {
    * TaskFactory.
    */
   static Task openTask(
-      String taskId, UuidGenerator uuidGenerator, Database database, TaskConfig config)
+      String taskId,
+      UuidGenerator uuidGenerator,
+      Database database,
+      TaskConfig config,
+      HeadResolver headResolver)
       throws InvalidTaskSpecificationException, TaskStorageException, TaskNotFoundException,
           TaskCopyNotFoundException {
 
@@ -172,7 +180,8 @@ public class Task {
             registeredBuilder.getTaskCopy(),
             info.retired(),
             config,
-            uuidGenerator);
+            uuidGenerator,
+            headResolver);
       } else {
         throw new TaskNotFoundException("Task " + taskId + " not found");
       }
@@ -188,7 +197,11 @@ public class Task {
    * TaskFactory.
    */
   static Task createTask(
-      String taskId, UuidGenerator uuidGenerator, TaskConfig config, Database database)
+      String taskId,
+      UuidGenerator uuidGenerator,
+      TaskConfig config,
+      Database database,
+      HeadResolver headResolver)
       throws TaskStorageException {
 
     // create the task directory and clone the template
@@ -200,7 +213,8 @@ public class Task {
         throw new TaskStorageException("Failed to initialize git repository", e);
       }
       createdDirectory.persist();
-      return storeTask(taskId, TaskDefInfo.UNSET, uuidGenerator, config, database);
+      return storeTask(
+          taskId, TaskDefInfo.UNSET, uuidGenerator, config, database, headResolver);
     } catch (IOException e) {
       throw new TaskStorageException("Failed to create local definition directory");
     }
@@ -215,7 +229,8 @@ public class Task {
       String remote,
       UuidGenerator uuidGenerator,
       TaskConfig config,
-      Database database)
+      Database database,
+      HeadResolver headResolver)
       throws TaskStorageException {
 
     // Preflight
@@ -225,7 +240,7 @@ public class Task {
       throw new TaskStorageException("Unable to connect to remote repository", e);
     }
 
-    return storeTask(taskId, remote, uuidGenerator, config, database);
+    return storeTask(taskId, remote, uuidGenerator, config, database, headResolver);
   }
 
   private static Task storeTask(
@@ -233,7 +248,8 @@ public class Task {
       String remote,
       UuidGenerator uuidGenerator,
       TaskConfig config,
-      Database database)
+      Database database,
+      HeadResolver headResolver)
       throws TaskStorageException {
     TaskDefInfo info =
         TaskDefInfo.builder()
@@ -261,7 +277,8 @@ public class Task {
           null,
           false,
           config,
-          uuidGenerator);
+          uuidGenerator,
+          headResolver);
     } catch (SQLException e) {
       throw new TaskStorageException("Failed to store information about task " + taskId, e);
     } catch (URISyntaxException e) {
@@ -273,6 +290,22 @@ public class Task {
     return taskId;
   }
 
+  /**
+   * Returns true if a copy of this task is being built or if someone has acquired one of its copies
+   * (e.g. a submission is being tested against it). TaskFactory never evicts a task which is in use
+   * since that would let a second object for the same task be created.
+   */
+  boolean isInUse() {
+    return !testingBuilder.isReplacable()
+        || !registeredBuilder.isReplacable()
+        || isInUse(testingCopy)
+        || isInUse(registeredCopy);
+  }
+
+  private static boolean isInUse(TaskCopy copy) {
+    return copy != null && copy.isInUse();
+  }
+
   public boolean isRetired() {
     return retired.get();
   }
@@ -523,20 +556,10 @@ public class Task {
    */
   public String getHeadSha() throws TaskStorageException {
     try {
-      for (Ref r :
-          Git.lsRemoteRepository()
-              .setRemote(taskDefLocation.toString())
-              .setHeads(true)
-              .setTags(false)
-              .call()) {
-        if (r.getName().equals(Constants.R_HEADS + Constants.MASTER)) {
-          return r.getObjectId().getName();
-        }
-      }
-    } catch (GitAPIException e) {
+      return headResolver.resolveMaster(taskDefLocation.toString());
+    } catch (IOException e) {
       throw new TaskStorageException("Failed to read Git repository for " + taskDefLocation, e);
     }
-    throw new TaskStorageException("Failed to find head reference");
   }
 
   /** Schedule the deletion of this taskcopy. */
@@ -18,7 +18,6 @@
 
 package uk.ac.cam.cl.dtg.teaching.pottery.task;
 
-import com.google.common.collect.ImmutableList;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.FileVisitResult;
@@ -28,6 +27,7 @@ import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.LinkedList;
 import java.util.List;
+import org.eclipse.jgit.lib.ObjectId;
 import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
 import uk.ac.cam.cl.dtg.teaching.pottery.TwoPhaseLatch;
 import uk.ac.cam.cl.dtg.teaching.pottery.config.TaskConfig;
@@ -50,6 +50,8 @@ public class TaskCopy implements AutoCloseable {
   private TaskConfig config;
   private TaskInfo info;
   private TwoPhaseLatch latch = new TwoPhaseLatch();
+  private boolean deterministic;
+  private ObjectId skeletonCommit;
 
   /**
    * Instances of this object are created by the TaskCopyBuilder object. Its up to the
@@ -67,6 +69,14 @@ public class TaskCopy implements AutoCloseable {
     this.copyId = copyId;
     this.config = config;
     this.info = TaskInfos.load(taskId, config.getTaskCopyDir(copyId), listSkeleton());
+    this.deterministic = !config.getNondeterministicMarker(copyId).exists();
+    try {
+      this.skeletonCommit =
+          SkeletonStore.store(config.getSkeletonStore(), config.getSkeletonDir(copyId));
+    } catch (IOException e) {
+      throw new TaskStorageException(
+          "Failed to store skeleton files for task " + taskId + " from copy " + copyId, e);
+    }
   }
 
   public String getCopyId() {
@@ -111,11 +121,24 @@ public class TaskCopy implements AutoCloseable {
   }
 
   /**
-   * Copy the skeleton files from this task copy to the target directory given (this will be in a
-   * candidates repo).
+   * The commit holding the skeleton files from this task copy or null if there aren't any. Use this
+   * as the first commit of a candidate's repo. Its objects are in getSkeletonObjectDirectory().
+   */
+  public ObjectId getSkeletonCommit() {
+    return skeletonCommit;
+  }
+
+  /** The object directory holding the skeleton commit. Add this to the alternates of a repo. */
+  public File getSkeletonObjectDirectory() {
+    return SkeletonStore.objectDirectory(config.getSkeletonStore());
+  }
+
+  /**
+   * Returns true if testing the same code against this copy always gives the same result. Tasks opt
+   * out of this by including a file called nondeterministic in the root of the task repository.
    */
-  public ImmutableList<String> copySkeleton(File destination) throws IOException {
-    return FileUtil.copyFilesRecursively(config.getSkeletonDir(copyId), destination);
+  public boolean isDeterministic() {
+    return deterministic;
   }
 
   public File getCompileRoot() {
@@ -134,7 +157,12 @@ public class TaskCopy implements AutoCloseable {
     return latch.acquire();
   }
 
-  /** Delete this copy from the disk. */
+  /** Returns true if anyone has acquired this copy and not closed it yet. */
+  public boolean isInUse() {
+    return latch.isHeld();
+  }
+
+  /** Delete this copy from the disk. Its skeleton commit stays in the SkeletonStore. */
   void destroy() throws IOException, InterruptedException {
     latch.await();
     FileUtil.deleteRecursive(config.getTaskCopyDir(copyId));
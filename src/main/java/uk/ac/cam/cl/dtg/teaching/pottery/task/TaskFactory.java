@@ -18,9 +18,7 @@
 
 package uk.ac.cam.cl.dtg.teaching.pottery.task;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.google.common.cache.CacheStats;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import java.io.IOException;
@@ -29,6 +27,8 @@ import java.util.concurrent.ExecutionException;
 import java.util.stream.Stream;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
+import uk.ac.cam.cl.dtg.teaching.pottery.HeadResolver;
+import uk.ac.cam.cl.dtg.teaching.pottery.PinningCache;
 import uk.ac.cam.cl.dtg.teaching.pottery.TransactionQueryRunner;
 import uk.ac.cam.cl.dtg.teaching.pottery.UuidGenerator;
 import uk.ac.cam.cl.dtg.teaching.pottery.config.TaskConfig;
@@ -45,24 +45,24 @@ public class TaskFactory {
 
   private TaskConfig config;
   private Database database;
+  private HeadResolver headResolver;
   // Ensure that only only one Task object exists for any taskId so that
-  // we guarantee mutual exclusion on the filesystem operations.
-  private LoadingCache<String, Task> cache =
-      CacheBuilder.newBuilder()
-          .softValues()
-          .build(
-              new CacheLoader<String, Task>() {
-                @Override
-                public Task load(String key) throws Exception {
-                  return Task.openTask(key, uuidGenerator, database, config);
-                }
-              });
+  // we guarantee mutual exclusion on the filesystem operations. Tasks which are in use are never
+  // evicted.
+  private final PinningCache<String, Task> cache;
 
   @Inject
-  public TaskFactory(TaskConfig config, Database database)
+  public TaskFactory(TaskConfig config, Database database, HeadResolver headResolver)
       throws IOException, GitAPIException, SQLException {
     this.config = config;
     this.database = database;
+    this.headResolver = headResolver;
+    this.cache =
+        new PinningCache<>(
+            config.getTaskCacheSize(),
+            config.getTaskCacheExpiryMs(),
+            Task::isInUse,
+            (taskId, task) -> {});
     FileUtil.mkdirIfNotExists(config.getTaskDefinitionRoot());
     FileUtil.mkdirIfNotExists(config.getTaskCopyRoot());
 
@@ -82,7 +82,8 @@ public class TaskFactory {
   public Task getInstance(String taskId)
       throws InvalidTaskSpecificationException, TaskStorageException, TaskNotFoundException {
     try {
-      return cache.get(taskId);
+      return cache.get(
+          taskId, () -> Task.openTask(taskId, uuidGenerator, database, config, headResolver));
     } catch (ExecutionException e) {
       // this is thrown if an exception is thrown in the load method of the cache.
       if (e.getCause() instanceof InvalidTaskSpecificationException) {
@@ -97,11 +98,17 @@ public class TaskFactory {
     }
   }
 
+  /** Statistics about the cache of task objects. */
+  public CacheStats getCacheStats() {
+    return cache.stats();
+  }
+
   public Task createInstance() throws TaskStorageException {
     final String newRepoId = uuidGenerator.generate();
     try {
       return cache.get(
-          newRepoId, () -> Task.createTask(newRepoId, uuidGenerator, config, database));
+          newRepoId,
+          () -> Task.createTask(newRepoId, uuidGenerator, config, database, headResolver));
     } catch (ExecutionException e) {
       if (e.getCause() instanceof TaskStorageException) {
         throw (TaskStorageException) e.getCause();
@@ -116,7 +123,9 @@ public class TaskFactory {
     try {
       return cache.get(
           newTaskId,
-          () -> Task.createRemoteTask(newTaskId, remote, uuidGenerator, config, database));
+          () ->
+              Task.createRemoteTask(
+                  newTaskId, remote, uuidGenerator, config, database, headResolver));
     } catch (ExecutionException e) {
       if (e.getCause() instanceof TaskStorageException) {
         throw (TaskStorageException) e.getCause();
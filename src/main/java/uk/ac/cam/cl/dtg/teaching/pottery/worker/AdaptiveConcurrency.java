@@ -0,0 +1,180 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.worker;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.Stoppable;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.WorkerConfig;
+import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerManager;
+
+/**
+ * Adjusts the number of containers which may run at once in response to load.
+ *
+ * <p>This is an AIMD (additive increase, multiplicative decrease) controller acting on the CPU
+ * slots of the worker's resource budget. If the container API is responding slowly, the host's
+ * load average is high or it is running out of memory then we multiply the number of slots by a
+ * factor less than one. Otherwise, if jobs are queueing then we add one slot. The number of slots
+ * stays within the bounds given by the WorkerConfig. We start from the worker's current number of
+ * slots each time so changes made elsewhere are respected.
+ */
+@Singleton
+public class AdaptiveConcurrency implements Stoppable {
+
+  protected static final Logger LOG = LoggerFactory.getLogger(AdaptiveConcurrency.class);
+
+  private static final ImmutableList<Stage> CONTAINER_STAGES =
+      ImmutableList.of(Stage.COMPILATION, Stage.HARNESS, Stage.VALIDATOR);
+
+  private final WorkerConfig config;
+
+  private final Worker worker;
+
+  private final ContainerManager containerManager;
+
+  private final HostLoad hostLoad;
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+  private volatile boolean enabled;
+
+  private volatile String lastDecision = "No decisions yet";
+
+  /** Create a new instance which measures the load on this machine. */
+  @Inject
+  public AdaptiveConcurrency(
+      WorkerConfig config, Worker worker, ContainerManager containerManager) {
+    this(config, worker, containerManager, HostLoad.system());
+  }
+
+  /** Create a new instance which gets the load on the host from hostLoad. */
+  public AdaptiveConcurrency(
+      WorkerConfig config, Worker worker, ContainerManager containerManager, HostLoad hostLoad) {
+    this.config = config;
+    this.worker = worker;
+    this.containerManager = containerManager;
+    this.hostLoad = hostLoad;
+    this.enabled = config.isAdaptiveConcurrencyEnabled();
+    long interval = config.getAdaptiveConcurrencyIntervalMs();
+    scheduler.scheduleWithFixedDelay(this::tick, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public void setEnabled(boolean enabled) {
+    LOG.info("Adaptive concurrency {}", enabled ? "enabled" : "disabled");
+    this.enabled = enabled;
+  }
+
+  /** The number of containers which may currently run at once. */
+  public int getLimit() {
+    return worker.getCpuSlots();
+  }
+
+  /** A description of the last decision that we made and why. */
+  public String getLastDecision() {
+    return lastDecision;
+  }
+
+  /**
+   * Look at the current load and change the number of CPU slots if necessary.
+   *
+   * @return the new number of CPU slots
+   */
+  public synchronized int adjust() {
+    int limit = worker.getCpuSlots();
+    long callTime = containerManager.getSmoothedCallTime();
+    double loadPerCpu = hostLoad.getLoadPerCpu();
+    double freeMemory = hostLoad.getFreeMemoryFraction();
+    long waitTime = worker.getSmoothedWaitTime();
+    boolean queueing =
+        worker.getWaitingForResources() > 0
+            || CONTAINER_STAGES.stream().anyMatch(stage -> worker.getQueueDepth(stage) > 0);
+
+    String reason;
+    int newLimit;
+    if (callTime > config.getTargetContainerCallTimeMs()) {
+      reason =
+          String.format(
+              "container API call time %dms is above %dms",
+              callTime, config.getTargetContainerCallTimeMs());
+      newLimit = decrease(limit);
+    } else if (loadPerCpu > config.getMaxLoadPerCpu()) {
+      reason =
+          String.format(
+              "load per cpu %.2f is above %.2f", loadPerCpu, config.getMaxLoadPerCpu());
+      newLimit = decrease(limit);
+    } else if (freeMemory < config.getMinFreeMemoryFraction()) {
+      reason =
+          String.format(
+              "free memory %.2f is below %.2f", freeMemory, config.getMinFreeMemoryFraction());
+      newLimit = decrease(limit);
+    } else if (queueing && waitTime > config.getTargetQueueWaitTimeMs()) {
+      reason =
+          String.format(
+              "queue wait time %dms is above %dms", waitTime, config.getTargetQueueWaitTimeMs());
+      newLimit = clamp(limit + 1);
+    } else {
+      reason = "all measurements are within their targets";
+      newLimit = limit;
+    }
+
+    if (newLimit != limit) {
+      lastDecision = String.format("Changed CPU slots from %d to %d: %s", limit, newLimit, reason);
+      LOG.info(lastDecision);
+      worker.setCpuSlots(newLimit);
+    } else {
+      lastDecision = String.format("Kept CPU slots at %d: %s", limit, reason);
+      LOG.debug(lastDecision);
+    }
+    return newLimit;
+  }
+
+  @Override
+  public void stop() {
+    scheduler.shutdownNow();
+  }
+
+  private void tick() {
+    if (!enabled) {
+      return;
+    }
+    try {
+      adjust();
+    } catch (RuntimeException e) {
+      LOG.error("Failed to adjust worker concurrency", e);
+    }
+  }
+
+  private int decrease(int current) {
+    return clamp((int) (current * config.getConcurrencyDecreaseFactor()));
+  }
+
+  private int clamp(int cpuSlots) {
+    return Math.max(config.getMinCpuSlots(), Math.min(config.getMaxCpuSlots(), cpuSlots));
+  }
+}
@@ -52,11 +52,24 @@ public class BlockingWorker implements Worker {
   @Override
   public void rebuildThreadPool(int numThreads) {}
 
+  @Override
+  public void rebuildThreadPool(Stage stage, int numThreads) {}
+
   @Override
   public int getNumThreads() {
     return 0;
   }
 
+  @Override
+  public int getNumThreads(Stage stage) {
+    return 0;
+  }
+
+  @Override
+  public int getQueueDepth(Stage stage) {
+    return 0;
+  }
+
   @Override
   public List<JobStatus> getQueue() {
     return ImmutableList.of();
@@ -77,6 +90,34 @@ public class BlockingWorker implements Worker {
     return 0;
   }
 
+  @Override
+  public long getRamBudgetMegabytes() {
+    return 0;
+  }
+
+  @Override
+  public long getReservedRamMegabytes() {
+    return 0;
+  }
+
+  @Override
+  public int getCpuSlots() {
+    return 0;
+  }
+
+  @Override
+  public void setCpuSlots(int cpuSlots) {}
+
+  @Override
+  public int getReservedCpuSlots() {
+    return 0;
+  }
+
+  @Override
+  public int getWaitingForResources() {
+    return 0;
+  }
+
   @Override
   public void stop() {}
 }
@@ -0,0 +1,85 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.worker;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/** Measures how busy the machine that we're running on is. */
+public interface HostLoad {
+
+  /** The system load average divided by the number of processors or a negative value if unknown. */
+  double getLoadPerCpu();
+
+  /** The fraction of physical memory which is available for use (between 0 and 1). */
+  double getFreeMemoryFraction();
+
+  /** Measurements of this machine. */
+  static HostLoad system() {
+    return new HostLoad() {
+      private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+      @Override
+      public double getLoadPerCpu() {
+        double load = os.getSystemLoadAverage();
+        return load < 0 ? load : load / os.getAvailableProcessors();
+      }
+
+      @Override
+      public double getFreeMemoryFraction() {
+        // MemAvailable counts the page cache (which can be reclaimed) whereas the free memory
+        // reported by the JVM does not
+        File meminfo = new File("/proc/meminfo");
+        if (meminfo.exists()) {
+          try {
+            List<String> lines = Files.readAllLines(meminfo.toPath(), StandardCharsets.UTF_8);
+            long total = readMeminfo(lines, "MemTotal:");
+            long available = readMeminfo(lines, "MemAvailable:");
+            if (total > 0 && available >= 0) {
+              return (double) available / total;
+            }
+          } catch (IOException | NumberFormatException e) {
+            // fall back to asking the JVM
+          }
+        }
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+          com.sun.management.OperatingSystemMXBean sunOs =
+              (com.sun.management.OperatingSystemMXBean) os;
+          return (double) sunOs.getFreePhysicalMemorySize() / sunOs.getTotalPhysicalMemorySize();
+        }
+        return 1.0;
+      }
+
+      /** Read a value (in kB) from the lines of /proc/meminfo or return -1 if not found. */
+      private long readMeminfo(List<String> lines, String key) {
+        for (String line : lines) {
+          if (line.startsWith(key)) {
+            return Long.parseLong(line.substring(key.length()).trim().split("\\s+")[0]);
+          }
+        }
+        return -1;
+      }
+    };
+  }
+}
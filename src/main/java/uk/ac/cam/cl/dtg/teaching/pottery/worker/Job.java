@@ -28,6 +28,8 @@ public interface Job {
   int STATUS_OK = 0;
   int STATUS_FAILED = 1;
   int STATUS_RETRY = 2;
+  /** The job succeeded and the rest of the jobs in its sequence don't need to be run. */
+  int STATUS_DONE = 3;
 
   /**
    * Run the required task.
@@ -50,4 +52,39 @@ public interface Job {
    * @return the job description
    */
   String getDescription();
+
+  /**
+   * The stage that this job should be run in.
+   *
+   * @return the stage
+   */
+  default Stage getStage() {
+    return Stage.GENERAL;
+  }
+
+  /**
+   * The memory and CPU that this job will use. This is asked for just before the job is queued so
+   * it can depend on what earlier jobs in the sequence have done.
+   *
+   * @return the resources to reserve whilst the job runs
+   */
+  default ResourceRequest getResourceRequest() {
+    return ResourceRequest.NONE;
+  }
+
+  /**
+   * Called when the job has asked to be retried more times than the worker allows or when the
+   * worker is stopped before it can be retried. The job won't be run again and the rest of the jobs
+   * in its sequence will not be run.
+   *
+   * @param taskIndex the index of the task to execute
+   * @param repoFactory repository factory class instance
+   * @param containerManager manager for container engine
+   * @param database class for database instance
+   */
+  default void abandon(
+      TaskIndex taskIndex,
+      RepoFactory repoFactory,
+      ContainerManager containerManager,
+      Database database) {}
 }
@@ -0,0 +1,154 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.worker;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Admits jobs against a budget of host memory and processors.
+ *
+ * <p>Jobs wait here in the order that they arrived. Whenever resources are freed we admit every
+ * waiting job which fits in what is left (first fit) so small jobs can fill the gaps left by big
+ * ones. So that a big job isn't passed over forever, once it has been overtaken MAX_OVERTAKES times
+ * nothing else is admitted until it fits.
+ */
+class ResourceBudget {
+
+  private static final int MAX_OVERTAKES = 8;
+
+  private final long ramMegabytes;
+
+  /** Guarded by this. */
+  private int cpuSlots;
+
+  /** Guarded by this. */
+  private long reservedRamMegabytes = 0;
+
+  /** Guarded by this. */
+  private int reservedCpuSlots = 0;
+
+  /** Jobs waiting to be admitted in order of arrival. Guarded by this. */
+  private final LinkedList<Waiting> waiting = new LinkedList<>();
+
+  ResourceBudget(long ramMegabytes, int cpuSlots) {
+    this.ramMegabytes = ramMegabytes;
+    this.cpuSlots = cpuSlots;
+  }
+
+  /** Queue a job which needs these resources. It is run as soon as it has been admitted. */
+  void submit(ResourceRequest request, Runnable admitted) {
+    synchronized (this) {
+      waiting.add(new Waiting(request, admitted));
+    }
+    admit();
+  }
+
+  /** Return the resources held by a job which has finished and admit anything which now fits. */
+  void release(ResourceRequest request) {
+    synchronized (this) {
+      reservedRamMegabytes -= request.ramMegabytes();
+      reservedCpuSlots -= request.cpuSlots();
+    }
+    admit();
+  }
+
+  /**
+   * Change the number of CPU slots. Jobs which have already been admitted keep their slots even if
+   * that leaves more reserved than there are now.
+   */
+  void setCpuSlots(int cpuSlots) {
+    synchronized (this) {
+      this.cpuSlots = cpuSlots;
+    }
+    admit();
+  }
+
+  long getRamMegabytes() {
+    return ramMegabytes;
+  }
+
+  synchronized int getCpuSlots() {
+    return cpuSlots;
+  }
+
+  synchronized long getReservedRamMegabytes() {
+    return reservedRamMegabytes;
+  }
+
+  synchronized int getReservedCpuSlots() {
+    return reservedCpuSlots;
+  }
+
+  synchronized int getWaiting() {
+    return waiting.size();
+  }
+
+  private void admit() {
+    List<Runnable> toRun = new ArrayList<>();
+    synchronized (this) {
+      List<Waiting> passedOver = new ArrayList<>();
+      Iterator<Waiting> it = waiting.iterator();
+      while (it.hasNext()) {
+        Waiting w = it.next();
+        if (!fits(w.request)) {
+          if (w.overtaken >= MAX_OVERTAKES) {
+            // Hold everything else back until this one fits
+            break;
+          }
+          passedOver.add(w);
+          continue;
+        }
+        reservedRamMegabytes += w.request.ramMegabytes();
+        reservedCpuSlots += w.request.cpuSlots();
+        it.remove();
+        toRun.add(w.admitted);
+        passedOver.forEach(p -> p.overtaken++);
+      }
+    }
+    // Run these outside the lock since they may hand work to a thread pool
+    toRun.forEach(Runnable::run);
+  }
+
+  /** A job fits if there's room for it or if nothing else is running (it's bigger than the lot). */
+  private boolean fits(ResourceRequest request) {
+    if (reservedRamMegabytes == 0 && reservedCpuSlots == 0) {
+      return true;
+    }
+    return reservedRamMegabytes + request.ramMegabytes() <= ramMegabytes
+        && reservedCpuSlots + request.cpuSlots() <= cpuSlots;
+  }
+
+  private static class Waiting {
+
+    private final ResourceRequest request;
+
+    private final Runnable admitted;
+
+    /** The number of times that a later job has been admitted ahead of this one. */
+    private int overtaken = 0;
+
+    private Waiting(ResourceRequest request, Runnable admitted) {
+      this.request = request;
+      this.admitted = admitted;
+    }
+  }
+}
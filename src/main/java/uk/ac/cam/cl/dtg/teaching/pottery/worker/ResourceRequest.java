@@ -0,0 +1,43 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.worker;
+
+import com.google.auto.value.AutoValue;
+
+/** The host resources that a job needs whilst it runs. */
+@AutoValue
+public abstract class ResourceRequest {
+
+  /** A job which runs no containers and so isn't counted against the budget. */
+  public static final ResourceRequest NONE = create(0, 0);
+
+  /** The memory limit of the container that the job runs. */
+  public abstract int ramMegabytes();
+
+  /** The number of processors that the job will keep busy. */
+  public abstract int cpuSlots();
+
+  public boolean isNone() {
+    return ramMegabytes() == 0 && cpuSlots() == 0;
+  }
+
+  public static ResourceRequest create(int ramMegabytes, int cpuSlots) {
+    return new AutoValue_ResourceRequest(ramMegabytes, cpuSlots);
+  }
+}
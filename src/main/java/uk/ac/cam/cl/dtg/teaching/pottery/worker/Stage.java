@@ -0,0 +1,40 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.worker;
+
+/**
+ * The stages that jobs are run in. Each stage has its own queue and its own threads so that (for
+ * example) a slow test harness doesn't hold up the compilation of other submissions.
+ */
+public enum Stage {
+  /** Anything which isn't part of testing a submission e.g. building task copies. */
+  GENERAL,
+
+  /** Writing out the files to test and checking for an earlier result for the same code. */
+  CHECKOUT,
+
+  /** Compiling the submission. */
+  COMPILATION,
+
+  /** Running the test harness against the compiled submission. */
+  HARNESS,
+
+  /** Running the validator on the output of the harness and storing the result. */
+  VALIDATOR
+}
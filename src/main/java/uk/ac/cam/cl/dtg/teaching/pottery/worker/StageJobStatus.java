@@ -0,0 +1,74 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.worker;
+
+import java.util.Date;
+import uk.ac.cam.cl.dtg.teaching.pottery.model.JobStatus;
+
+/**
+ * The status of a queued job along with the current queue depth and service time of the stage that
+ * it is queued in. Jobs waiting to be retried also report how many times they have been retried and
+ * when they will next be run.
+ */
+public class StageJobStatus extends JobStatus {
+
+  private final Stage stage;
+
+  private final StageStatistics statistics;
+
+  private volatile int retryCount = 0;
+
+  /** When this job will next be run if it is waiting to be retried (0 otherwise). */
+  private volatile long nextAttemptTime = 0;
+
+  StageJobStatus(String description, Stage stage, StageStatistics statistics) {
+    super(description);
+    this.stage = stage;
+    this.statistics = statistics;
+  }
+
+  public Stage getStage() {
+    return stage;
+  }
+
+  public int getStageQueueDepth() {
+    return statistics.getQueueDepth();
+  }
+
+  public long getStageServiceTimeMs() {
+    return statistics.getSmoothedServiceTime();
+  }
+
+  public int getStageNumThreads() {
+    return statistics.getNumThreads();
+  }
+
+  public int getRetryCount() {
+    return retryCount;
+  }
+
+  public Date getNextAttemptTime() {
+    return nextAttemptTime == 0 ? null : new Date(nextAttemptTime);
+  }
+
+  void setRetry(int retryCount, long nextAttemptTime) {
+    this.retryCount = retryCount;
+    this.nextAttemptTime = nextAttemptTime;
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.worker;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Queue depth and service time for one stage of a worker. */
+class StageStatistics {
+
+  private final AtomicInteger waiting = new AtomicInteger(0);
+
+  private final Object smoothedServiceTimeMutex = new Object();
+
+  private volatile int numThreads;
+
+  private long smoothedServiceTime = 0;
+
+  StageStatistics(int numThreads) {
+    this.numThreads = numThreads;
+  }
+
+  void enqueued() {
+    waiting.incrementAndGet();
+  }
+
+  void started() {
+    waiting.decrementAndGet();
+  }
+
+  void finished(long serviceTimeMs) {
+    synchronized (smoothedServiceTimeMutex) {
+      smoothedServiceTime = (serviceTimeMs >> 3) + smoothedServiceTime - (smoothedServiceTime >> 3);
+    }
+  }
+
+  void setNumThreads(int numThreads) {
+    this.numThreads = numThreads;
+  }
+
+  /** The number of jobs waiting for a thread in this stage. */
+  int getQueueDepth() {
+    return waiting.get();
+  }
+
+  /** Exponentially smoothed time taken to run a job in this stage. */
+  long getSmoothedServiceTime() {
+    synchronized (smoothedServiceTimeMutex) {
+      return smoothedServiceTime;
+    }
+  }
+
+  int getNumThreads() {
+    return numThreads;
+  }
+}
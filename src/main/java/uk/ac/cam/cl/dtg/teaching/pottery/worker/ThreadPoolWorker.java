@@ -20,21 +20,33 @@ package uk.ac.cam.cl.dtg.teaching.pottery.worker;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import java.util.EnumMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.WorkerConfig;
 import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerManager;
 import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.JobStatus;
 import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoFactory;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskIndex;
 
+/**
+ * Runs jobs on a pool of threads for each stage. A sequence of jobs is handed from stage to stage
+ * as each job completes. Jobs which ask to be retried wait on a timer (rather than on a worker
+ * thread) with exponential backoff.
+ */
 @Singleton
 public class ThreadPoolWorker implements Worker {
 
@@ -46,45 +58,114 @@ public class ThreadPoolWorker implements Worker {
   private final ContainerManager containerManager;
   private final Database database;
   private final Object smoothedWaitTimeMutex = new Object();
+  private final long retryBaseDelayMs;
+  private final long retryMaxDelayMs;
+  private final int maxAttempts;
+
+  /** Holds jobs which are waiting to be retried so that they don't take up a worker thread. */
+  private final ScheduledExecutorService retryTimer = Executors.newSingleThreadScheduledExecutor();
+
+  /** The threads for each stage. These are resized in place. */
+  private final Map<Stage, ThreadPoolExecutor> threadPools = new EnumMap<>(Stage.class);
+
+  private final Map<Stage, StageStatistics> statistics = new EnumMap<>(Stage.class);
+
+  /** Jobs which run containers wait here until there is enough memory and CPU for them. */
+  private final ResourceBudget resourceBudget;
 
-  private ExecutorService threadPool;
-  private int numThreads;
   private long smoothedWaitTime = 0;
 
-  /** Creates a new ThreadPoolWorker with one thread in the pool. */
+  /**
+   * Creates a new ThreadPoolWorker. The stages which run containers get a thread for each CPU slot
+   * in the budget (so that it's the budget which limits them), the checkout stage gets the number
+   * of threads in the config and the general stage gets one thread.
+   */
   @Inject
   public ThreadPoolWorker(
       TaskIndex taskIndex,
       RepoFactory repoFactory,
       ContainerManager containerManager,
-      Database database) {
+      Database database,
+      WorkerConfig config) {
     super();
-    this.threadPool = Executors.newFixedThreadPool(1);
-    this.numThreads = 1;
+    for (Stage stage : Stage.values()) {
+      int numThreads;
+      switch (stage) {
+        case GENERAL:
+          numThreads = 1;
+          break;
+        case CHECKOUT:
+          numThreads = config.getCheckoutThreads();
+          break;
+        default:
+          numThreads = config.getCpuSlots();
+      }
+      this.threadPools.put(
+          stage,
+          new ThreadPoolExecutor(
+              numThreads,
+              numThreads,
+              0L,
+              TimeUnit.MILLISECONDS,
+              new LinkedBlockingQueue<>()));
+      this.statistics.put(stage, new StageStatistics(numThreads));
+    }
+    this.resourceBudget = new ResourceBudget(config.getRamBudgetMegabytes(), config.getCpuSlots());
+    this.retryBaseDelayMs = config.getRetryBaseDelayMs();
+    this.retryMaxDelayMs = config.getRetryMaxDelayMs();
+    this.maxAttempts = config.getMaxAttempts();
     this.taskIndex = taskIndex;
     this.repoFactory = repoFactory;
     this.containerManager = containerManager;
     this.database = database;
   }
 
+  /**
+   * Give the general and checkout stages this number of threads. The stages which run containers
+   * are left alone since their threads follow the number of CPU slots (see setCpuSlots).
+   */
   @Override
   public synchronized void rebuildThreadPool(int numThreads) {
-    final List<Runnable> pending = this.threadPool.shutdownNow();
-    try {
-      this.threadPool.awaitTermination(1, TimeUnit.MINUTES);
-    } catch (InterruptedException e) {
-      e.printStackTrace();
+    rebuildThreadPool(Stage.GENERAL, numThreads);
+    rebuildThreadPool(Stage.CHECKOUT, numThreads);
+  }
+
+  /**
+   * Change the number of threads for this stage. This doesn't wait: new threads are started
+   * straight away when growing. When shrinking, running jobs are left to finish and the spare
+   * threads exit once they are idle.
+   */
+  @Override
+  public synchronized void rebuildThreadPool(Stage stage, int numThreads) {
+    if (numThreads <= 0) {
+      throw new IllegalArgumentException("numThreads must be positive");
     }
-    this.threadPool = Executors.newFixedThreadPool(numThreads);
-    this.numThreads = numThreads;
-    for (Runnable r : pending) {
-      this.threadPool.execute(r);
+    ThreadPoolExecutor threadPool = threadPools.get(stage);
+    // The core size can never be more than the maximum size so the order matters
+    if (numThreads > threadPool.getMaximumPoolSize()) {
+      threadPool.setMaximumPoolSize(numThreads);
+      threadPool.setCorePoolSize(numThreads);
+    } else {
+      threadPool.setCorePoolSize(numThreads);
+      threadPool.setMaximumPoolSize(numThreads);
     }
+    statistics.get(stage).setNumThreads(numThreads);
   }
 
+  /** The total number of threads across all stages. */
   @Override
-  public synchronized int getNumThreads() {
-    return numThreads;
+  public int getNumThreads() {
+    return statistics.values().stream().mapToInt(StageStatistics::getNumThreads).sum();
+  }
+
+  @Override
+  public int getNumThreads(Stage stage) {
+    return statistics.get(stage).getNumThreads();
+  }
+
+  @Override
+  public int getQueueDepth(Stage stage) {
+    return statistics.get(stage).getQueueDepth();
   }
 
   @Override
@@ -100,8 +181,50 @@ public class ThreadPoolWorker implements Worker {
    * @param jobs the jobs to be run in sequence (if a job fails then we stop there)
    */
   @Override
-  public synchronized void schedule(Job... jobs) {
-    threadPool.execute(new JobIteration(jobs, 0, false, System.currentTimeMillis()));
+  public void schedule(Job... jobs) {
+    execute(new JobIteration(jobs, 0, 0, System.currentTimeMillis()));
+  }
+
+  @Override
+  public long getRamBudgetMegabytes() {
+    return resourceBudget.getRamMegabytes();
+  }
+
+  @Override
+  public long getReservedRamMegabytes() {
+    return resourceBudget.getReservedRamMegabytes();
+  }
+
+  @Override
+  public int getCpuSlots() {
+    return resourceBudget.getCpuSlots();
+  }
+
+  /**
+   * Change the number of containers which may run at once. The container stages are given more
+   * threads if they need them but never fewer. Jobs which have already been admitted keep their
+   * threads and the budget holds back new ones until enough of them have finished.
+   */
+  @Override
+  public synchronized void setCpuSlots(int cpuSlots) {
+    for (Stage stage : Stage.values()) {
+      if (stage != Stage.GENERAL
+          && stage != Stage.CHECKOUT
+          && statistics.get(stage).getNumThreads() < cpuSlots) {
+        rebuildThreadPool(stage, cpuSlots);
+      }
+    }
+    resourceBudget.setCpuSlots(cpuSlots);
+  }
+
+  @Override
+  public int getReservedCpuSlots() {
+    return resourceBudget.getReservedCpuSlots();
+  }
+
+  @Override
+  public int getWaitingForResources() {
+    return resourceBudget.getWaiting();
   }
 
   @Override
@@ -112,16 +235,56 @@ public class ThreadPoolWorker implements Worker {
   }
 
   @Override
-  public void stop() {
-    LOG.info("Shutting down thread pool");
-    threadPool.shutdownNow();
+  public synchronized void stop() {
+    LOG.info("Shutting down thread pools");
+    retryTimer.shutdownNow();
+    for (ThreadPoolExecutor threadPool : threadPools.values()) {
+      threadPool.shutdownNow();
+    }
+  }
+
+  private void execute(JobIteration iteration) {
+    statistics.get(iteration.stage).enqueued();
+    ResourceRequest request = iteration.jobs[iteration.index].getResourceRequest();
+    iteration.resourceRequest = request;
+    if (request.isNone()) {
+      threadPools.get(iteration.stage).execute(iteration);
+    } else {
+      resourceBudget.submit(request, () -> threadPools.get(iteration.stage).execute(iteration));
+    }
+  }
+
+  /** Run this iteration again once its backoff has passed. */
+  private void retry(JobIteration iteration) {
+    long delay = retryDelayMs(iteration.attempt);
+    iteration.status.setRetry(iteration.attempt, System.currentTimeMillis() + delay);
+    try {
+      retryTimer.schedule(() -> execute(iteration), delay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // We've been stopped so there won't be another attempt
+      synchronized (queue) {
+        queue.remove(iteration.status);
+      }
+      iteration.jobs[iteration.index].abandon(taskIndex, repoFactory, containerManager, database);
+    }
+  }
+
+  /**
+   * The backoff before this attempt of a job. The delay doubles with each attempt (up to a limit)
+   * and is then jittered so that jobs which failed together don't all retry together.
+   */
+  long retryDelayMs(int attempt) {
+    long delay = Math.min(retryMaxDelayMs, retryBaseDelayMs << Math.min(attempt - 1, 20));
+    return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
   }
 
   private class JobIteration implements Runnable {
     private Job[] jobs;
     private int index;
-    private JobStatus status;
-    private boolean withPause;
+    private Stage stage;
+    private StageJobStatus status;
+    private ResourceRequest resourceRequest = ResourceRequest.NONE;
+    private int attempt;
     private long enqueueTime;
 
     /**
@@ -129,15 +292,16 @@ public class ThreadPoolWorker implements Worker {
      *
      * @param jobs an array of jobs to execute
      * @param index the index of the job to execute from the array
-     * @param withPause set to true if you want a 2 second pause before running the job (e.g. for
-     *     retries)
+     * @param attempt the number of times this job has already been run (e.g. for retries)
      */
-    JobIteration(Job[] jobs, int index, boolean withPause, long enqeueTime) {
+    JobIteration(Job[] jobs, int index, int attempt, long enqeueTime) {
       super();
       this.jobs = jobs;
       this.index = index;
-      this.withPause = withPause;
-      this.status = new JobStatus(jobs[index].getDescription());
+      this.stage = jobs[index].getStage();
+      this.attempt = attempt;
+      this.status =
+          new StageJobStatus(jobs[index].getDescription(), stage, statistics.get(stage));
       this.enqueueTime = enqeueTime;
       synchronized (queue) {
         queue.add(status);
@@ -147,25 +311,29 @@ public class ThreadPoolWorker implements Worker {
     @Override
     public void run() {
       status.setStatus(JobStatus.STATUS_RUNNING);
+      StageStatistics stageStatistics = statistics.get(stage);
+      stageStatistics.started();
       long startTime = System.currentTimeMillis();
-      if (withPause) {
-        try {
-          Thread.sleep(2000);
-        } catch (InterruptedException e) {
-          LOG.error("Interrupted", e);
-        }
-      }
       try {
         int result = jobs[index].execute(taskIndex, repoFactory, containerManager, database);
+        stageStatistics.finished(System.currentTimeMillis() - startTime);
+        // Give back what this stage held before the next stage asks for its share
+        releaseResources();
         if (result == Job.STATUS_OK) {
           if (index < jobs.length - 1) {
-            threadPool.execute(new JobIteration(jobs, index + 1, false, enqueueTime));
+            execute(new JobIteration(jobs, index + 1, 0, enqueueTime));
           }
         } else if (result == Job.STATUS_RETRY) {
-          threadPool.execute(new JobIteration(jobs, index, true, enqueueTime));
+          if (attempt + 1 < maxAttempts) {
+            retry(new JobIteration(jobs, index, attempt + 1, enqueueTime));
+          } else {
+            LOG.error(
+                "Giving up on {} after {} attempts", jobs[index].getDescription(), maxAttempts);
+            jobs[index].abandon(taskIndex, repoFactory, containerManager, database);
+          }
         }
 
-        if ((result == Job.STATUS_OK || result == Job.STATUS_FAILED) && index == 0) {
+        if (result != Job.STATUS_RETRY && index == 0) {
           // We've run the first step to completion so update the waitTime
           synchronized (smoothedWaitTimeMutex) {
             smoothedWaitTime =
@@ -179,6 +347,14 @@ public class ThreadPoolWorker implements Worker {
         synchronized (queue) {
           queue.remove(status);
         }
+        releaseResources();
+      }
+    }
+
+    private void releaseResources() {
+      if (!resourceRequest.isNone()) {
+        resourceBudget.release(resourceRequest);
+        resourceRequest = ResourceRequest.NONE;
       }
     }
   }
@@ -26,14 +26,32 @@ public interface Worker extends Stoppable {
 
   void rebuildThreadPool(int numThreads);
 
+  void rebuildThreadPool(Stage stage, int numThreads);
+
   int getNumThreads();
 
+  int getNumThreads(Stage stage);
+
+  int getQueueDepth(Stage stage);
+
   List<JobStatus> getQueue();
 
   void schedule(Job... jobs);
 
   long getSmoothedWaitTime();
 
+  long getRamBudgetMegabytes();
+
+  long getReservedRamMegabytes();
+
+  int getCpuSlots();
+
+  void setCpuSlots(int cpuSlots);
+
+  int getReservedCpuSlots();
+
+  int getWaitingForResources();
+
   @Override
   void stop();
 }
@@ -0,0 +1,168 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.controllers;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.ContainerEnvConfig;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.WorkerConfig;
+import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerManager;
+import uk.ac.cam.cl.dtg.teaching.pottery.containers.UncontainerImpl;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.AdaptiveConcurrency;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.HostLoad;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.Stage;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.ThreadPoolWorker;
+
+public class TestAdaptiveConcurrency {
+
+  private File testRootDir;
+  private TestEnvironment testEnvironment;
+  private ThreadPoolWorker worker;
+  private AdaptiveConcurrency adaptiveConcurrency;
+
+  /** The container API call time and host load seen by the controller. */
+  private volatile long callTimeMs = 0;
+
+  private volatile double loadPerCpu = 0.0;
+
+  /** Configure the test environment. */
+  @Before
+  public void setup() throws IOException, SQLException {
+    this.testRootDir = Files.createTempDir().getCanonicalFile();
+    this.testEnvironment = new TestEnvironment(testRootDir.getPath());
+    WorkerConfig config =
+        new WorkerConfig() {
+          @Override
+          public int getCpuSlots() {
+            return 4;
+          }
+
+          @Override
+          public int getMaxCpuSlots() {
+            return 8;
+          }
+
+          @Override
+          public long getTargetContainerCallTimeMs() {
+            return 100;
+          }
+        };
+    this.worker =
+        new ThreadPoolWorker(
+            testEnvironment.getTaskIndex(),
+            testEnvironment.getRepoFactory(),
+            testEnvironment.getContainerManager(),
+            testEnvironment.getDatabase(),
+            config);
+    ContainerManager containerManager =
+        new ContainerManager(
+            new ContainerEnvConfig(testRootDir.getPath()),
+            new UncontainerImpl() {
+              @Override
+              public long getSmoothedCallTime() {
+                return callTimeMs;
+              }
+            });
+    HostLoad hostLoad =
+        new HostLoad() {
+          @Override
+          public double getLoadPerCpu() {
+            return loadPerCpu;
+          }
+
+          @Override
+          public double getFreeMemoryFraction() {
+            return 1.0;
+          }
+        };
+    this.adaptiveConcurrency = new AdaptiveConcurrency(config, worker, containerManager, hostLoad);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    adaptiveConcurrency.stop();
+    worker.stop();
+    FileUtil.deleteRecursive(testRootDir);
+  }
+
+  @Test
+  public void adjust_reducesCpuSlotsWhenContainerApiIsSlow() {
+
+    // ARRANGE
+    callTimeMs = 400;
+
+    // ACT
+    int limit = adaptiveConcurrency.adjust();
+
+    // ASSERT
+    assertThat(limit).isEqualTo(3);
+    assertThat(worker.getCpuSlots()).isEqualTo(3);
+    assertThat(worker.getNumThreads(Stage.HARNESS)).isEqualTo(4);
+    assertThat(adaptiveConcurrency.getLastDecision()).contains("container API call time");
+  }
+
+  @Test
+  public void adjust_reducesCpuSlotsWhenHostIsLoaded() {
+
+    // ARRANGE
+    loadPerCpu = 2.0;
+
+    // ACT
+    int limit = adaptiveConcurrency.adjust();
+
+    // ASSERT
+    assertThat(limit).isEqualTo(3);
+    assertThat(adaptiveConcurrency.getLastDecision()).contains("load per cpu");
+  }
+
+  @Test
+  public void adjust_keepsCpuSlotsWhenWithinTargets() {
+
+    // ACT
+    int limit = adaptiveConcurrency.adjust();
+
+    // ASSERT
+    assertThat(limit).isEqualTo(4);
+    assertThat(worker.getCpuSlots()).isEqualTo(4);
+  }
+
+  @Test
+  public void adjust_startsFromCpuSlotsSetElsewhere() {
+
+    // ARRANGE
+    worker.setCpuSlots(6);
+    callTimeMs = 400;
+
+    // ACT
+    int limit = adaptiveConcurrency.adjust();
+
+    // ASSERT
+    assertThat(limit).isEqualTo(4);
+    assertThat(worker.getCpuSlots()).isEqualTo(4);
+    assertThat(worker.getNumThreads(Stage.HARNESS)).isEqualTo(6);
+  }
+}
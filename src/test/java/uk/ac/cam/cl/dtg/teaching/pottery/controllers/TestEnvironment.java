@@ -32,6 +32,8 @@ import java.util.LinkedList;
 import java.util.stream.Collectors;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import uk.ac.cam.cl.dtg.teaching.pottery.GitMaintenance;
+import uk.ac.cam.cl.dtg.teaching.pottery.HeadResolver;
 import uk.ac.cam.cl.dtg.teaching.pottery.config.ContainerEnvConfig;
 import uk.ac.cam.cl.dtg.teaching.pottery.config.RepoConfig;
 import uk.ac.cam.cl.dtg.teaching.pottery.config.TaskConfig;
@@ -74,19 +76,32 @@ class TestEnvironment {
   private final RepoConfig repoConfig;
   private final UncontainerImpl containerBackend;
   private final Database database;
+  private final GitMaintenance gitMaintenance;
+  private final ContainerManager containerManager;
 
   TestEnvironment(String testRootDir)
       throws GitAPIException, SQLException, IOException, TaskStorageException {
+    this(testRootDir, new RepoConfig(testRootDir));
+  }
+
+  TestEnvironment(String testRootDir, RepoConfig repoConfig)
+      throws GitAPIException, SQLException, IOException, TaskStorageException {
+    this(testRootDir, repoConfig, new TaskConfig(testRootDir));
+  }
+
+  TestEnvironment(String testRootDir, RepoConfig repoConfig, TaskConfig taskConfig)
+      throws GitAPIException, SQLException, IOException, TaskStorageException {
     this.testRootDir = testRootDir;
     this.database = new InMemoryDatabase();
-    TaskConfig taskConfig = new TaskConfig(testRootDir);
-    this.taskFactory = new TaskFactory(taskConfig, database);
-    this.repoConfig = new RepoConfig(testRootDir);
-    this.repoFactory = new RepoFactory(repoConfig, database);
+    HeadResolver headResolver = new HeadResolver();
+    this.taskFactory = new TaskFactory(taskConfig, database, headResolver);
+    this.repoConfig = repoConfig;
+    this.gitMaintenance = new GitMaintenance(repoConfig);
+    this.repoFactory = new RepoFactory(repoConfig, database, headResolver, gitMaintenance);
     this.taskIndex = new TaskIndex(taskFactory, database);
     ContainerEnvConfig containerEnvConfig = new ContainerEnvConfig(testRootDir);
     this.containerBackend = new UncontainerImpl();
-    ContainerManager containerManager = new ContainerManager(containerEnvConfig, containerBackend);
+    this.containerManager = new ContainerManager(containerEnvConfig, containerBackend);
     this.worker = new BlockingWorker(taskIndex, repoFactory, containerManager, database);
   }
 
@@ -94,10 +109,30 @@ class TestEnvironment {
     return repoConfig;
   }
 
+  TaskFactory getTaskFactory() {
+    return taskFactory;
+  }
+
+  RepoFactory getRepoFactory() {
+    return repoFactory;
+  }
+
+  GitMaintenance getGitMaintenance() {
+    return gitMaintenance;
+  }
+
   Worker getWorker() {
     return worker;
   }
 
+  TaskIndex getTaskIndex() {
+    return taskIndex;
+  }
+
+  ContainerManager getContainerManager() {
+    return containerManager;
+  }
+
   Database getDatabase() {
     return database;
   }
@@ -19,22 +19,46 @@
 package uk.ac.cam.cl.dtg.teaching.pottery.controllers;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.google.common.collect.ImmutableList;
 import com.google.common.io.Files;
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Proxy;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
 import org.apache.commons.io.Charsets;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
+import uk.ac.cam.cl.dtg.teaching.pottery.HeadResolver;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.RepoConfig;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.CriterionNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoExpiredException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoFileNotFoundException;
@@ -44,11 +68,19 @@ import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoTagNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RetiredTaskException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskStorageException;
+import uk.ac.cam.cl.dtg.teaching.pottery.model.RepoInfo;
 import uk.ac.cam.cl.dtg.teaching.pottery.repo.Repo;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepositoryPool;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.StorageReclaimer;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.WarmRepoPool;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.Task;
+import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskCopy;
 
 public class TestRepo {
 
+  protected static final Logger LOG = LoggerFactory.getLogger(TestRepo.class);
+
   private File testRootDir;
   private Repo repo;
   private TestEnvironment testEnvironment;
@@ -87,6 +119,91 @@ public class TestRepo {
     assertThat(new String(fileContents)).isEqualTo(expectedContents);
   }
 
+  @Test
+  public void readFile_reusesPooledRepository()
+      throws RepoStorageException, RepoFileNotFoundException, RepoTagNotFoundException {
+
+    // ARRANGE
+    RepositoryPool repositoryPool = testEnvironment.getRepoFactory().getRepositoryPool();
+    repo.readFile("HEAD", "skeleton.sh");
+    long misses = repositoryPool.getMisses();
+    long hits = repositoryPool.getHits();
+
+    // ACT
+    repo.readFile("HEAD", "skeleton.sh");
+
+    // ASSERT
+    assertThat(repositoryPool.getMisses()).isEqualTo(misses);
+    assertThat(repositoryPool.getHits()).isEqualTo(hits + 1);
+  }
+
+  @Test
+  public void findFile_blobIdChangesOnlyWhenContentsChange()
+      throws RepoExpiredException, RepoFileNotFoundException, RepoStorageException,
+          RepoTagNotFoundException {
+
+    // ARRANGE
+    byte[] originalContents = repo.readFile("HEAD", "skeleton.sh");
+    String originalBlobId = repo.findFile("HEAD", "skeleton.sh").getBlobId();
+
+    // ACT
+    repo.updateFile("skeleton.sh", "NEW CONTENTS".getBytes(Charsets.UTF_8));
+    String updatedBlobId = repo.findFile("HEAD", "skeleton.sh").getBlobId();
+    repo.updateFile("skeleton.sh", originalContents);
+    String restoredBlobId = repo.findFile("HEAD", "skeleton.sh").getBlobId();
+
+    // ASSERT
+    assertThat(updatedBlobId).isNotEqualTo(originalBlobId);
+    assertThat(restoredBlobId).isEqualTo(originalBlobId);
+  }
+
+  @Test
+  public void readFile_returnsNotModifiedWhenETagMatches() throws Exception {
+
+    // ARRANGE
+    String blobId = repo.findFile("HEAD", "skeleton.sh").getBlobId();
+    Request request =
+        proxy(
+            Request.class,
+            (method, args) ->
+                method.equals("evaluatePreconditions") && new EntityTag(blobId).equals(args[0])
+                    ? Response.notModified((EntityTag) args[0])
+                    : null);
+    RepoController repoController = repoController(request, proxy(HttpServletResponse.class));
+
+    // ACT
+    Response response = repoController.readFile(repo.getRepoId(), "HEAD", "skeleton.sh");
+
+    // ASSERT
+    assertThat(response.getStatus()).isEqualTo(Response.Status.NOT_MODIFIED.getStatusCode());
+    assertThat(response.getHeaderString(HttpHeaders.CACHE_CONTROL)).contains("no-cache");
+  }
+
+  @Test
+  public void listFiles_letsClientsCacheTaggedVersions() throws Exception {
+
+    // ARRANGE
+    String tag = repo.createNewTag();
+    Map<String, String> headers = new TreeMap<>();
+    HttpServletResponse servletResponse =
+        proxy(
+            HttpServletResponse.class,
+            (method, args) -> {
+              if (method.equals("setHeader")) {
+                headers.put((String) args[0], (String) args[1]);
+              }
+              return null;
+            });
+    RepoController repoController = repoController(proxy(Request.class), servletResponse);
+
+    // ACT
+    List<String> files = repoController.listFiles(repo.getRepoId(), tag);
+
+    // ASSERT
+    assertThat(files).contains("skeleton.sh");
+    assertThat(headers.get(HttpHeaders.CACHE_CONTROL)).contains("immutable");
+  }
+
   @Test
   public void listFiles_findsSkeletonFile() throws RepoStorageException, RepoTagNotFoundException {
 
@@ -111,6 +228,311 @@ public class TestRepo {
     assertThat(tags).contains(tagName);
   }
 
+  @Test
+  public void copyFiles_sharesSkeletonObjectsBetweenRepos() throws Exception {
+
+    // ARRANGE
+    Task task = testEnvironment.createNoOpTask();
+
+    // ACT
+    Repo first = testEnvironment.createRepo(task);
+    Repo second = testEnvironment.createRepo(task);
+
+    // ASSERT
+    assertThat(second.resolveHeadSha()).isEqualTo(first.resolveHeadSha());
+    assertThat(new String(second.readFile("HEAD", "skeleton.sh")))
+        .isEqualTo(TestEnvironment.getScriptContents("Skeleton"));
+    File repoDir = testEnvironment.getRepoConfig().getRepoDir(second.getRepoId());
+    File objects = new File(repoDir, ".git/objects");
+    String[] looseObjectDirs = objects.list((dir, name) -> name.length() == 2);
+    assertThat(looseObjectDirs).isEmpty();
+  }
+
+  @Test
+  public void claimInstance_takesRepoFromWarmPool() throws Exception {
+
+    // ARRANGE
+    Task task = testEnvironment.createNoOpTask();
+    RepoFactory repoFactory = testEnvironment.getRepoFactory();
+    WarmRepoPool warmRepoPool = repoFactory.getWarmRepoPool();
+    Date expiryDate = new Date(System.currentTimeMillis() + 60 * 60 * 1000);
+    Repo claimed;
+    try (TaskCopy c = task.acquireTestingCopy()) {
+      // The first claim finds the pool empty and fills it
+      repoFactory.claimInstance(
+          task.getTaskId(), true, expiryDate, c, testEnvironment.getWorker());
+
+      // ACT
+      claimed =
+          repoFactory.claimInstance(
+              task.getTaskId(), true, expiryDate, c, testEnvironment.getWorker());
+    }
+
+    // ASSERT
+    assertThat(warmRepoPool.getMisses()).isEqualTo(1);
+    assertThat(warmRepoPool.getHits()).isEqualTo(1);
+    assertThat(warmRepoPool.getDepth())
+        .isEqualTo(testEnvironment.getRepoConfig().getWarmRepoPoolSize());
+    assertThat(claimed.toRepoInfo().getExpiryDate()).isEqualTo(expiryDate);
+    assertThat(new String(claimed.readFile("HEAD", "skeleton.sh")))
+        .isEqualTo(TestEnvironment.getScriptContents("Skeleton"));
+  }
+
+  @Test
+  public void claimInstance_keepsUnclaimedReposOutOfRepoRootAndWipesThemOnRestart()
+      throws Exception {
+
+    // ARRANGE
+    Task task = testEnvironment.createNoOpTask();
+    RepoConfig config = testEnvironment.getRepoConfig();
+    Date expiryDate = new Date(System.currentTimeMillis() + 60 * 60 * 1000);
+    Repo claimed;
+    try (TaskCopy c = task.acquireTestingCopy()) {
+      testEnvironment
+          .getRepoFactory()
+          .claimInstance(task.getTaskId(), true, expiryDate, c, testEnvironment.getWorker());
+      claimed =
+          testEnvironment
+              .getRepoFactory()
+              .claimInstance(task.getTaskId(), true, expiryDate, c, testEnvironment.getWorker());
+    }
+    String[] warmBeforeRestart = config.getWarmRepoRoot().list();
+
+    // ACT
+    RepoFactory restarted =
+        new RepoFactory(
+            config,
+            testEnvironment.getDatabase(),
+            new HeadResolver(),
+            testEnvironment.getGitMaintenance());
+    restarted.stop();
+
+    // ASSERT
+    assertThat(config.getRepoDir(claimed.getRepoId()).exists()).isTrue();
+    assertThat(config.getWarmRepoDir(claimed.getRepoId()).exists()).isFalse();
+    assertThat(warmBeforeRestart).hasLength(config.getWarmRepoPoolSize());
+    for (String repoId : warmBeforeRestart) {
+      assertThat(config.getRepoDir(repoId).exists()).isFalse();
+    }
+    assertThat(config.getWarmRepoRoot().list()).isEmpty();
+  }
+
+  @Test
+  public void createInstances_storesEveryRepo() throws Exception {
+
+    // ARRANGE
+    Task task = testEnvironment.createNoOpTask();
+    RepoFactory repoFactory = testEnvironment.getRepoFactory();
+    Date expiryDate = new Date(System.currentTimeMillis() + 60 * 60 * 1000);
+    Map<Integer, RepoInfo> created = new TreeMap<>();
+    List<Exception> failures = new ArrayList<>();
+
+    // ACT
+    try (TaskCopy c = task.acquireTestingCopy()) {
+      repoFactory.createInstances(
+          task.getTaskId(),
+          true,
+          expiryDate,
+          c,
+          50,
+          new RepoFactory.BulkCreationListener() {
+            @Override
+            public void created(int index, RepoInfo repoInfo) {
+              created.put(index, repoInfo);
+            }
+
+            @Override
+            public void failed(int index, Exception e) {
+              failures.add(e);
+            }
+          });
+    }
+
+    // ASSERT
+    assertThat(failures).isEmpty();
+    assertThat(created.keySet()).hasSize(50);
+    for (RepoInfo repoInfo : created.values()) {
+      Repo repo = repoFactory.getInstance(repoInfo.getRepoId());
+      assertThat(new String(repo.readFile("HEAD", "skeleton.sh")))
+          .isEqualTo(TestEnvironment.getScriptContents("Skeleton"));
+    }
+  }
+
+  @Test
+  public void archive_rehydratesOnNextAccess() throws Exception {
+
+    // ARRANGE
+    RepoFactory repoFactory = testEnvironment.getRepoFactory();
+    StorageReclaimer storageReclaimer = repoFactory.getStorageReclaimer();
+    String tag = repo.createNewTag();
+    File repoDir = testEnvironment.getRepoConfig().getRepoDir(repo.getRepoId());
+
+    // ACT
+    boolean archived = storageReclaimer.archive(repo.getRepoId());
+    boolean existsWhilstArchived = repoDir.exists();
+    byte[] contents = repo.readFile(tag, "skeleton.sh");
+
+    // ASSERT
+    assertThat(archived).isTrue();
+    assertThat(existsWhilstArchived).isFalse();
+    assertThat(repoDir.exists()).isTrue();
+    assertThat(new String(contents)).isEqualTo(TestEnvironment.getScriptContents("Skeleton"));
+    assertThat(repo.listTags()).containsExactly(tag);
+  }
+
+  @Test
+  public void archive_neverDeletesFilesFromUnderAReader() throws Exception {
+
+    // ARRANGE
+    StorageReclaimer storageReclaimer = testEnvironment.getRepoFactory().getStorageReclaimer();
+    String expected = TestEnvironment.getScriptContents("Skeleton");
+    AtomicBoolean reading = new AtomicBoolean(true);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Long> reader =
+          executor.submit(
+              () -> {
+                long reads = 0;
+                while (reading.get()) {
+                  assertThat(new String(repo.readFile("HEAD", "skeleton.sh"))).isEqualTo(expected);
+                  reads++;
+                }
+                return reads;
+              });
+
+      // ACT
+      int archived = 0;
+      for (int i = 0; i < 20; i++) {
+        if (storageReclaimer.archive(repo.getRepoId())) {
+          archived++;
+        }
+      }
+      reading.set(false);
+      long reads = reader.get();
+
+      // ASSERT
+      LOG.info("Archived {} times during {} reads", archived, reads);
+      assertThat(reads).isGreaterThan(0L);
+    } finally {
+      reading.set(false);
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void gc_packsLooseObjects() throws Exception {
+
+    // ARRANGE
+    for (int i = 0; i < 5; i++) {
+      repo.updateFile("file" + i + ".txt", ("contents " + i).getBytes(Charsets.UTF_8));
+    }
+    File gitDir = new File(testEnvironment.getRepoConfig().getRepoDir(repo.getRepoId()), ".git");
+
+    // ACT
+    boolean ran = testEnvironment.getGitMaintenance().gc(gitDir);
+
+    // ASSERT
+    assertThat(ran).isTrue();
+    String[] looseObjectDirs =
+        new File(gitDir, "objects").list((dir, name) -> name.length() == 2);
+    assertThat(looseObjectDirs).isEmpty();
+    assertThat(new String(repo.readFile("HEAD", "file3.txt"))).isEqualTo("contents 3");
+  }
+
+  @Test
+  public void gc_doesNotCopySkeletonObjectsIntoRepo() throws Exception {
+
+    // ARRANGE
+    repo.updateFile("file.txt", "contents".getBytes(Charsets.UTF_8));
+    ObjectId skeletonBlobId = ObjectId.fromString(repo.findFile("HEAD", "skeleton.sh").getBlobId());
+    File gitDir = new File(testEnvironment.getRepoConfig().getRepoDir(repo.getRepoId()), ".git");
+
+    // ACT
+    boolean ran = testEnvironment.getGitMaintenance().gc(gitDir);
+
+    // ASSERT
+    assertThat(ran).isTrue();
+    // Without the alternates the repo can only see the objects in its own pack
+    assertThat(new File(gitDir, "objects/info/alternates").delete()).isTrue();
+    try (Repository repository =
+            new FileRepositoryBuilder().setGitDir(gitDir).setMustExist(true).build()) {
+      assertThat(repository.getObjectDatabase().has(skeletonBlobId)).isFalse();
+      assertThat(repository.resolve("HEAD:file.txt")).isNotNull();
+    }
+  }
+
+  @Test
+  public void gc_usesTheCachedRepoAndForgetsEvictedRepos() throws Exception {
+
+    // ARRANGE
+    String smallCacheRootDir = new File(testRootDir, "small-cache").getPath();
+    RepoConfig smallCacheConfig =
+        new RepoConfig(smallCacheRootDir) {
+          @Override
+          public int getRepoCacheSize() {
+            return 1;
+          }
+        };
+    TestEnvironment smallCacheEnvironment =
+        new TestEnvironment(smallCacheRootDir, smallCacheConfig);
+    Task task = smallCacheEnvironment.createNoOpTask();
+    Repo first = smallCacheEnvironment.createRepo(task);
+    // Creating the second repo evicts the first
+    Repo second = smallCacheEnvironment.createRepo(task);
+    File firstGitDir = new File(smallCacheConfig.getRepoDir(first.getRepoId()), ".git");
+    File secondGitDir = new File(smallCacheConfig.getRepoDir(second.getRepoId()), ".git");
+
+    // ACT
+    // Loading the first repo again evicts the second
+    Repo reloaded = smallCacheEnvironment.getRepoFactory().getInstance(first.getRepoId());
+    reloaded.updateFile("file.txt", "contents".getBytes(Charsets.UTF_8));
+    boolean ranOnReloaded = smallCacheEnvironment.getGitMaintenance().gc(firstGitDir);
+    boolean ranOnEvicted = smallCacheEnvironment.getGitMaintenance().gc(secondGitDir);
+
+    // ASSERT
+    assertThat(reloaded).isNotSameAs(first);
+    assertThat(ranOnReloaded).isTrue();
+    assertThat(ranOnEvicted).isFalse();
+    assertThat(new String(reloaded.readFile("HEAD", "file.txt"))).isEqualTo("contents");
+  }
+
+  @Test
+  public void getInstance_returnsCachedRepo() throws Exception {
+
+    // ARRANGE
+    RepoFactory repoFactory = testEnvironment.getRepoFactory();
+    long hitsBefore = repoFactory.getCacheStats().hitCount();
+
+    // ACT
+    Repo first = repoFactory.getInstance(repo.getRepoId());
+    Repo second = repoFactory.getInstance(repo.getRepoId());
+
+    // ASSERT
+    assertThat(second).isSameAs(first);
+    assertThat(repoFactory.getCacheStats().hitCount()).isAtLeast(hitsBefore + 1);
+  }
+
+  @Test
+  public void createTag_noticesTagsCreatedOutOfBand()
+      throws IOException, GitAPIException, RepoStorageException, RepoExpiredException {
+
+    // ARRANGE
+    repo.createNewTag();
+    File repoDir = testEnvironment.getRepoConfig().getRepoDir(repo.getRepoId());
+    String prefix = testEnvironment.getRepoConfig().getWebtagPrefix();
+    try (Git g = Git.open(repoDir)) {
+      g.tag().setName(prefix + "010").call();
+    }
+
+    // ACT
+    List<String> tags = repo.listTags();
+    String tagName = repo.createNewTag();
+
+    // ASSERT
+    assertThat(tags).contains(prefix + "010");
+    assertThat(tagName).isEqualTo(prefix + "011");
+  }
+
   @Test
   public void updateFile_altersFileContents()
       throws RepoExpiredException, RepoFileNotFoundException, RepoStorageException,
@@ -127,6 +549,209 @@ public class TestRepo {
     assertThat(readContents).isEqualTo(updatedContents);
   }
 
+  @Test
+  public void reset_restoresContentsAtTag()
+      throws RepoExpiredException, RepoFileNotFoundException, RepoStorageException,
+          RepoTagNotFoundException {
+
+    // ARRANGE
+    byte[] originalContents = repo.readFile("HEAD", "skeleton.sh");
+    String tag = repo.createNewTag();
+    repo.updateFile("skeleton.sh", "NEW CONTENTS".getBytes(Charsets.UTF_8));
+
+    // ACT
+    repo.reset(tag);
+
+    // ASSERT
+    assertThat(repo.readFile("HEAD", "skeleton.sh")).isEqualTo(originalContents);
+  }
+
+  @Test
+  public void updateFile_createsFileInNewDirectory()
+      throws RepoExpiredException, RepoFileNotFoundException, RepoStorageException,
+          RepoTagNotFoundException {
+
+    // ARRANGE
+    byte[] contents = "NEW FILE".getBytes(Charsets.UTF_8);
+
+    // ACT
+    repo.updateFile("src/new.txt", contents);
+
+    // ASSERT
+    assertThat(repo.listFiles("HEAD")).containsExactly("skeleton.sh", "src/new.txt");
+    assertThat(repo.readFile("HEAD", "src/new.txt")).isEqualTo(contents);
+  }
+
+  @Test
+  public void deleteFile_removesFileFromHead()
+      throws RepoExpiredException, RepoFileNotFoundException, RepoStorageException,
+          RepoTagNotFoundException {
+
+    // ACT
+    repo.deleteFile("skeleton.sh");
+
+    // ASSERT
+    assertThat(repo.listFiles("HEAD")).isEmpty();
+  }
+
+  @Test
+  public void updateFiles_appliesAllChangesInOneCommit() throws Exception {
+
+    // ARRANGE
+    File repoDir = testEnvironment.getRepoConfig().getRepoDir(repo.getRepoId());
+    int commitsBefore = countCommits(repoDir);
+    Map<String, byte[]> updates = new TreeMap<>();
+    for (int i = 0; i < 200; i++) {
+      updates.put("src/file" + i + ".txt", String.valueOf(i).getBytes(Charsets.UTF_8));
+    }
+
+    // ACT
+    repo.updateFiles(updates, ImmutableList.of("skeleton.sh"));
+
+    // ASSERT
+    assertThat(countCommits(repoDir)).isEqualTo(commitsBefore + 1);
+    assertThat(repo.listFiles("HEAD")).containsExactlyElementsIn(updates.keySet());
+    assertThat(repo.readFile("HEAD", "src/file42.txt")).isEqualTo(updates.get("src/file42.txt"));
+  }
+
+  @Test
+  public void updateFiles_makesNoChangesIfAnyChangeIsInvalid() throws Exception {
+
+    // ARRANGE
+    File repoDir = testEnvironment.getRepoConfig().getRepoDir(repo.getRepoId());
+    int commitsBefore = countCommits(repoDir);
+    Map<String, byte[]> updates = new TreeMap<>();
+    updates.put("new.txt", "NEW".getBytes(Charsets.UTF_8));
+
+    // ACT
+    try {
+      repo.updateFiles(updates, ImmutableList.of("missing.txt"));
+      fail("Expected RepoFileNotFoundException");
+    } catch (RepoFileNotFoundException e) {
+      assertThat(e).hasMessageThat().contains("File does not exist");
+    }
+
+    // ASSERT
+    assertThat(countCommits(repoDir)).isEqualTo(commitsBefore);
+    assertThat(repo.listFiles("HEAD")).containsExactly("skeleton.sh");
+  }
+
+  @Test
+  public void updateFile_coalescesBufferedUpdatesIntoOneCommit() throws Exception {
+
+    // ARRANGE
+    String writeBehindRootDir = new File(testRootDir, "write-behind").getPath();
+    RepoConfig writeBehindConfig =
+        new RepoConfig(writeBehindRootDir) {
+          @Override
+          public long getWriteBehindWindowMs() {
+            return 60 * 60 * 1000;
+          }
+        };
+    TestEnvironment writeBehindEnvironment =
+        new TestEnvironment(writeBehindRootDir, writeBehindConfig);
+    Repo writeBehindRepo =
+        writeBehindEnvironment.createRepo(writeBehindEnvironment.createNoOpTask());
+    File repoDir = writeBehindConfig.getRepoDir(writeBehindRepo.getRepoId());
+    int commitsBefore = countCommits(repoDir);
+    byte[] finalContents = "THIRD".getBytes(Charsets.UTF_8);
+
+    // ACT
+    writeBehindRepo.updateFile("skeleton.sh", "FIRST".getBytes(Charsets.UTF_8));
+    writeBehindRepo.updateFile("skeleton.sh", "SECOND".getBytes(Charsets.UTF_8));
+    writeBehindRepo.updateFile("skeleton.sh", finalContents);
+    writeBehindRepo.updateFile("src/new.txt", "NEW".getBytes(Charsets.UTF_8));
+    byte[] bufferedContents = writeBehindRepo.readFile("HEAD", "skeleton.sh");
+    List<String> bufferedFiles = writeBehindRepo.listFiles("HEAD");
+    int commitsWhilstBuffered = countCommits(repoDir);
+    String tag = writeBehindRepo.createNewTag();
+
+    // ASSERT
+    assertThat(bufferedContents).isEqualTo(finalContents);
+    assertThat(bufferedFiles).containsExactly("skeleton.sh", "src/new.txt");
+    assertThat(commitsWhilstBuffered).isEqualTo(commitsBefore);
+    assertThat(countCommits(repoDir)).isEqualTo(commitsBefore + 1);
+    assertThat(writeBehindRepo.readFile(tag, "skeleton.sh")).isEqualTo(finalContents);
+  }
+
+  private static int countCommits(File repoDir) throws IOException, GitAPIException {
+    try (Git g = Git.open(repoDir)) {
+      int count = 0;
+      for (RevCommit ignored : g.log().call()) {
+        count++;
+      }
+      return count;
+    }
+  }
+
+  @Test
+  public void readFile_makesProgressWhilstWriterIsActive() throws Exception {
+
+    // ARRANGE
+    int cores = Runtime.getRuntime().availableProcessors();
+    List<Integer> readerCounts = new ArrayList<>();
+    for (int readers = 1; readers < cores; readers *= 2) {
+      readerCounts.add(readers);
+    }
+    readerCounts.add(cores);
+    AtomicBoolean writing = new AtomicBoolean(true);
+    AtomicLong writes = new AtomicLong(0);
+    ExecutorService executor = Executors.newFixedThreadPool(cores + 1);
+    try {
+      Future<?> writer =
+          executor.submit(
+              () -> {
+                while (writing.get()) {
+                  repo.updateFile(
+                      "other.txt",
+                      String.valueOf(writes.incrementAndGet()).getBytes(Charsets.UTF_8));
+                }
+                return null;
+              });
+
+      // ACT
+      Map<Integer, Long> throughput = new TreeMap<>();
+      for (int readers : readerCounts) {
+        throughput.put(readers, measureReadThroughput(executor, readers, 500));
+      }
+      writing.set(false);
+      writer.get();
+
+      // ASSERT
+      LOG.info("Reads per second by number of readers whilst a writer is active: {}", throughput);
+      assertThat(writes.get()).isGreaterThan(0L);
+      for (long readsPerSecond : throughput.values()) {
+        assertThat(readsPerSecond).isGreaterThan(0L);
+      }
+    } finally {
+      writing.set(false);
+      executor.shutdownNow();
+    }
+  }
+
+  private long measureReadThroughput(ExecutorService executor, int readers, long durationMs)
+      throws Exception {
+    long deadline = System.currentTimeMillis() + durationMs;
+    List<Future<Long>> results = new ArrayList<>();
+    for (int i = 0; i < readers; i++) {
+      results.add(
+          executor.submit(
+              () -> {
+                long reads = 0;
+                while (System.currentTimeMillis() < deadline) {
+                  repo.readFile("HEAD", "skeleton.sh");
+                  reads++;
+                }
+                return reads;
+              }));
+    }
+    long total = 0;
+    for (Future<Long> result : results) {
+      total += result.get();
+    }
+    return total * 1000 / durationMs;
+  }
+
   @Test
   public void resolveHeadSha_findsCorrectValue()
       throws IOException, GitAPIException, RepoStorageException {
@@ -147,4 +772,27 @@ public class TestRepo {
     // ASSERT
     assertThat(foundSha).isEqualTo(headSha);
   }
+
+  private RepoController repoController(Request request, HttpServletResponse servletResponse) {
+    return new RepoController(
+        testEnvironment.getRepoFactory(),
+        testEnvironment.getTaskIndex(),
+        testEnvironment.getWorker(),
+        request,
+        servletResponse);
+  }
+
+  /** A stand-in for a request context object which returns null from every method. */
+  private static <T> T proxy(Class<T> type) {
+    return proxy(type, (method, args) -> null);
+  }
+
+  /** A stand-in for a request context object which answers each call by method name. */
+  private static <T> T proxy(Class<T> type, BiFunction<String, Object[], Object> answer) {
+    return type.cast(
+        Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[] {type},
+            (proxy, method, args) -> answer.apply(method.getName(), args)));
+  }
 }
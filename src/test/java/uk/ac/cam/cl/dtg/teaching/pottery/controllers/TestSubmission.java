@@ -24,17 +24,32 @@ import static org.junit.Assert.fail;
 import com.google.common.io.Files;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
+import java.util.Date;
+import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.TreeFormatter;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
+import uk.ac.cam.cl.dtg.teaching.pottery.TransactionQueryRunner;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.WorkerConfig;
 import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.CriterionNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoExpiredException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoFileNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoStorageException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoTagNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RetiredTaskException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.SubmissionAlreadyScheduledException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.SubmissionNotFoundException;
@@ -42,12 +57,21 @@ import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.SubmissionStorageException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskStorageException;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.Submission;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.CompletedSubmissionCache;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RemoteMirrors;
 import uk.ac.cam.cl.dtg.teaching.pottery.repo.Repo;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.SubmissionResultCache;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.Submissions;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.TestingWorkspaces;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.Task;
+import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskCopy;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.ThreadPoolWorker;
 
 public class TestSubmission {
 
   private File testRootDir;
+  private Task task;
   private Repo repo;
   private TestEnvironment testEnvironment;
 
@@ -61,7 +85,7 @@ public class TestSubmission {
     this.testRootDir = Files.createTempDir().getCanonicalFile();
     this.testEnvironment = new TestEnvironment(testRootDir.getPath());
 
-    Task task = testEnvironment.createNoOpTask();
+    this.task = testEnvironment.createNoOpTask();
     this.repo = testEnvironment.createRepo(task);
   }
 
@@ -80,6 +104,351 @@ public class TestSubmission {
     assertThat(submission.isComplete()).isTrue();
   }
 
+  @Test
+  public void scheduleSubmission_reusesResultForIdenticalCode()
+      throws RepoStorageException, RepoExpiredException, SubmissionStorageException,
+          SubmissionNotFoundException, RepoNotFoundException, TaskNotFoundException {
+
+    // ARRANGE
+    Database database = testEnvironment.getDatabase();
+    SubmissionResultCache resultCache =
+        testEnvironment.getRepoFactory().getSubmissionResultCache();
+    String tag = repo.createNewTag();
+    repo.scheduleSubmission(tag, testEnvironment.getWorker(), database);
+    long hits = resultCache.getHits();
+    Repo otherRepo = testEnvironment.createRepo(task);
+    String otherTag = otherRepo.createNewTag();
+
+    // ACT
+    otherRepo.scheduleSubmission(otherTag, testEnvironment.getWorker(), database);
+    Submission submission = otherRepo.getSubmission(otherTag, database);
+
+    // ASSERT
+    assertThat(resultCache.getHits()).isEqualTo(hits + 1);
+    assertThat(submission.isComplete()).isTrue();
+    assertThat(submission.getRepoId()).isEqualTo(otherRepo.getRepoId());
+  }
+
+  @Test
+  public void scheduleSubmission_reusedResultReleasesTaskCopyWithoutTakingWorkspace()
+      throws RepoStorageException, RepoExpiredException, SubmissionStorageException,
+          SubmissionNotFoundException, RepoNotFoundException, TaskNotFoundException {
+
+    // ARRANGE
+    Database database = testEnvironment.getDatabase();
+    TestingWorkspaces workspaces = testEnvironment.getRepoFactory().getTestingWorkspaces();
+    TaskCopy copy;
+    try (TaskCopy c = task.acquireTestingCopy()) {
+      copy = c;
+    }
+    repo.scheduleSubmission(repo.createNewTag(), testEnvironment.getWorker(), database);
+    int idle = workspaces.getIdle();
+    Repo otherRepo = testEnvironment.createRepo(task);
+    String otherTag = otherRepo.createNewTag();
+
+    // ACT
+    otherRepo.scheduleSubmission(otherTag, testEnvironment.getWorker(), database);
+
+    // ASSERT
+    assertThat(otherRepo.getSubmission(otherTag, database).isComplete()).isTrue();
+    assertThat(workspaces.getActive()).isEqualTo(0);
+    assertThat(workspaces.getIdle()).isEqualTo(idle);
+    assertThat(copy.isInUse()).isFalse();
+  }
+
+  @Test
+  public void scheduleSubmission_failedCompilationReleasesWorkspaceAndTaskCopy()
+      throws IOException, RepoStorageException, RepoExpiredException, SubmissionStorageException,
+          SubmissionNotFoundException, TaskNotFoundException {
+
+    // ARRANGE
+    Database database = testEnvironment.getDatabase();
+    TestingWorkspaces workspaces = testEnvironment.getRepoFactory().getTestingWorkspaces();
+    TaskCopy copy;
+    try (TaskCopy c = task.acquireTestingCopy()) {
+      copy = c;
+    }
+    Files.write(
+        "#!/bin/bash\nexit 1\n".getBytes(StandardCharsets.UTF_8),
+        new File(copy.getCompileRoot(), "compile-solution.sh"));
+    String tag = repo.createNewTag();
+
+    // ACT
+    repo.scheduleSubmission(tag, testEnvironment.getWorker(), database);
+
+    // ASSERT
+    Submission submission = repo.getSubmission(tag, database);
+    assertThat(submission.isComplete()).isTrue();
+    assertThat(submission.getErrorMessage()).contains("Compilation failed");
+    assertThat(workspaces.getActive()).isEqualTo(0);
+    assertThat(copy.isInUse()).isFalse();
+  }
+
+  @Test
+  public void scheduleSubmission_abandonsAfterFinalRetryAndReleasesWorkspaceAndTaskCopy()
+      throws IOException, InterruptedException, RepoStorageException, RepoExpiredException,
+          SubmissionStorageException, SubmissionNotFoundException, TaskNotFoundException,
+          SQLException {
+
+    // ARRANGE
+    Database database = testEnvironment.getDatabase();
+    TestingWorkspaces workspaces = testEnvironment.getRepoFactory().getTestingWorkspaces();
+    TaskCopy copy;
+    try (TaskCopy c = task.acquireTestingCopy()) {
+      copy = c;
+    }
+    // Without its script the compilation step can't start and so asks to be retried
+    assertThat(new File(copy.getCompileRoot(), "compile-solution.sh").delete()).isTrue();
+    ThreadPoolWorker worker =
+        new ThreadPoolWorker(
+            testEnvironment.getTaskIndex(),
+            testEnvironment.getRepoFactory(),
+            testEnvironment.getContainerManager(),
+            database,
+            new WorkerConfig() {
+              @Override
+              public long getRetryBaseDelayMs() {
+                return 1;
+              }
+
+              @Override
+              public int getMaxAttempts() {
+                return 3;
+              }
+            });
+    String tag = repo.createNewTag();
+
+    // ACT
+    Submission submission;
+    try {
+      repo.scheduleSubmission(tag, worker, database);
+      long deadline = System.currentTimeMillis() + 30_000;
+      do {
+        Thread.sleep(10);
+        submission = repo.getSubmission(tag, database);
+      } while (!submission.isComplete() && System.currentTimeMillis() < deadline);
+    } finally {
+      worker.stop();
+    }
+
+    // ASSERT
+    assertThat(submission.isComplete()).isTrue();
+    assertThat(submission.getErrorMessage()).contains("Too many retries");
+    assertThat(submission.isNeedsRetry()).isFalse();
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      Submission stored = Submissions.getByRepoIdAndTag(repo.getRepoId(), tag, q);
+      assertThat(stored).isNotNull();
+      assertThat(stored.getErrorMessage()).contains("Too many retries");
+    }
+    assertThat(workspaces.getActive()).isEqualTo(0);
+    assertThat(copy.isInUse()).isFalse();
+  }
+
+  @Test
+  public void scheduleSubmission_releasesWorkspaceAndTaskCopyWhilstWaitingToRetry()
+      throws IOException, InterruptedException, RepoStorageException, RepoExpiredException,
+          SubmissionStorageException, SubmissionNotFoundException, TaskNotFoundException {
+
+    // ARRANGE
+    Database database = testEnvironment.getDatabase();
+    TestingWorkspaces workspaces = testEnvironment.getRepoFactory().getTestingWorkspaces();
+    TaskCopy copy;
+    try (TaskCopy c = task.acquireTestingCopy()) {
+      copy = c;
+    }
+    // Without its script the compilation step can't start and so asks to be retried
+    assertThat(new File(copy.getCompileRoot(), "compile-solution.sh").delete()).isTrue();
+    ThreadPoolWorker worker =
+        new ThreadPoolWorker(
+            testEnvironment.getTaskIndex(),
+            testEnvironment.getRepoFactory(),
+            testEnvironment.getContainerManager(),
+            database,
+            new WorkerConfig() {
+              @Override
+              public long getRetryBaseDelayMs() {
+                return 60 * 60 * 1000;
+              }
+            });
+    String tag = repo.createNewTag();
+
+    // ACT
+    Submission submission;
+    boolean released;
+    try {
+      repo.scheduleSubmission(tag, worker, database);
+      long deadline = System.currentTimeMillis() + 30_000;
+      do {
+        Thread.sleep(10);
+        submission = repo.getSubmission(tag, database);
+        released = workspaces.getActive() == 0 && !copy.isInUse();
+      } while (!(submission.isNeedsRetry() && released)
+          && System.currentTimeMillis() < deadline);
+    } finally {
+      worker.stop();
+    }
+
+    // ASSERT
+    assertThat(submission.isNeedsRetry()).isTrue();
+    assertThat(submission.isComplete()).isFalse();
+    assertThat(released).isTrue();
+  }
+
+  @Test
+  public void scheduleSubmission_movesStoredResultToCompletedSubmissionCache()
+      throws RepoStorageException, RepoExpiredException, SubmissionStorageException,
+          SubmissionNotFoundException {
+
+    // ARRANGE
+    Database database = testEnvironment.getDatabase();
+    CompletedSubmissionCache completedSubmissions =
+        testEnvironment.getRepoFactory().getCompletedSubmissions();
+    long hits = completedSubmissions.getStats().hitCount();
+    String tag = repo.createNewTag();
+
+    // ACT
+    repo.scheduleSubmission(tag, testEnvironment.getWorker(), database);
+    Submission submission = repo.getSubmission(tag, database);
+
+    // ASSERT
+    assertThat(submission.isComplete()).isTrue();
+    assertThat(completedSubmissions.getStats().hitCount()).isEqualTo(hits + 1);
+    assertThat(completedSubmissions.getWeight()).isGreaterThan(0L);
+  }
+
+  @Test
+  public void scheduleSubmission_fetchesRemoteRepoIntoMirror()
+      throws IOException, GitAPIException, RepoStorageException, RepoExpiredException,
+          RepoNotFoundException, SubmissionStorageException, SubmissionNotFoundException {
+
+    // ARRANGE
+    Database database = testEnvironment.getDatabase();
+    RemoteMirrors remoteMirrors = testEnvironment.getRepoFactory().getRemoteMirrors();
+    File remoteDir = new File(testRootDir, "remote");
+    Repo remoteRepo;
+    String firstSha;
+    String secondSha;
+    try (Git git = Git.init().setDirectory(remoteDir).call()) {
+      Files.write("first".getBytes(StandardCharsets.UTF_8), new File(remoteDir, "file.txt"));
+      git.add().addFilepattern("file.txt").call();
+      firstSha = git.commit().setMessage("First").call().getName();
+      remoteRepo =
+          testEnvironment
+              .getRepoFactory()
+              .createInstance(
+                  task.getTaskId(),
+                  true,
+                  new Date(System.currentTimeMillis() + 60_000),
+                  remoteDir.toURI().toString());
+      remoteRepo.scheduleSubmission(firstSha, testEnvironment.getWorker(), database);
+      Files.write("second".getBytes(StandardCharsets.UTF_8), new File(remoteDir, "file.txt"));
+      git.add().addFilepattern("file.txt").call();
+      secondSha = git.commit().setMessage("Second").call().getName();
+    }
+    long fetches = remoteMirrors.getFetches();
+
+    // ACT
+    remoteRepo.scheduleSubmission(secondSha, testEnvironment.getWorker(), database);
+    remoteRepo.scheduleSubmission(firstSha, testEnvironment.getWorker(), database);
+
+    // ASSERT
+    assertThat(remoteRepo.getSubmission(firstSha, database).isComplete()).isTrue();
+    assertThat(remoteRepo.getSubmission(secondSha, database).isComplete()).isTrue();
+    assertThat(remoteMirrors.getFetches()).isEqualTo(fetches + 1);
+  }
+
+  @Test
+  public void removeMirror_deletesMirrorWhichIsFetchedAgainOnNextUse()
+      throws IOException, GitAPIException, RepoStorageException, RepoExpiredException,
+          RepoNotFoundException, SubmissionStorageException, SubmissionNotFoundException {
+
+    // ARRANGE
+    Database database = testEnvironment.getDatabase();
+    RepoFactory repoFactory = testEnvironment.getRepoFactory();
+    File remoteDir = new File(testRootDir, "remote");
+    String firstSha;
+    String secondSha;
+    try (Git git = Git.init().setDirectory(remoteDir).call()) {
+      Files.write("first".getBytes(StandardCharsets.UTF_8), new File(remoteDir, "file.txt"));
+      git.add().addFilepattern("file.txt").call();
+      firstSha = git.commit().setMessage("First").call().getName();
+      Files.write("second".getBytes(StandardCharsets.UTF_8), new File(remoteDir, "file.txt"));
+      git.add().addFilepattern("file.txt").call();
+      secondSha = git.commit().setMessage("Second").call().getName();
+    }
+    Repo remoteRepo =
+        repoFactory.createInstance(
+            task.getTaskId(),
+            true,
+            new Date(System.currentTimeMillis() + 60_000),
+            remoteDir.toURI().toString());
+    remoteRepo.scheduleSubmission(firstSha, testEnvironment.getWorker(), database);
+    File mirrorDir = testEnvironment.getRepoConfig().getRemoteMirrorDir(remoteRepo.getRepoId());
+    long fetches = repoFactory.getRemoteMirrors().getFetches();
+
+    // ACT
+    boolean removed = repoFactory.getStorageReclaimer().removeMirror(remoteRepo.getRepoId());
+    boolean existsAfterRemoval = mirrorDir.exists();
+    remoteRepo.scheduleSubmission(secondSha, testEnvironment.getWorker(), database);
+
+    // ASSERT
+    assertThat(removed).isTrue();
+    assertThat(existsAfterRemoval).isFalse();
+    assertThat(mirrorDir.exists()).isTrue();
+    assertThat(remoteRepo.getSubmission(secondSha, database).isComplete()).isTrue();
+    assertThat(repoFactory.getRemoteMirrors().getFetches()).isEqualTo(fetches + 1);
+  }
+
+  @Test
+  public void scheduleSubmission_refusesRemoteTreeOutsideWorkspace()
+      throws IOException, GitAPIException, RepoStorageException, RepoExpiredException,
+          RepoNotFoundException, SubmissionStorageException, SubmissionNotFoundException {
+
+    // ARRANGE
+    Database database = testEnvironment.getDatabase();
+    File remoteDir = new File(testRootDir, "malicious");
+    String sha;
+    try (Git git = Git.init().setDirectory(remoteDir).call();
+        ObjectInserter inserter = git.getRepository().newObjectInserter()) {
+      ObjectId blobId =
+          inserter.insert(Constants.OBJ_BLOB, "escaped".getBytes(StandardCharsets.UTF_8));
+      TreeFormatter escapedTree = new TreeFormatter();
+      escapedTree.append("escaped.txt", FileMode.REGULAR_FILE, blobId);
+      TreeFormatter rootTree = new TreeFormatter();
+      rootTree.append("..", FileMode.TREE, inserter.insert(escapedTree));
+      PersonIdent ident = new PersonIdent("Test", "test@example.com");
+      CommitBuilder commit = new CommitBuilder();
+      commit.setTreeId(inserter.insert(rootTree));
+      commit.setAuthor(ident);
+      commit.setCommitter(ident);
+      commit.setMessage("Escape");
+      ObjectId commitId = inserter.insert(commit);
+      inserter.flush();
+      RefUpdate refUpdate = git.getRepository().updateRef(Constants.R_HEADS + "master");
+      refUpdate.setNewObjectId(commitId);
+      refUpdate.forceUpdate();
+      sha = commitId.getName();
+    }
+    Repo remoteRepo =
+        testEnvironment
+            .getRepoFactory()
+            .createInstance(
+                task.getTaskId(),
+                true,
+                new Date(System.currentTimeMillis() + 60_000),
+                remoteDir.toURI().toString());
+
+    // ACT
+    remoteRepo.scheduleSubmission(sha, testEnvironment.getWorker(), database);
+
+    // ASSERT
+    Submission submission = remoteRepo.getSubmission(sha, database);
+    assertThat(submission.isComplete()).isTrue();
+    assertThat(submission.getErrorMessage()).contains("Failed to find requested tag");
+    File testingRoot = testEnvironment.getRepoConfig().getRepoTestingRoot();
+    assertThat(new File(testingRoot, "escaped.txt").exists()).isFalse();
+  }
+
   @Test
   public void deleteSubmission_succeeds()
       throws RepoStorageException, RepoExpiredException, SubmissionStorageException,
@@ -126,4 +495,39 @@ public class TestSubmission {
       scheduleThread.join(); // don't teardown the test until we've finished running the submission
     }
   }
+
+  @Test
+  public void updateFile_succeedsWhilstSubmissionIsRunning()
+      throws RepoStorageException, RepoExpiredException, RepoFileNotFoundException,
+          RepoTagNotFoundException, InterruptedException {
+
+    // ARRANGE
+    String tag = repo.createNewTag();
+    Database database = testEnvironment.getDatabase();
+    byte[] updatedContents = "NEW CONTENTS".getBytes(StandardCharsets.UTF_8);
+    testEnvironment.getContainerBackend().block();
+    Thread scheduleThread =
+        new Thread(
+            () -> {
+              try {
+                repo.scheduleSubmission(tag, testEnvironment.getWorker(), database);
+              } catch (RepoExpiredException | SubmissionStorageException | RepoStorageException e) {
+                throw new RuntimeException(e);
+              }
+            });
+    try {
+      scheduleThread.start();
+      testEnvironment.getContainerBackend().waitForBlocked();
+
+      // ACT
+      repo.updateFile("skeleton.sh", updatedContents);
+      byte[] readContents = repo.readFile("HEAD", "skeleton.sh");
+
+      // ASSERT
+      assertThat(readContents).isEqualTo(updatedContents);
+    } finally {
+      testEnvironment.getContainerBackend().unblock();
+      scheduleThread.join();
+    }
+  }
 }
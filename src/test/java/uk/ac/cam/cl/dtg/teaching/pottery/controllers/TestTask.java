@@ -33,12 +33,15 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
+import uk.ac.cam.cl.dtg.teaching.pottery.HeadResolver;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.RepoConfig;
 import uk.ac.cam.cl.dtg.teaching.pottery.config.TaskConfig;
 import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
 import uk.ac.cam.cl.dtg.teaching.pottery.database.InMemoryDatabase;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RetiredTaskException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskStorageException;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.Task;
+import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskCopy;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskFactory;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskIndex;
 
@@ -54,7 +57,7 @@ public class TestTask {
     this.testRootDir = Files.createTempDir().getCanonicalFile();
     database = new InMemoryDatabase();
     TaskConfig taskConfig = new TaskConfig(testRootDir.getPath());
-    taskFactory = new TaskFactory(taskConfig, database);
+    taskFactory = new TaskFactory(taskConfig, database, new HeadResolver());
     taskIndex = new TaskIndex(taskFactory, database);
   }
 
@@ -89,6 +92,36 @@ public class TestTask {
     assertThat(headSha).isEqualTo(cloneHeadSha);
   }
 
+  @Test
+  public void getHeadSha_seesPushImmediately()
+      throws GitAPIException, IOException, TaskStorageException {
+    // ARRANGE
+    Task task = taskFactory.createInstance();
+    File clone = new File(testRootDir, "clone");
+    String secondSha;
+    try (Git g =
+        Git.cloneRepository()
+            .setURI(task.getTaskDefLocation().toString())
+            .setDirectory(clone)
+            .call()) {
+      Files.write("First".getBytes(Charsets.UTF_8), new File(clone, "readme.txt"));
+      g.add().addFilepattern("readme.txt").call();
+      g.commit().setMessage("first commit").call();
+      g.push().call();
+      task.getHeadSha();
+      Files.write("Second".getBytes(Charsets.UTF_8), new File(clone, "readme.txt"));
+      g.add().addFilepattern("readme.txt").call();
+      secondSha = g.commit().setMessage("second commit").call().getName();
+      g.push().call();
+    }
+
+    // ACT
+    String headSha = task.getHeadSha();
+
+    // ASSERT
+    assertThat(headSha).isEqualTo(secondSha);
+  }
+
   @Test
   public void getAllTasks_containsTaskId_whenTaskCreated() throws TaskStorageException {
     // ARRANGE
@@ -115,4 +148,31 @@ public class TestTask {
     // ASSERT
     assertThat(taskIndex.getAllTasks()).doesNotContain(newTask.getTaskId());
   }
+
+  @Test
+  public void getInstance_keepsTaskWhilstItsCopyIsInUse() throws Exception {
+    // ARRANGE
+    String smallCacheRootDir = new File(testRootDir, "small-cache").getPath();
+    TaskConfig smallCacheConfig =
+        new TaskConfig(smallCacheRootDir) {
+          @Override
+          public int getTaskCacheSize() {
+            return 1;
+          }
+        };
+    TestEnvironment smallCacheEnvironment =
+        new TestEnvironment(smallCacheRootDir, new RepoConfig(smallCacheRootDir), smallCacheConfig);
+    Task task = smallCacheEnvironment.createNoOpTask();
+    TaskFactory smallCacheFactory = smallCacheEnvironment.getTaskFactory();
+
+    try (TaskCopy c = task.acquireTestingCopy()) {
+      // ACT
+      // Creating another task would evict the first if its copy didn't pin it
+      smallCacheFactory.createInstance();
+      Task reloaded = smallCacheFactory.getInstance(task.getTaskId());
+
+      // ASSERT
+      assertThat(reloaded).isSameAs(task);
+    }
+  }
 }
@@ -0,0 +1,122 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.RepoConfig;
+
+public class TestTestingWorkspaces {
+
+  private File testRootDir;
+  private TestingWorkspaces workspaces;
+  private ExecutorService executor;
+
+  /** Create a pool which allows two workspaces at once. */
+  @Before
+  public void setup() throws IOException {
+    this.testRootDir = Files.createTempDir().getCanonicalFile();
+    RepoConfig config =
+        new RepoConfig(testRootDir.getPath()) {
+          @Override
+          public int getMaxTestingWorkspaces() {
+            return 2;
+          }
+        };
+    this.workspaces = new TestingWorkspaces(config);
+    this.executor = Executors.newSingleThreadExecutor();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    executor.shutdownNow();
+    workspaces.stop();
+    FileUtil.deleteRecursive(testRootDir);
+  }
+
+  @Test
+  public void acquire_givesConcurrentSubmissionsOfOneRepoTheirOwnWorkspaces()
+      throws InterruptedException {
+
+    // ACT
+    TestingWorkspaces.TestingWorkspace first = workspaces.acquire("repo");
+    TestingWorkspaces.TestingWorkspace second = workspaces.acquire("repo");
+
+    // ASSERT
+    assertThat(second.getDirectory()).isNotEqualTo(first.getDirectory());
+    assertThat(workspaces.getActive()).isEqualTo(2);
+  }
+
+  @Test
+  public void acquire_blocksOnceMaxTestingWorkspacesAreInUse()
+      throws InterruptedException, ExecutionException, TimeoutException {
+
+    // ARRANGE
+    TestingWorkspaces.TestingWorkspace first = workspaces.acquire("repo");
+    workspaces.acquire("other");
+
+    // ACT
+    Future<TestingWorkspaces.TestingWorkspace> third =
+        executor.submit(() -> workspaces.acquire("repo"));
+    try {
+      third.get(200, TimeUnit.MILLISECONDS);
+      fail("acquire should block until a workspace is released");
+    } catch (TimeoutException e) {
+      // still waiting
+    }
+    first.close();
+
+    // ASSERT
+    assertThat(third.get(10, TimeUnit.SECONDS).getDirectory()).isEqualTo(first.getDirectory());
+    assertThat(workspaces.getActive()).isEqualTo(2);
+  }
+
+  @Test
+  public void tryAcquire_returnsNullOnceMaxTestingWorkspacesAreInUse()
+      throws InterruptedException {
+
+    // ARRANGE
+    TestingWorkspaces.TestingWorkspace first = workspaces.acquire("repo");
+    workspaces.acquire("other");
+
+    // ACT
+    TestingWorkspaces.TestingWorkspace whilstFull = workspaces.tryAcquire("repo");
+    first.close();
+    TestingWorkspaces.TestingWorkspace afterRelease = workspaces.tryAcquire("repo");
+
+    // ASSERT
+    assertThat(whilstFull).isNull();
+    assertThat(afterRelease.getDirectory()).isEqualTo(first.getDirectory());
+    assertThat(workspaces.getActive()).isEqualTo(2);
+  }
+}
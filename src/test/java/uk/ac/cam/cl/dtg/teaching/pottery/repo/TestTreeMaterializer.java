@@ -0,0 +1,203 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Map;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
+
+public class TestTreeMaterializer {
+
+  private File testRootDir;
+  private Repository repository;
+  private File workspace;
+
+  /** Create an empty repository to hold the trees under test. */
+  @Before
+  public void setup() throws IOException, GitAPIException {
+    this.testRootDir = Files.createTempDir().getCanonicalFile();
+    this.repository =
+        Git.init().setBare(true).setDirectory(new File(testRootDir, "repo")).call().getRepository();
+    this.workspace = new File(testRootDir, "workspace");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    repository.close();
+    FileUtil.deleteRecursive(testRootDir);
+  }
+
+  @Test
+  public void materialize_rewritesChangedFile() throws IOException {
+
+    // ARRANGE
+    TreeMaterializer.Snapshot previous =
+        TreeMaterializer.materialize(
+            repository, writeTree(ImmutableMap.of("a.txt", "first")), workspace, null);
+    ObjectId treeId = writeTree(ImmutableMap.of("a.txt", "second"));
+
+    // ACT
+    TreeMaterializer.Snapshot snapshot =
+        TreeMaterializer.materialize(repository, treeId, workspace, previous);
+
+    // ASSERT
+    assertThat(read("a.txt")).isEqualTo("second");
+    assertThat(snapshot.getTreeId()).isEqualTo(treeId);
+  }
+
+  @Test
+  public void materialize_deletesRemovedFilesAndEmptyDirectories() throws IOException {
+
+    // ARRANGE
+    TreeMaterializer.Snapshot previous =
+        TreeMaterializer.materialize(
+            repository,
+            writeTree(ImmutableMap.of("a.txt", "a", "dir/b.txt", "b")),
+            workspace,
+            null);
+
+    // ACT
+    TreeMaterializer.materialize(
+        repository, writeTree(ImmutableMap.of("a.txt", "a")), workspace, previous);
+
+    // ASSERT
+    assertThat(read("a.txt")).isEqualTo("a");
+    assertThat(new File(workspace, "dir").exists()).isFalse();
+  }
+
+  @Test
+  public void materialize_restoresFileModifiedSinceItWasWritten() throws IOException {
+
+    // ARRANGE
+    ObjectId treeId = writeTree(ImmutableMap.of("a.txt", "original"));
+    TreeMaterializer.Snapshot previous =
+        TreeMaterializer.materialize(repository, treeId, workspace, null);
+    File file = new File(workspace, "a.txt");
+    Files.write("tampered with".getBytes(StandardCharsets.UTF_8), file);
+
+    // ACT
+    TreeMaterializer.materialize(repository, treeId, workspace, previous);
+
+    // ASSERT
+    assertThat(read("a.txt")).isEqualTo("original");
+  }
+
+  @Test
+  public void materialize_clearsCompilerOutput() throws IOException {
+
+    // ARRANGE
+    ObjectId treeId = writeTree(ImmutableMap.of("src/Main.java", "class Main {}"));
+    TreeMaterializer.Snapshot previous =
+        TreeMaterializer.materialize(repository, treeId, workspace, null);
+    Files.write(new byte[] {0}, new File(workspace, "src/Main.class"));
+    FileUtil.mkdirIfNotExists(new File(workspace, "out"));
+    Files.write(new byte[] {0}, new File(workspace, "out/Main.class"));
+
+    // ACT
+    TreeMaterializer.materialize(repository, treeId, workspace, previous);
+
+    // ASSERT
+    assertThat(workspace.list()).asList().containsExactly("src");
+    assertThat(new File(workspace, "src").list()).asList().containsExactly("Main.java");
+  }
+
+  @Test
+  public void materialize_setsExecutableBitAndWritesSymlinks() throws IOException {
+
+    // ARRANGE
+    ObjectId treeId =
+        writeTree(
+            ImmutableMap.of("run.sh", "#!/bin/bash", "link", "run.sh"),
+            ImmutableMap.of("run.sh", FileMode.EXECUTABLE_FILE, "link", FileMode.SYMLINK));
+
+    // ACT
+    TreeMaterializer.materialize(repository, treeId, workspace, null);
+
+    // ASSERT
+    assertThat(new File(workspace, "run.sh").canExecute()).isTrue();
+    File link = new File(workspace, "link");
+    assertThat(java.nio.file.Files.isSymbolicLink(link.toPath())).isTrue();
+    assertThat(java.nio.file.Files.readSymbolicLink(link.toPath())).isEqualTo(Paths.get("run.sh"));
+  }
+
+  @Test
+  public void materialize_withoutPreviousSnapshotRewritesEverything() throws IOException {
+
+    // ARRANGE
+    ObjectId treeId = writeTree(ImmutableMap.of("a.txt", "a"));
+    TreeMaterializer.materialize(repository, treeId, workspace, null);
+    Files.write("tampered with".getBytes(StandardCharsets.UTF_8), new File(workspace, "a.txt"));
+    Files.write(new byte[] {0}, new File(workspace, "left-over.txt"));
+
+    // ACT
+    TreeMaterializer.materialize(repository, treeId, workspace, null);
+
+    // ASSERT
+    assertThat(workspace.list()).asList().containsExactly("a.txt");
+    assertThat(read("a.txt")).isEqualTo("a");
+  }
+
+  private String read(String path) throws IOException {
+    return Files.asCharSource(new File(workspace, path), StandardCharsets.UTF_8).read();
+  }
+
+  private ObjectId writeTree(Map<String, String> files) throws IOException {
+    return writeTree(files, ImmutableMap.of());
+  }
+
+  /** Write a tree holding these files into the repository. Files are regular unless in modes. */
+  private ObjectId writeTree(Map<String, String> files, Map<String, FileMode> modes)
+      throws IOException {
+    DirCache index = DirCache.newInCore();
+    DirCacheBuilder builder = index.builder();
+    try (ObjectInserter inserter = repository.newObjectInserter()) {
+      for (Map.Entry<String, String> e : files.entrySet()) {
+        DirCacheEntry entry = new DirCacheEntry(e.getKey());
+        entry.setFileMode(modes.getOrDefault(e.getKey(), FileMode.REGULAR_FILE));
+        entry.setObjectId(
+            inserter.insert(Constants.OBJ_BLOB, e.getValue().getBytes(StandardCharsets.UTF_8)));
+        builder.add(entry);
+      }
+      builder.finish();
+      ObjectId treeId = index.writeTree(inserter);
+      inserter.flush();
+      return treeId;
+    }
+  }
+}
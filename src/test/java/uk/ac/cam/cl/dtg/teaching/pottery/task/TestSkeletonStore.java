@@ -0,0 +1,92 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.task;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import org.apache.commons.io.Charsets;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
+
+public class TestSkeletonStore {
+
+  private File testRootDir;
+  private File storeDir;
+  private File skeletonDir;
+
+  /** Create a skeleton with a single file. */
+  @Before
+  public void setup() throws IOException {
+    this.testRootDir = Files.createTempDir().getCanonicalFile();
+    this.storeDir = new File(testRootDir, "skeleton-store");
+    this.skeletonDir = new File(testRootDir, "skeleton");
+    FileUtil.mkdirIfNotExists(skeletonDir);
+    Files.write("SKELETON".getBytes(Charsets.UTF_8), new File(skeletonDir, "skeleton.sh"));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtil.deleteRecursive(testRootDir);
+  }
+
+  @Test
+  public void store_givesSameCommitForSameSkeleton() throws IOException {
+
+    // ARRANGE
+    ObjectId first = SkeletonStore.store(storeDir, skeletonDir);
+
+    // ACT
+    ObjectId second = SkeletonStore.store(storeDir, skeletonDir);
+
+    // ASSERT
+    assertThat(second).isEqualTo(first);
+    assertThat(hasRef(first)).isTrue();
+  }
+
+  @Test
+  public void store_returnsNullWhenThereAreNoSkeletonFiles() throws IOException {
+
+    // ARRANGE
+    File missingDir = new File(testRootDir, "missing");
+
+    // ACT
+    ObjectId commitId = SkeletonStore.store(storeDir, missingDir);
+
+    // ASSERT
+    assertThat(commitId).isNull();
+  }
+
+  private boolean hasRef(ObjectId commitId) throws IOException {
+    try (Repository store = openStore()) {
+      return store.exactRef("refs/skeletons/" + commitId.getName()) != null;
+    }
+  }
+
+  private Repository openStore() throws IOException {
+    return new FileRepositoryBuilder().setGitDir(storeDir).setMustExist(true).build();
+  }
+}
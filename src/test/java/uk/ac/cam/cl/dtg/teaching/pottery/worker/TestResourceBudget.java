@@ -0,0 +1,117 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class TestResourceBudget {
+
+  private final List<String> admitted = new ArrayList<>();
+
+  @Test
+  public void submit_smallJobFillsGapLeftByBigJob() {
+
+    // ARRANGE
+    ResourceBudget budget = new ResourceBudget(1000, 4);
+    submit(budget, "first", 600);
+    submit(budget, "big", 600);
+
+    // ACT
+    submit(budget, "small", 300);
+
+    // ASSERT
+    assertThat(admitted).containsExactly("first", "small").inOrder();
+    assertThat(budget.getWaiting()).isEqualTo(1);
+    assertThat(budget.getReservedRamMegabytes()).isEqualTo(900);
+  }
+
+  @Test
+  public void submit_holdsBackLaterJobsOnceBigJobIsOvertakenTooOften() {
+
+    // ARRANGE
+    ResourceBudget budget = new ResourceBudget(1000, 4);
+    ResourceRequest first = submit(budget, "first", 900);
+    submit(budget, "big", 500);
+    for (int i = 0; i < 8; i++) {
+      budget.release(submit(budget, "small" + i, 100));
+    }
+
+    // ACT
+    submit(budget, "held", 100);
+    boolean heldAdmittedEarly = admitted.contains("held");
+    budget.release(first);
+
+    // ASSERT
+    assertThat(heldAdmittedEarly).isFalse();
+    assertThat(admitted.subList(admitted.size() - 2, admitted.size()))
+        .containsExactly("big", "held")
+        .inOrder();
+    assertThat(budget.getWaiting()).isEqualTo(0);
+  }
+
+  @Test
+  public void submit_admitsOversizedJobOnlyWhenNothingElseIsReserved() {
+
+    // ARRANGE
+    ResourceBudget budget = new ResourceBudget(1000, 4);
+    ResourceRequest first = submit(budget, "first", 100);
+    submit(budget, "oversized", 2000);
+    boolean oversizedAdmittedEarly = admitted.contains("oversized");
+
+    // ACT
+    budget.release(first);
+    submit(budget, "after", 100);
+
+    // ASSERT
+    assertThat(oversizedAdmittedEarly).isFalse();
+    assertThat(admitted).containsExactly("first", "oversized").inOrder();
+    assertThat(budget.getReservedRamMegabytes()).isEqualTo(2000);
+    assertThat(budget.getWaiting()).isEqualTo(1);
+  }
+
+  @Test
+  public void release_admitsWaitingJobs() {
+
+    // ARRANGE
+    ResourceBudget budget = new ResourceBudget(1000, 2);
+    ResourceRequest first = submit(budget, "first", 100);
+    submit(budget, "second", 100);
+    submit(budget, "third", 100);
+    submit(budget, "fourth", 100);
+
+    // ACT
+    budget.release(first);
+
+    // ASSERT
+    assertThat(admitted).containsExactly("first", "second", "third").inOrder();
+    assertThat(budget.getReservedCpuSlots()).isEqualTo(2);
+    assertThat(budget.getWaiting()).isEqualTo(1);
+  }
+
+  /** Submit a job needing one CPU slot which records its name when it is admitted. */
+  private ResourceRequest submit(ResourceBudget budget, String name, int ramMegabytes) {
+    ResourceRequest request = ResourceRequest.create(ramMegabytes, 1);
+    budget.submit(request, () -> admitted.add(name));
+    return request;
+  }
+}
@@ -0,0 +1,258 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.WorkerConfig;
+import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerManager;
+import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskIndex;
+
+public class TestThreadPoolWorker {
+
+  private ThreadPoolWorker worker;
+
+  /** Create a worker with short retry delays. None of these tests run real submissions. */
+  @Before
+  public void setup() {
+    WorkerConfig config =
+        new WorkerConfig() {
+          @Override
+          public int getCpuSlots() {
+            return 4;
+          }
+
+          @Override
+          public long getRetryBaseDelayMs() {
+            return 100;
+          }
+
+          @Override
+          public long getRetryMaxDelayMs() {
+            return 1000;
+          }
+        };
+    this.worker = new ThreadPoolWorker(null, null, null, null, config);
+  }
+
+  @After
+  public void tearDown() {
+    worker.stop();
+  }
+
+  @Test
+  public void retryDelayMs_doublesWithEachAttemptUpToTheLimit() {
+
+    // ARRANGE
+    long[] expected = {100, 200, 400, 800, 1000, 1000};
+    long[] shortest = new long[expected.length];
+    long[] longest = new long[expected.length];
+
+    // ACT
+    for (int i = 0; i < expected.length; i++) {
+      shortest[i] = Long.MAX_VALUE;
+      for (int sample = 0; sample < 100; sample++) {
+        long delay = worker.retryDelayMs(i + 1);
+        shortest[i] = Math.min(shortest[i], delay);
+        longest[i] = Math.max(longest[i], delay);
+      }
+    }
+
+    // ASSERT
+    for (int i = 0; i < expected.length; i++) {
+      assertThat(shortest[i]).isAtLeast(expected[i] / 2);
+      assertThat(longest[i]).isAtMost(expected[i]);
+    }
+  }
+
+  @Test
+  public void rebuildThreadPool_shrinkingLeavesRunningJobUninterrupted()
+      throws InterruptedException {
+
+    // ARRANGE
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch finished = new CountDownLatch(1);
+    AtomicBoolean interrupted = new AtomicBoolean(false);
+    worker.schedule(
+        job(
+            Stage.HARNESS,
+            () -> {
+              started.countDown();
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                interrupted.set(true);
+              }
+              finished.countDown();
+            }));
+    started.await();
+
+    // ACT
+    worker.rebuildThreadPool(Stage.HARNESS, 1);
+    release.countDown();
+
+    // ASSERT
+    assertThat(finished.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(interrupted.get()).isFalse();
+    assertThat(worker.getNumThreads(Stage.HARNESS)).isEqualTo(1);
+  }
+
+  @Test
+  public void rebuildThreadPool_growingStartsQueuedJobStraightAway() throws InterruptedException {
+
+    // ARRANGE
+    worker.rebuildThreadPool(Stage.HARNESS, 1);
+    CountDownLatch firstStarted = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch secondStarted = new CountDownLatch(1);
+    worker.schedule(
+        job(
+            Stage.HARNESS,
+            () -> {
+              firstStarted.countDown();
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                // The worker is being stopped
+              }
+            }));
+    firstStarted.await();
+    worker.schedule(job(Stage.HARNESS, secondStarted::countDown));
+
+    // ACT
+    worker.rebuildThreadPool(Stage.HARNESS, 2);
+
+    // ASSERT
+    assertThat(secondStarted.await(10, TimeUnit.SECONDS)).isTrue();
+    release.countDown();
+  }
+
+  @Test
+  public void rebuildThreadPool_rejectsNonPositiveSize() {
+
+    // ACT
+    try {
+      worker.rebuildThreadPool(0);
+      fail("rebuildThreadPool should throw IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessageThat().contains("must be positive");
+    }
+
+    // ASSERT
+    assertThat(worker.getNumThreads(Stage.GENERAL)).isEqualTo(1);
+  }
+
+  @Test
+  public void rebuildThreadPool_leavesContainerStagesAlone() {
+
+    // ACT
+    worker.rebuildThreadPool(3);
+
+    // ASSERT
+    assertThat(worker.getNumThreads(Stage.GENERAL)).isEqualTo(3);
+    assertThat(worker.getNumThreads(Stage.CHECKOUT)).isEqualTo(3);
+    assertThat(worker.getNumThreads(Stage.COMPILATION)).isEqualTo(4);
+    assertThat(worker.getNumThreads(Stage.HARNESS)).isEqualTo(4);
+    assertThat(worker.getNumThreads(Stage.VALIDATOR)).isEqualTo(4);
+  }
+
+  @Test
+  public void retry_abandonsJobOnceWorkerHasStopped() throws InterruptedException {
+
+    // ARRANGE
+    CountDownLatch abandoned = new CountDownLatch(1);
+    Job job =
+        new Job() {
+          @Override
+          public int execute(
+              TaskIndex taskIndex,
+              RepoFactory repoFactory,
+              ContainerManager containerManager,
+              Database database) {
+            worker.stop();
+            return Job.STATUS_RETRY;
+          }
+
+          @Override
+          public String getDescription() {
+            return "Test job";
+          }
+
+          @Override
+          public Stage getStage() {
+            return Stage.HARNESS;
+          }
+
+          @Override
+          public void abandon(
+              TaskIndex taskIndex,
+              RepoFactory repoFactory,
+              ContainerManager containerManager,
+              Database database) {
+            abandoned.countDown();
+          }
+        };
+
+    // ACT
+    worker.schedule(job);
+
+    // ASSERT
+    assertThat(abandoned.await(10, TimeUnit.SECONDS)).isTrue();
+    // The first attempt takes itself off the queue once its job has returned
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!worker.getQueue().isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(worker.getQueue()).isEmpty();
+  }
+
+  private static Job job(Stage stage, Runnable body) {
+    return new Job() {
+      @Override
+      public int execute(
+          TaskIndex taskIndex,
+          RepoFactory repoFactory,
+          ContainerManager containerManager,
+          Database database) {
+        body.run();
+        return Job.STATUS_OK;
+      }
+
+      @Override
+      public String getDescription() {
+        return "Test job";
+      }
+
+      @Override
+      public Stage getStage() {
+        return stage;
+      }
+    };
+  }
+}